@@ -0,0 +1,226 @@
+package com.zimbra.ssdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ *
+ * RespStandInServer is a minimal in-memory server speaking the Redis protocol, used by the benchmarks
+ * in place of a real SSDB instance so that they measure the client side of the store.
+ *
+ * It understands PING, GET, SET, SETEX, DEL, EXISTS, MGET and QUIT. Expiration is ignored.
+ *
+ */
+public class RespStandInServer implements Closeable {
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, byte[]> data = new ConcurrentHashMap<String, byte[]>();
+    private volatile boolean closed = false;
+
+    public RespStandInServer() throws IOException {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("RespStandIn-%d").setDaemon(true).build());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            while (!closed) {
+                byte[][] command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                String name = new String(command[0], StandardCharsets.US_ASCII).toUpperCase();
+                if ("QUIT".equals(name)) {
+                    out.write(OK);
+                    out.flush();
+                    return;
+                }
+                execute(name, command, out);
+                if (in.available() == 0) {
+                    // flush once per pipeline rather than once per reply
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void execute(String name, byte[][] command, OutputStream out) throws IOException {
+        switch (name) {
+        case "PING":
+            out.write(PONG);
+            break;
+        case "GET":
+            writeBulk(out, data.get(key(command[1])));
+            break;
+        case "SET":
+            data.put(key(command[1]), command[2]);
+            out.write(OK);
+            break;
+        case "SETEX":
+            data.put(key(command[1]), command[3]);
+            out.write(OK);
+            break;
+        case "DEL":
+            long deleted = 0;
+            for (int i = 1; i < command.length; i++) {
+                if (data.remove(key(command[i])) != null) {
+                    deleted++;
+                }
+            }
+            writeInteger(out, deleted);
+            break;
+        case "EXISTS":
+            writeInteger(out, data.containsKey(key(command[1])) ? 1 : 0);
+            break;
+        case "MGET":
+            writeLine(out, "*" + (command.length - 1));
+            for (int i = 1; i < command.length; i++) {
+                writeBulk(out, data.get(key(command[i])));
+            }
+            break;
+        default:
+            writeLine(out, "-ERR unknown command '" + name + "'");
+        }
+    }
+
+    private static String key(byte[] raw) {
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the arguments of the next command, or null at the end of the stream
+     */
+    private static byte[][] readCommand(InputStream in) throws IOException {
+        int marker = in.read();
+        if (marker == -1) {
+            return null;
+        }
+        if (marker != '*') {
+            throw new IOException("expected a multi-bulk command, got '" + (char) marker + "'");
+        }
+        int count = (int) readNumber(in);
+        byte[][] args = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("expected a bulk string");
+            }
+            int length = (int) readNumber(in);
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            args[i] = arg;
+        }
+        return args;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write(NIL);
+            return;
+        }
+        writeLine(out, "$" + value.length);
+        out.write(value);
+        out.write(CRLF);
+    }
+
+    private static void writeInteger(OutputStream out, long value) throws IOException {
+        writeLine(out, ":" + value);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
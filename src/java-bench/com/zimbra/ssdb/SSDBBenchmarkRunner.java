@@ -0,0 +1,48 @@
+package com.zimbra.ssdb;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * SSDBBenchmarkRunner runs the encoder benchmarks once and the store benchmarks once per client thread count,
+ * with the GC profiler so that allocation rates are reported next to throughput.
+ * Each run writes its results as JSON to the output directory.
+ *
+ * Usage: SSDBBenchmarkRunner [output directory] [comma separated thread counts]
+ *
+ */
+public class SSDBBenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        File outputDir = new File(args.length > 0 ? args[0] : "build/jmh");
+        String threadCounts = args.length > 1 ? args[1] : "1,4,16";
+        outputDir.mkdirs();
+
+        new Runner(options(new File(outputDir, "encoder.json"))
+                .include(SSDBEncoderBenchmark.class.getName())
+                .threads(1)
+                .build()).run();
+
+        for (String threads : threadCounts.split(",")) {
+            int n = Integer.parseInt(threads.trim());
+            new Runner(options(new File(outputDir, "store-" + n + "-threads.json"))
+                    .include(SSDBStoreBenchmark.class.getName())
+                    .threads(n)
+                    .build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(File result) {
+        return new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+    }
+}
@@ -0,0 +1,114 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.ephemeral.EphemeralInput;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
+
+/**
+ *
+ * SSDBEncoderBenchmark measures the key and value encoding done on every store call
+ * and the decoding done on every value read from SSDB.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSDBEncoderBenchmark {
+    private static final String ACCOUNT_ID = "47e456be-b00a-465e-a1db-4b53e64fa";
+
+    private SSDBKeyEncoder keyEncoder;
+    private SSDBValueEncoder valueEncoder;
+    private SSDBAttributeEncoder attributeEncoder;
+    private EphemeralLocation location;
+    private EphemeralKey staticKey;
+    private EphemeralKey dynamicKey;
+    private EphemeralInput input;
+    private EphemeralInput expiringInput;
+    private String encodedKey;
+    private String encodedValue;
+    private String encodedExpiringValue;
+    private byte[] binaryExpiringValue;
+
+    @Setup
+    public void setUp() {
+        keyEncoder = new SSDBKeyEncoder();
+        valueEncoder = new SSDBValueEncoder();
+        attributeEncoder = new SSDBAttributeEncoder();
+        location = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", ACCOUNT_ID }; }
+        };
+        staticKey = new EphemeralKey("zimbraLastLogonTimestamp");
+        dynamicKey = new EphemeralKey("zimbraAuthTokens", "366778080");
+        input = new EphemeralInput(staticKey, "20160912212057.178Z");
+        expiringInput = new EphemeralInput(dynamicKey, "8.7.0_GA_1659", new AbsoluteExpiration(1473761137744L));
+        encodedKey = keyEncoder.encodeKey(dynamicKey, location);
+        encodedValue = valueEncoder.encodeValue(input, location);
+        encodedExpiringValue = valueEncoder.encodeValue(expiringInput, location);
+        binaryExpiringValue = SSDBValueCodec.encode(SSDBValueFormat.BINARY, "8.7.0_GA_1659", 1473761137744L);
+    }
+
+    @Benchmark
+    public String encodeStaticKey() {
+        return keyEncoder.encodeKey(staticKey, location);
+    }
+
+    @Benchmark
+    public String encodeDynamicKey() {
+        return keyEncoder.encodeKey(dynamicKey, location);
+    }
+
+    @Benchmark
+    public byte[] encodeDynamicKeyBytes() {
+        return keyEncoder.encodeKeyBytes(dynamicKey, location);
+    }
+
+    @Benchmark
+    public String encodeValue() {
+        return valueEncoder.encodeValue(input, location);
+    }
+
+    @Benchmark
+    public String encodeExpiringValue() {
+        return valueEncoder.encodeValue(expiringInput, location);
+    }
+
+    @Benchmark
+    public ExpirableEphemeralKeyValuePair decode() throws ServiceException {
+        return attributeEncoder.decode(encodedKey, encodedValue);
+    }
+
+    @Benchmark
+    public ExpirableEphemeralKeyValuePair decodeExpiring() throws ServiceException {
+        return attributeEncoder.decode(encodedKey, encodedExpiringValue);
+    }
+
+    @Benchmark
+    public byte[] encodeExpiringValueBinary() {
+        return SSDBValueCodec.encode(SSDBValueFormat.BINARY, "8.7.0_GA_1659", 1473761137744L);
+    }
+
+    @Benchmark
+    public ExpirableEphemeralKeyValuePair decodeExpiringBinary() throws ServiceException {
+        return SSDBValueCodec.decode(dynamicKey, binaryExpiringValue);
+    }
+}
@@ -0,0 +1,107 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redis.clients.jedis.JedisPool;
+
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralInput;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.ephemeral.EphemeralResult;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ *
+ * SSDBStoreBenchmark runs get, set and has end-to-end through {@link SSDBEphemeralStore}
+ * against a {@link RespStandInServer} on the loopback interface.
+ *
+ * The connection pool size is a parameter; the number of client threads is set by
+ * {@link SSDBBenchmarkRunner} or with JMH's -t option.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SSDBStoreBenchmark {
+    private static final int ACCOUNTS = 1000;
+
+    @Param({"8", "32"})
+    public int poolSize;
+
+    private RespStandInServer server;
+    private SSDBEphemeralStore store;
+    private EphemeralLocation[] locations;
+    private EphemeralKey authTokenKey;
+    private EphemeralKey missingKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MailboxTestUtil.initServer("../zm-mailbox/store/");
+        server = new RespStandInServer();
+        String url = "ssdb:127.0.0.1:" + server.getPort();
+        Provisioning.getInstance().getConfig().setEphemeralBackendURL(url);
+        store = new SSDBEphemeralStore(url);
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(poolSize);
+        poolConfig.setMaxIdle(poolSize);
+        store.setPool(new JedisPool(poolConfig, "127.0.0.1", server.getPort()));
+        authTokenKey = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        missingKey = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "0");
+        locations = new EphemeralLocation[ACCOUNTS];
+        AbsoluteExpiration expiration = new AbsoluteExpiration(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String accountId = String.format("47e456be-b00a-465e-a1db-%012d", i);
+            locations[i] = new EphemeralLocation() {
+                @Override
+                public String[] getLocation() { return new String[] { "account", accountId }; }
+            };
+            store.set(new EphemeralInput(authTokenKey, "8.7.0_GA_1659", expiration), locations[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.shutdown();
+        server.close();
+    }
+
+    private EphemeralLocation randomLocation() {
+        return locations[ThreadLocalRandom.current().nextInt(ACCOUNTS)];
+    }
+
+    @Benchmark
+    public EphemeralResult get() throws Exception {
+        return store.get(authTokenKey, randomLocation());
+    }
+
+    @Benchmark
+    public boolean hasMissing() throws Exception {
+        return store.has(missingKey, randomLocation());
+    }
+
+    @Benchmark
+    public void set() throws Exception {
+        store.set(new EphemeralInput(authTokenKey, "8.7.0_GA_1659"), randomLocation());
+    }
+}
@@ -0,0 +1,70 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+public class SSDBAsyncExecutorTest {
+
+    private SSDBAsyncExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new SSDBAsyncExecutor(1, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testResult() throws Exception {
+        assertEquals("value", executor.submit(() -> "value").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testException() throws Exception {
+        CompletableFuture<String> future = executor.submit(() -> {
+            throw ServiceException.FAILURE("simulated SSDB failure", null);
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("the failure should be passed on");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServiceException);
+        }
+    }
+
+    @Test
+    public void testSaturated() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocking = executor.submit(() -> {
+            running.countDown();
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED("test");
+            }
+        });
+        running.await(5, TimeUnit.SECONDS);
+        CompletableFuture<String> queued = executor.submit(() -> "queued");
+        CompletableFuture<String> rejected = executor.submit(() -> "rejected");
+        assertTrue("operations beyond the queue should fail right away", rejected.isCompletedExceptionally());
+        release.countDown();
+        assertTrue(blocking.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,66 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
+
+public class SSDBAttributeEncoderTest {
+
+    private final SSDBAttributeEncoder encoder = new SSDBAttributeEncoder();
+
+    @Test
+    public void testDecodeKey() throws ServiceException {
+        ExpirableEphemeralKeyValuePair kvp = encoder.decode("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp", "20160912212057.178Z|");
+        assertEquals("zimbraLastLogonTimestamp", kvp.getKey().getKey());
+        assertFalse(kvp.getKey().isDynamic());
+
+        kvp = encoder.decode("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080", "8.7.0_GA_1659|1473761137744");
+        assertEquals("zimbraAuthTokens", kvp.getKey().getKey());
+        assertTrue(kvp.getKey().isDynamic());
+        assertEquals("366778080", kvp.getKey().getDynamicComponent());
+
+        for (String bad : new String[] { "account", "account|id", "account|id|" }) {
+            try {
+                encoder.decode(bad, "x|");
+                fail("should not parse key " + bad);
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.PARSE_ERROR, e.getCode());
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeValue() throws ServiceException {
+        String key = "account|id|zimbraAuthTokens|366778080";
+        ExpirableEphemeralKeyValuePair kvp = encoder.decode(key, "8.7.0_GA_1659|1473761137744");
+        assertEquals("8.7.0_GA_1659", kvp.getValue());
+        assertEquals(Long.valueOf(1473761137744L), kvp.getExpires());
+
+        kvp = encoder.decode(key, "8.7.0_GA_1659|");
+        assertEquals("8.7.0_GA_1659", kvp.getValue());
+        assertNull(kvp.getExpires());
+
+        kvp = encoder.decode(key, "a|b|1473761137744");
+        assertEquals("values may contain the separator", "a|b", kvp.getValue());
+        assertEquals(Long.valueOf(1473761137744L), kvp.getExpires());
+
+        kvp = encoder.decode(key, "a|notanumber");
+        assertEquals("a|notanumber", kvp.getValue());
+        assertNull(kvp.getExpires());
+
+        kvp = encoder.decode(key, "a|99999999999999999999");
+        assertEquals("an expiration that overflows is part of the value", "a|99999999999999999999", kvp.getValue());
+        assertNull(kvp.getExpires());
+
+        kvp = encoder.decode(key, "novalueseparator");
+        assertEquals("novalueseparator", kvp.getValue());
+        assertNull(kvp.getExpires());
+    }
+}
@@ -0,0 +1,69 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SSDBCircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        SSDBCircuitBreaker breaker = new SSDBCircuitBreaker(3, 60000L);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue("a success should reset the failure count", breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(SSDBCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        SSDBCircuitBreaker breaker = new SSDBCircuitBreaker(1, 0L);
+        AtomicInteger closed = new AtomicInteger();
+        breaker.setListener(b -> closed.incrementAndGet());
+        breaker.recordFailure();
+        assertTrue("the first call after the open period is the probe", breaker.allowRequest());
+        assertFalse("only one probe at a time", breaker.allowRequest());
+        assertEquals(SSDBCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.recordFailure();
+        assertEquals("a failed probe reopens the breaker", SSDBCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(SSDBCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, closed.get());
+        breaker.recordSuccess();
+        assertEquals("listener is only notified on a transition", 1, closed.get());
+    }
+
+    @Test
+    public void testAbandonedProbe() {
+        SSDBCircuitBreaker breaker = new SSDBCircuitBreaker(1, 0L);
+        breaker.abandonProbe();
+        assertEquals("a closed breaker stays closed", SSDBCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.abandonProbe();
+        assertTrue("the next call should probe instead", breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(SSDBCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testDisabled() {
+        SSDBCircuitBreaker breaker = new SSDBCircuitBreaker(0, 60000L);
+        for (int i = 0; i < 100; i++) {
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.allowRequest());
+    }
+}
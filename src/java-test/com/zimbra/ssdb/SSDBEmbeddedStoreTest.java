@@ -0,0 +1,161 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralInput;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+
+public class SSDBEmbeddedStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final EphemeralLocation ACCOUNT = new EphemeralLocation() {
+        @Override
+        public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+    };
+
+    private static final EphemeralLocation OTHER_ACCOUNT = new EphemeralLocation() {
+        @Override
+        public String[] getLocation() { return new String[] { "account", "0b1f0a4c-2c3e-4c1e-9d7a-0f7c2f1b9e5d" }; }
+    };
+
+    @Test
+    public void testGetSetDelete() throws ServiceException {
+        SSDBEmbeddedStore store = new SSDBEmbeddedStore(null, 1024L * 1024L, 1000L, 0L, 0L);
+        try {
+            EphemeralKey token = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+            EphemeralKey lastLogon = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+            store.set(new EphemeralInput(token, "8.8.0_GA_1234", new AbsoluteExpiration(System.currentTimeMillis() + 60000L)), ACCOUNT);
+            store.set(new EphemeralInput(lastLogon, "20160912212057.178Z"), ACCOUNT);
+            assertEquals("8.8.0_GA_1234", store.get(token, ACCOUNT).getValue());
+            assertTrue(store.has(lastLogon, ACCOUNT));
+            assertFalse(store.has(lastLogon, OTHER_ACCOUNT));
+            store.delete(token, "8.8.0_GA_1234", ACCOUNT);
+            assertNull(store.get(token, ACCOUNT).getValue());
+            store.set(new EphemeralInput(token, "8.8.0_GA_1234", new AbsoluteExpiration(System.currentTimeMillis() - 1000L)), ACCOUNT);
+            assertFalse("expired attributes should not be stored", store.has(token, ACCOUNT));
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeleteData() throws ServiceException {
+        SSDBEmbeddedStore store = new SSDBEmbeddedStore(null, 1024L * 1024L, 1000L, 0L, 0L);
+        try {
+            EphemeralKey lastLogon = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+            store.set(new EphemeralInput(new EphemeralKey(Provisioning.A_zimbraAuthTokens, "1"), "v"), ACCOUNT);
+            store.set(new EphemeralInput(lastLogon, "20160912212057.178Z"), ACCOUNT);
+            store.set(new EphemeralInput(lastLogon, "20160912212057.178Z"), OTHER_ACCOUNT);
+            store.deleteData(ACCOUNT);
+            assertFalse(store.has(lastLogon, ACCOUNT));
+            assertTrue(store.has(lastLogon, OTHER_ACCOUNT));
+            assertEquals(1L, store.getTable().size());
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void testAppendOnlyFile() throws Exception {
+        File file = new File(folder.getRoot(), "ephemeral.aof");
+        EphemeralKey token = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        EphemeralKey expiring = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "123");
+        EphemeralKey lastLogon = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+        SSDBEmbeddedStore store = new SSDBEmbeddedStore(file, 1024L * 1024L, 1000L, 0L, 0L);
+        store.set(new EphemeralInput(token, "8.8.0_GA_1234", new AbsoluteExpiration(System.currentTimeMillis() + 60000L)), ACCOUNT);
+        store.set(new EphemeralInput(expiring, "8.8.0_GA_1234", new AbsoluteExpiration(System.currentTimeMillis() + 200L)), ACCOUNT);
+        store.set(new EphemeralInput(lastLogon, "20160912212057.178Z"), ACCOUNT);
+        store.set(new EphemeralInput(lastLogon, "20170101000000.000Z"), ACCOUNT);
+        store.set(new EphemeralInput(lastLogon, "20160912212057.178Z"), OTHER_ACCOUNT);
+        store.deleteData(OTHER_ACCOUNT);
+        store.shutdown();
+        Thread.sleep(300L);
+
+        store = new SSDBEmbeddedStore(file, 1024L * 1024L, 1000L, 0L, 0L);
+        try {
+            assertEquals("8.8.0_GA_1234", store.get(token, ACCOUNT).getValue());
+            assertEquals("20170101000000.000Z", store.get(lastLogon, ACCOUNT).getValue());
+            assertFalse("expired values should not be loaded", store.has(expiring, ACCOUNT));
+            assertFalse("deleted entries should not be loaded", store.has(lastLogon, OTHER_ACCOUNT));
+            assertEquals(2L, store.getTable().size());
+            store.delete(token, "8.8.0_GA_1234", ACCOUNT);
+        } finally {
+            store.shutdown();
+        }
+
+        store = new SSDBEmbeddedStore(file, 1024L * 1024L, 1000L, 0L, 0L);
+        try {
+            assertFalse("changes after a compaction should be kept as well", store.has(token, ACCOUNT));
+            assertTrue(store.has(lastLogon, ACCOUNT));
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompactWhileWriting() throws Exception {
+        File file = new File(folder.getRoot(), "ephemeral.aof");
+        EphemeralKey lastLogon = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+        SSDBEmbeddedStore store = new SSDBEmbeddedStore(file, 16L * 1024L * 1024L, 1000L, 0L, 1024L);
+        Map<String, String> expected = new HashMap<String, String>();
+        try {
+            for (int i = 0; i < 20000; i++) {
+                store.set(new EphemeralInput(lastLogon, String.valueOf(i)), account(i % 100));
+            }
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        store.set(new EphemeralInput(lastLogon, "w" + i), account(i % 200));
+                    }
+                } catch (ServiceException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            assertTrue(store.compactIfNeeded());
+            writer.join();
+            long before = store.getLog().getLogBytes();
+            assertTrue(store.compactIfNeeded());
+            assertTrue("the file should have shrunk", store.getLog().getLogBytes() < before / 10);
+            assertFalse("a compacted file should be left alone", store.compactIfNeeded());
+            store.set(new EphemeralInput(lastLogon, "after"), account(0));
+            store.getTable().forEach(System.currentTimeMillis(), (key, value, expires) -> expected.put(key, value));
+        } finally {
+            store.shutdown();
+        }
+
+        SSDBEmbeddedStore reloaded = new SSDBEmbeddedStore(file, 16L * 1024L * 1024L, 1000L, 0L, 1024L);
+        try {
+            Map<String, String> actual = new HashMap<String, String>();
+            reloaded.getTable().forEach(System.currentTimeMillis(), (key, value, expires) -> actual.put(key, value));
+            assertEquals("changes made during the compaction should be kept", expected, actual);
+            assertEquals("after", reloaded.get(lastLogon, account(0)).getValue());
+        } finally {
+            reloaded.shutdown();
+        }
+    }
+
+    private static EphemeralLocation account(int i) {
+        return new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", String.valueOf(i) }; }
+        };
+    }
+}
@@ -1,11 +1,25 @@
 package com.zimbra.ssdb;
 
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.easymock.EasyMock;
 import org.easymock.Mock;
@@ -19,12 +33,16 @@ import com.zimbra.cs.ephemeral.EphemeralInput;
 import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
 import com.zimbra.cs.ephemeral.EphemeralInput.Expiration;
 import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralKeyValuePair;
 import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.ephemeral.EphemeralResult;
 import com.zimbra.cs.ephemeral.EphemeralStore;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 public class SSDBEphemeralStoreTest {
 
@@ -46,6 +64,10 @@ public class SSDBEphemeralStoreTest {
     public void tearDown() throws Exception {
     }
 
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
     @Test
     public void testFactory() throws ServiceException {
         EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
@@ -53,6 +75,54 @@ public class SSDBEphemeralStoreTest {
         assertTrue(store instanceof SSDBEphemeralStore);
     }
 
+    @Test
+    public void testShardedUrl() throws ServiceException {
+        SSDBEphemeralStore store = new SSDBEphemeralStore("ssdb:ssdb1:8888,ssdb2:8889,ssdb3");
+        assertEquals(3, store.getShards().size());
+        assertEquals("ssdb1:8888", store.getShards().get(0).getName());
+        assertEquals("ssdb2:8889", store.getShards().get(1).getName());
+        assertEquals("ssdb3", store.getShards().get(2).getName());
+    }
+
+    @Test
+    public void testReplicaUrl() throws ServiceException {
+        SSDBEphemeralStore store = new SSDBEphemeralStore("ssdb:master1:8888/slave1:8888/slave2,master2:8888");
+        assertEquals(2, store.getShards().size());
+        assertEquals(2, store.getShards().get(0).getReplicas().size());
+        assertEquals("slave1:8888", store.getShards().get(0).getReplicas().get(0).getName());
+        assertEquals("slave2", store.getShards().get(0).getReplicas().get(1).getName());
+        assertEquals(0, store.getShards().get(1).getReplicas().size());
+    }
+
+    @Test
+    public void testReadYourWrites() throws ServiceException {
+        SSDBEphemeralStore store = new SSDBEphemeralStore("ssdb:master1:8888/slave1:8888");
+        store.setReadPolicy(SSDBReadPolicy.REPLICA_PREFERRED, 60000L);
+        JedisPool mockReplicaPool = EasyMock.mock(JedisPool.class);
+        Jedis replicaJedis = EasyMock.mock(Jedis.class);
+        store.setPool(mockJedisPool);
+        store.getShards().get(0).getReplicas().get(0).setPool(mockReplicaPool);
+        EphemeralLocation accountLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        String encodedKey = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp";
+        expect(mockReplicaPool.getResource()).andReturn(replicaJedis).once();
+        expect(replicaJedis.get(aryEq(bytes(encodedKey)))).andReturn(null).once();
+        replicaJedis.close();
+        expect(mockJedisPool.getResource()).andReturn(jedis).times(2);
+        expect(jedis.set(aryEq(bytes(encodedKey)), aryEq(bytes("20160912212057.178Z|")))).andReturn("OK").once();
+        expect(jedis.get(aryEq(bytes(encodedKey)))).andReturn(bytes("20160912212057.178Z|")).once();
+        jedis.close();
+        expectLastCall().times(2);
+        replay(mockJedisPool, jedis, mockReplicaPool, replicaJedis);
+        EphemeralKey eKey = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+        assertFalse("read before any write should go to the replica", store.has(eKey, accountLocation));
+        store.set(new EphemeralInput(eKey, "20160912212057.178Z"), accountLocation);
+        assertEquals("read after a local write should go to the master", "20160912212057.178Z", store.get(eKey, accountLocation).getValue());
+        verify(mockJedisPool, jedis, mockReplicaPool, replicaJedis);
+    }
+
     @Test
     public void testShutdown() throws ServiceException {
         EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
@@ -80,7 +150,7 @@ public class SSDBEphemeralStoreTest {
             public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
         };
         expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
-        expect(jedis.get("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")).andReturn(null);
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andReturn(null);
         jedis.close();
         replay(mockJedisPool);
         replay(jedis);
@@ -90,6 +160,448 @@ public class SSDBEphemeralStoreTest {
         verify(jedis);
     }
 
+    @Test
+    public void testGetFromNearCache() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        EphemeralStore store = SSDBEphemeralStore.getFactory().getStore();
+        assertTrue(store instanceof SSDBEphemeralStore);
+
+        ((SSDBEphemeralStore)store).setPool(mockJedisPool);
+        ((SSDBEphemeralStore)store).setNearCache(new SSDBNearCache(100, 60000L, Arrays.asList(Provisioning.A_zimbraAuthTokens)));
+        EphemeralLocation accountLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).once();
+        expect(jedis.get(aryEq(bytes("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080")))).andReturn(bytes("8.7.0_GA_1659|")).once();
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        EphemeralKey eKey = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        assertEquals("8.7.0_GA_1659", store.get(eKey, accountLocation).getValue());
+        assertEquals("8.7.0_GA_1659", store.get(eKey, accountLocation).getValue());
+        assertTrue(store.has(eKey, accountLocation));
+        verify(mockJedisPool);
+        verify(jedis);
+        ((SSDBEphemeralStore)store).setNearCache(null);
+    }
+
+    @Test
+    public void testHasFromNegativeCache() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        EphemeralStore store = SSDBEphemeralStore.getFactory().getStore();
+        assertTrue(store instanceof SSDBEphemeralStore);
+
+        ((SSDBEphemeralStore)store).setPool(mockJedisPool);
+        ((SSDBEphemeralStore)store).setNegativeCache(new SSDBNegativeCache(100, 60000L, Arrays.asList(Provisioning.A_zimbraAuthTokens)));
+        EphemeralLocation accountLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        String encodedKey = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        expect(mockJedisPool.getResource()).andReturn(jedis).times(3);
+        expect(jedis.get(aryEq(bytes(encodedKey)))).andReturn(null).once();
+        expect(jedis.set(aryEq(bytes(encodedKey)), aryEq(bytes("8.7.0_GA_1659|")))).andReturn("OK").once();
+        expect(jedis.get(aryEq(bytes(encodedKey)))).andReturn(bytes("8.7.0_GA_1659|")).once();
+        jedis.close();
+        expectLastCall().times(3);
+        replay(mockJedisPool);
+        replay(jedis);
+        EphemeralKey eKey = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        assertFalse(store.has(eKey, accountLocation));
+        assertFalse("second lookup should be served by the negative cache", store.has(eKey, accountLocation));
+        store.set(new EphemeralInput(eKey, "8.7.0_GA_1659"), accountLocation);
+        assertTrue("set() should invalidate the negative cache", store.has(eKey, accountLocation));
+        verify(mockJedisPool);
+        verify(jedis);
+        ((SSDBEphemeralStore)store).setNegativeCache(null);
+    }
+
+    @Test
+    public void testGetAll() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        EphemeralStore store = SSDBEphemeralStore.getFactory().getStore();
+        assertTrue(store instanceof SSDBEphemeralStore);
+
+        ((SSDBEphemeralStore)store).setPool(mockJedisPool);
+        EphemeralLocation accountLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).once();
+        expect(jedis.mget(aryEq(bytes("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080")),
+                aryEq(bytes("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|456779043")),
+                aryEq(bytes("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp"))))
+            .andReturn(Arrays.asList(bytes("8.7.0_GA_1659|4102444800000"), null, bytes("20160912212057.178Z|"))).once();
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        EphemeralKey eKey1 = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        EphemeralKey eKey2 = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "456779043");
+        EphemeralKey eKey3 = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+        List<EphemeralResult> results = ((SSDBEphemeralStore)store).getAll(Arrays.asList(eKey1, eKey2, eKey3), accountLocation);
+        assertEquals(3, results.size());
+        assertEquals("8.7.0_GA_1659", results.get(0).getValue());
+        assertEquals(null, results.get(1).getValue());
+        assertEquals("20160912212057.178Z", results.get(2).getValue());
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testRetryOnConnectionError() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        EphemeralStore store = SSDBEphemeralStore.getFactory().getStore();
+        assertTrue(store instanceof SSDBEphemeralStore);
+
+        ((SSDBEphemeralStore)store).setPool(mockJedisPool);
+        ((SSDBEphemeralStore)store).setRetryPolicy(new SSDBRetryPolicy(2, 0L, 0L));
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).times(2);
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andThrow(new JedisConnectionException("connection reset"));
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andReturn(bytes("someval|"));
+        jedis.close();
+        expectLastCall().times(2);
+        expect(mockJedisPool.isClosed()).andReturn(false);
+        replay(mockJedisPool);
+        replay(jedis);
+        assertEquals("someval", store.get(new EphemeralKey("somekey"), cosLocation).getValue());
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testFallbackDuringOutage() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setRetryPolicy(new SSDBRetryPolicy(1, 0L, 0L));
+        store.setFallbackStore(new SSDBFallbackStore(100));
+        store.getShards().get(0).setCircuitBreaker(new SSDBCircuitBreaker(1, 60000L));
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).once();
+        expect(jedis.set(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")), aryEq(bytes("someval|")))).andThrow(new JedisConnectionException("connection refused"));
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        try {
+            store.set(new EphemeralInput(new EphemeralKey("somekey"), "someval"), cosLocation);
+            assertEquals(SSDBCircuitBreaker.State.OPEN, store.getShards().get(0).getCircuitBreaker().getState());
+            assertEquals("write should be served from the fallback store", "someval", store.get(new EphemeralKey("somekey"), cosLocation).getValue());
+            assertFalse("open breaker should fail fast without touching the pool", store.has(new EphemeralKey("otherkey"), cosLocation));
+            verify(mockJedisPool);
+            verify(jedis);
+        } finally {
+            // the store is shared with the other tests
+            store.setFallbackStore(null);
+            store.getShards().get(0).setCircuitBreaker(new SSDBCircuitBreaker(0, 0L));
+        }
+    }
+
+    @Test
+    public void testExpiredPendingWrite() throws ServiceException {
+        SSDBEphemeralStore store = new SSDBEphemeralStore("ssdb:localhost:8888");
+        store.setPool(mockJedisPool);
+        SSDBFallbackStore fallbackStore = new SSDBFallbackStore(100);
+        String encodedKey = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        long expired = System.currentTimeMillis() - 1000L;
+        fallbackStore.put(SSDBWriteBehindQueue.Mutation.set(encodedKey, bytes("8.8.0_GA_1234|" + expired), 0));
+        store.setFallbackStore(fallbackStore);
+        EphemeralLocation accountLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        replay(mockJedisPool);
+        EphemeralKey eKey = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+        assertNull("a queued write that has expired should not be returned", store.get(eKey, accountLocation).getValue());
+        assertFalse(store.has(eKey, accountLocation));
+        assertNull(store.getAll(Arrays.asList(eKey), accountLocation).get(0).getValue());
+        verify(mockJedisPool);
+    }
+
+    @Test
+    public void testMetrics() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setRetryPolicy(new SSDBRetryPolicy(1, 0L, 0L));
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        SSDBOperationStats getStats = store.getMetrics().getStats(SSDBOperation.GET);
+        long count = getStats.getCount();
+        long errors = getStats.getErrorCount();
+        expect(mockJedisPool.getResource()).andReturn(jedis).times(2);
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andReturn(bytes("someval|"));
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andThrow(new JedisDataException("ERR wrong type"));
+        jedis.close();
+        expectLastCall().times(2);
+        replay(mockJedisPool);
+        replay(jedis);
+        assertEquals("someval", store.get(new EphemeralKey("somekey"), cosLocation).getValue());
+        try {
+            store.get(new EphemeralKey("somekey"), cosLocation);
+            fail("command error should be thrown");
+        } catch (ServiceException e) {
+            // expected
+        }
+        assertEquals(count + 2, getStats.getCount());
+        assertEquals(errors + 1, getStats.getErrorCount());
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testBinaryValueFormat() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setValueFormat(SSDBValueFormat.BINARY);
+        try {
+            EphemeralLocation cosLocation = new EphemeralLocation() {
+                @Override
+                public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+            };
+            byte[] binaryValue = SSDBValueCodec.encode(SSDBValueFormat.BINARY, "someval", null);
+            expect(mockJedisPool.getResource()).andReturn(jedis).times(3);
+            expect(jedis.set(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")), aryEq(binaryValue))).andReturn("OK");
+            expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andReturn(binaryValue);
+            expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|legacykey")))).andReturn(bytes("legacyval|"));
+            jedis.close();
+            expectLastCall().times(3);
+            replay(mockJedisPool);
+            replay(jedis);
+            store.set(new EphemeralInput(new EphemeralKey("somekey"), "someval"), cosLocation);
+            assertEquals("someval", store.get(new EphemeralKey("somekey"), cosLocation).getValue());
+            assertEquals("legacy text values should still be readable", "legacyval", store.get(new EphemeralKey("legacykey"), cosLocation).getValue());
+            verify(mockJedisPool);
+            verify(jedis);
+        } finally {
+            store.setValueFormat(SSDBValueFormat.TEXT);
+        }
+    }
+
+    @Test
+    public void testHashLayout() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setLayout(SSDBLayout.HASH);
+        store.setLegacyKeys(false);
+        try {
+            EphemeralLocation cosLocation = new EphemeralLocation() {
+                @Override
+                public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+            };
+            byte[] hashName = bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa");
+            expect(mockJedisPool.getResource()).andReturn(jedis).times(3);
+            expect(jedis.hset(aryEq(hashName), aryEq(bytes("somekey|dyn")), aryEq(bytes("someval|")))).andReturn(1L);
+            expect(jedis.hget(aryEq(hashName), aryEq(bytes("somekey|dyn")))).andReturn(bytes("someval|"));
+            expect(jedis.hget(aryEq(hashName), aryEq(bytes("oldkey")))).andReturn(bytes("oldval|1000"));
+            jedis.close();
+            expectLastCall().times(3);
+            replay(mockJedisPool);
+            replay(jedis);
+            store.set(new EphemeralInput(new EphemeralKey("somekey", "dyn"), "someval"), cosLocation);
+            assertEquals("someval", store.get(new EphemeralKey("somekey", "dyn"), cosLocation).getValue());
+            assertNull("expired hash fields should read as absent", store.get(new EphemeralKey("oldkey"), cosLocation).getValue());
+            verify(mockJedisPool);
+            verify(jedis);
+        } finally {
+            store.setLayout(SSDBLayout.KEYS);
+            store.setLegacyKeys(true);
+        }
+    }
+
+    @Test
+    public void testHashLayoutLegacyKeys() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setLayout(SSDBLayout.HASH);
+        try {
+            EphemeralLocation accountLocation = new EphemeralLocation() {
+                @Override
+                public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+            };
+            byte[] hashName = bytes("account|47e456be-b00a-465e-a1db-4b53e64fa");
+            String encodedKey = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+            expect(mockJedisPool.getResource()).andReturn(jedis).times(3);
+            expect(jedis.hget(aryEq(hashName), aryEq(bytes("zimbraAuthTokens|366778080")))).andReturn(null);
+            expect(jedis.get(aryEq(bytes(encodedKey)))).andReturn(bytes("8.8.0_GA_1234|"));
+            expect(jedis.hdel("account|47e456be-b00a-465e-a1db-4b53e64fa", "zimbraAuthTokens|366778080")).andReturn(0L);
+            expect(jedis.del(encodedKey)).andReturn(1L);
+            expect(jedis.hset(aryEq(hashName), aryEq(bytes("zimbraLastLogonTimestamp")), aryEq(bytes("20160912212057.178Z|")))).andReturn(1L);
+            expect(jedis.del("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp")).andReturn(1L);
+            jedis.close();
+            expectLastCall().times(3);
+            replay(mockJedisPool);
+            replay(jedis);
+            EphemeralKey token = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+            assertEquals("keys not migrated yet should be read", "8.8.0_GA_1234", store.get(token, accountLocation).getValue());
+            store.delete(token, "", accountLocation);
+            store.set(new EphemeralInput(new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp), "20160912212057.178Z"), accountLocation);
+            verify(mockJedisPool);
+            verify(jedis);
+        } finally {
+            store.setLayout(SSDBLayout.KEYS);
+        }
+    }
+
+    @Test
+    public void testGetData() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        try {
+            store.getData(cosLocation);
+            fail("getData should not be supported by the keys layout");
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.UNSUPPORTED_OPERATION, e.getCode());
+        }
+        store.setLayout(SSDBLayout.HASH);
+        store.setLegacyKeys(false);
+        try {
+            Map<byte[], byte[]> fields = new LinkedHashMap<byte[], byte[]>();
+            fields.put(bytes("somekey"), bytes("someval|"));
+            fields.put(bytes("otherkey|dyn"), bytes("otherval|"));
+            fields.put(bytes("oldkey"), bytes("oldval|1000"));
+            expect(mockJedisPool.getResource()).andReturn(jedis).once();
+            expect(jedis.hgetAll(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa")))).andReturn(fields);
+            jedis.close();
+            replay(mockJedisPool);
+            replay(jedis);
+            List<EphemeralKeyValuePair> data = store.getData(cosLocation);
+            assertEquals("expired fields should be skipped", 2, data.size());
+            assertEquals("somekey", data.get(0).getKey().getKey());
+            assertEquals("someval", data.get(0).getValue());
+            assertEquals("otherkey", data.get(1).getKey().getKey());
+            assertEquals("dyn", data.get(1).getKey().getDynamicComponent());
+            assertEquals("otherval", data.get(1).getValue());
+            verify(mockJedisPool);
+            verify(jedis);
+        } finally {
+            store.setLayout(SSDBLayout.KEYS);
+            store.setLegacyKeys(true);
+        }
+    }
+
+    @Test
+    public void testDeleteDataPurge() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        store.setPurgeBatchSize(2);
+        try {
+            EphemeralLocation accountLocation = new EphemeralLocation() {
+                @Override
+                public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+            };
+            SSDBClient client = EasyMock.mock(SSDBClient.class);
+            expect(mockJedisPool.getResource()).andReturn(jedis).times(2);
+            expect(jedis.getClient()).andReturn(client).anyTimes();
+            expect(client.sendCommand(SSDBCommand.KEYS, "account|47e456be-b00a-465e-a1db-4b53e64fa|",
+                    "account|47e456be-b00a-465e-a1db-4b53e64fa}", "2")).andReturn(client);
+            expect(client.readMultiBulkReply()).andReturn(Arrays.asList("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|1",
+                    "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|2"));
+            expect(client.sendCommand(SSDBCommand.MULTI_DEL, "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|1",
+                    "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|2")).andReturn(client);
+            expect(client.readAllReplies()).andReturn(Arrays.<Object>asList(2L));
+            expect(client.sendCommand(SSDBCommand.KEYS, "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|2",
+                    "account|47e456be-b00a-465e-a1db-4b53e64fa}", "2")).andReturn(client);
+            expect(client.readMultiBulkReply()).andReturn(Arrays.asList("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp"));
+            expect(client.sendCommand(SSDBCommand.MULTI_DEL, "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp")).andReturn(client);
+            expect(client.readAllReplies()).andReturn(Arrays.<Object>asList(1L));
+            jedis.close();
+            expectLastCall().times(2);
+            replay(mockJedisPool);
+            replay(jedis);
+            replay(client);
+            store.deleteData(accountLocation);
+            verify(mockJedisPool);
+            verify(jedis);
+            verify(client);
+        } finally {
+            store.setPurgeBatchSize(1000);
+        }
+    }
+
+    @Test
+    public void testGetAsync() throws Exception {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        store.setPool(mockJedisPool);
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).once();
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andReturn(bytes("someval|"));
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        assertEquals("someval", store.getAsync(new EphemeralKey("somekey"), cosLocation).get(5, TimeUnit.SECONDS).getValue());
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testReloadIfChanged() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore.Factory factory = (SSDBEphemeralStore.Factory) SSDBEphemeralStore.getFactory();
+        EphemeralStore store = factory.getStore();
+        assertSame("the store should be created once", store, factory.getStore());
+        assertFalse(factory.reloadIfChanged());
+        Provisioning.getInstance().getConfig().setEphemeralBackendURL("ssdb:localhost:8889");
+        try {
+            assertTrue(factory.reloadIfChanged());
+            EphemeralStore reloaded = factory.getStore();
+            assertNotSame(store, reloaded);
+            assertEquals("localhost:8889", ((SSDBEphemeralStore) reloaded).getShards().get(0).getName());
+        } finally {
+            Provisioning.getInstance().getConfig().setEphemeralBackendURL("ssdb:localhost:8888");
+            factory.reloadIfChanged();
+        }
+    }
+
+    @Test
+    public void testNoRetryOnCommandError() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        EphemeralStore store = SSDBEphemeralStore.getFactory().getStore();
+        assertTrue(store instanceof SSDBEphemeralStore);
+
+        ((SSDBEphemeralStore)store).setPool(mockJedisPool);
+        ((SSDBEphemeralStore)store).setRetryPolicy(new SSDBRetryPolicy(2, 0L, 0L));
+        EphemeralLocation cosLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "cos", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).once();
+        expect(jedis.get(aryEq(bytes("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey")))).andThrow(new JedisDataException("ERR wrong type"));
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        try {
+            store.get(new EphemeralKey("somekey"), cosLocation);
+            fail("command error should not be retried");
+        } catch (ServiceException e) {
+            // expected
+        }
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
     @Test
     public void testDelete() throws ServiceException {
         EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
@@ -126,7 +638,7 @@ public class SSDBEphemeralStoreTest {
             public String[] getLocation() { return new String[] { "domain", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
         };
         expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
-        expect(jedis.set("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD","testV|")).andReturn("testK");
+        expect(jedis.set(aryEq(bytes("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD")), aryEq(bytes("testV|")))).andReturn("testK");
         jedis.close();
         replay(mockJedisPool);
         replay(jedis);
@@ -144,7 +656,7 @@ public class SSDBEphemeralStoreTest {
         EphemeralKey eKey = new EphemeralKey("testK", "testD");
         Long millis = System.currentTimeMillis();
         Expiration exp = new MockAbsoluteExpiration(millis + 2000L);
-        int ttl = (int)(exp.getRelativeMillis()/1000);
+        int ttl = (int)((exp.getRelativeMillis() + 999L)/1000);
         EphemeralInput kv = new EphemeralInput(eKey,"testV", exp);
         ((SSDBEphemeralStore)store).setPool(mockJedisPool);
         EphemeralLocation domainLocation = new EphemeralLocation() {
@@ -153,7 +665,50 @@ public class SSDBEphemeralStoreTest {
         };
         expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
         String val = String.format("testV|%s", exp.getMillis());
-        expect(jedis.setex("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD",ttl,val)).andReturn("testK");
+        expect(jedis.setex(aryEq(bytes("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD")), eq(ttl), aryEq(bytes(val)))).andReturn("testK");
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        store.set(kv, domainLocation);
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testSetSubSecondTTL() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        Expiration exp = new AbsoluteExpiration(System.currentTimeMillis() + 500L);
+        EphemeralInput kv = new EphemeralInput(new EphemeralKey("testK", "testD"), "testV", exp);
+        store.setPool(mockJedisPool);
+        EphemeralLocation domainLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "domain", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
+        String val = String.format("testV|%s", exp.getMillis());
+        expect(jedis.setex(aryEq(bytes("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD")), eq(1), aryEq(bytes(val)))).andReturn("OK");
+        jedis.close();
+        replay(mockJedisPool);
+        replay(jedis);
+        store.set(kv, domainLocation);
+        verify(mockJedisPool);
+        verify(jedis);
+    }
+
+    @Test
+    public void testSetExpired() throws ServiceException {
+        EphemeralStore.setFactory(SSDBEphemeralStore.Factory.class);
+        SSDBEphemeralStore store = (SSDBEphemeralStore) SSDBEphemeralStore.getFactory().getStore();
+        Expiration exp = new AbsoluteExpiration(System.currentTimeMillis() - 1000L);
+        EphemeralInput kv = new EphemeralInput(new EphemeralKey("testK", "testD"), "testV", exp);
+        store.setPool(mockJedisPool);
+        EphemeralLocation domainLocation = new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return new String[] { "domain", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+        };
+        expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
+        expect(jedis.del("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK|testD")).andReturn(1L);
         jedis.close();
         replay(mockJedisPool);
         replay(jedis);
@@ -176,7 +731,7 @@ public class SSDBEphemeralStoreTest {
             public String[] getLocation() { return new String[] { "domain", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
         };
         expect(mockJedisPool.getResource()).andReturn(jedis).atLeastOnce();
-        expect(jedis.set("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK","testV|")).andReturn("testK");
+        expect(jedis.set(aryEq(bytes("domain|47e456be-b00a-465e-a1db-4b53e64fa|testK")), aryEq(bytes("testV|")))).andReturn("testK");
         jedis.close();
         replay(mockJedisPool);
         replay(jedis);
@@ -0,0 +1,83 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SSDBExpiryWheelTest {
+
+    private static final long NOW = 1473761137744L;
+
+    @Test
+    public void testMillisecondPrecision() {
+        SSDBExpiryWheel<String> wheel = new SSDBExpiryWheel<String>(1L, NOW);
+        wheel.schedule("a", NOW + 5L);
+        wheel.schedule("b", NOW + 7L);
+        List<String> expired = new ArrayList<String>();
+        assertEquals(0, wheel.advance(NOW + 4L, expired::add));
+        assertEquals(1, wheel.advance(NOW + 5L, expired::add));
+        assertEquals("a", expired.get(0));
+        assertEquals(1, wheel.advance(NOW + 7L, expired::add));
+        assertEquals("b", expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastExpiration() {
+        SSDBExpiryWheel<String> wheel = new SSDBExpiryWheel<String>(10L, NOW);
+        wheel.schedule("a", NOW - 1000L);
+        List<String> expired = new ArrayList<String>();
+        assertEquals("an expiration in the past should be handed out at the next tick", 1, wheel.advance(NOW + 10L, expired::add));
+    }
+
+    @Test
+    public void testNeverEarly() {
+        SSDBExpiryWheel<String> wheel = new SSDBExpiryWheel<String>(1000L, NOW);
+        wheel.schedule("a", NOW + 5000L);
+        List<String> expired = new ArrayList<String>();
+        assertEquals(0, wheel.advance(NOW + 4999L, expired::add));
+        assertEquals(0, wheel.advance((NOW + 5000L) / 1000L * 1000L, expired::add));
+        assertEquals(1, wheel.advance(NOW + 6000L, expired::add));
+    }
+
+    @Test
+    public void testCascade() {
+        SSDBExpiryWheel<Long> wheel = new SSDBExpiryWheel<Long>(1L, NOW);
+        // spread over all levels
+        long[] deltas = { 1L, 255L, 256L, 257L, 65535L, 65536L, 70000L, 16777217L };
+        for (long delta : deltas) {
+            wheel.schedule(NOW + delta, NOW + delta);
+        }
+        assertEquals(deltas.length, wheel.size());
+        List<Long> expired = new ArrayList<Long>();
+        for (long delta : deltas) {
+            wheel.advance(NOW + delta - 1L, expired::add);
+            for (Long expires : expired) {
+                assertTrue("no item should be handed out early", expires <= NOW + delta - 1L);
+            }
+            wheel.advance(NOW + delta, expired::add);
+            assertEquals("item due at +" + delta + " should be handed out", NOW + delta, (long) expired.get(expired.size() - 1));
+        }
+        assertEquals(deltas.length, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testScheduleFromCallback() {
+        SSDBExpiryWheel<String> wheel = new SSDBExpiryWheel<String>(100L, NOW);
+        wheel.schedule("a", NOW + 100L);
+        List<String> expired = new ArrayList<String>();
+        // NOW is not on a tick boundary, so each item is handed out in the tick after its expiration
+        wheel.advance(NOW + 200L, item -> {
+            expired.add(item);
+            wheel.schedule(item + "a", NOW + 300L);
+        });
+        assertEquals(1, wheel.size());
+        wheel.advance(NOW + 400L, expired::add);
+        assertEquals("aa", expired.get(1));
+    }
+}
@@ -0,0 +1,51 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
+
+public class SSDBFallbackStoreTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDrainAndRestore() {
+        SSDBFallbackStore store = new SSDBFallbackStore(100);
+        store.put(Mutation.set("account|1|a", bytes("x|"), 0));
+        store.put(Mutation.delete("account|1|b"));
+        store.put(Mutation.set("cos|2|a", bytes("y|"), 0));
+        assertArrayEquals(bytes("x|"), store.get("account|1|a").getValue());
+        assertTrue(store.get("account|1|b").isDelete());
+
+        List<Mutation> drained = store.drain(key -> key.startsWith("account|"));
+        assertEquals(2, drained.size());
+        assertNull(store.get("account|1|a"));
+        assertEquals(1, store.size());
+
+        store.put(Mutation.set("account|1|a", bytes("z|"), 0));
+        store.restore(drained);
+        assertArrayEquals("restore should not overwrite a newer write", bytes("z|"), store.get("account|1|a").getValue());
+        assertTrue(store.get("account|1|b").isDelete());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testBounded() {
+        SSDBFallbackStore store = new SSDBFallbackStore(2);
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            store.put(Mutation.set(key, bytes("v|"), 0));
+        }
+        assertTrue(store.size() <= 2);
+    }
+}
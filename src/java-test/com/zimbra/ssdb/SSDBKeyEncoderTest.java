@@ -0,0 +1,49 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+
+public class SSDBKeyEncoderTest {
+
+    private final SSDBKeyEncoder encoder = new SSDBKeyEncoder();
+
+    private static EphemeralLocation location(String... parts) {
+        return new EphemeralLocation() {
+            @Override
+            public String[] getLocation() { return parts; }
+        };
+    }
+
+    private void assertEncodings(String expected, EphemeralKey key, EphemeralLocation location) {
+        assertEquals(expected, encoder.encodeKey(key, location));
+    }
+
+    @Test
+    public void testEncodeKey() {
+        EphemeralLocation account = location("account", "47e456be-b00a-465e-a1db-4b53e64fa");
+        assertEncodings("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp",
+                new EphemeralKey("zimbraLastLogonTimestamp"), account);
+        assertEncodings("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080",
+                new EphemeralKey("zimbraAuthTokens", "366778080"), account);
+        assertEncodings("someType|id|attr", new EphemeralKey("attr"), location("someType", "id"));
+        assertEquals("account|47e456be-b00a-465e-a1db-4b53e64fa|", SSDBKeyEncoder.encodeLocation(account));
+    }
+
+    @Test
+    public void testEncodeNonAsciiKey() {
+        assertEncodings("account|id|attr|caf\u00e9 \u20ac \ud83d\ude00",
+                new EphemeralKey("attr", "caf\u00e9 \u20ac \ud83d\ude00"), location("account", "id"));
+    }
+
+    @Test
+    public void testEncodeLongKey() {
+        String longPart = Strings.repeat("x", 5000);
+        assertEncodings("account|id|attr|" + longPart, new EphemeralKey("attr", longPart), location("account", "id"));
+        assertEncodings("cos|id|attr", new EphemeralKey("attr"), location("cos", "id"));
+    }
+}
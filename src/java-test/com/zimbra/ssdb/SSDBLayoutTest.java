@@ -0,0 +1,36 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SSDBLayoutTest {
+
+    @Test
+    public void testHashName() {
+        assertEquals("account|47e456be-b00a-465e-a1db-4b53e64fa",
+                SSDBLayout.hashName("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080"));
+        assertEquals("cos|47e456be-b00a-465e-a1db-4b53e64fa",
+                SSDBLayout.hashName("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey"));
+    }
+
+    @Test
+    public void testHashField() {
+        assertEquals("zimbraAuthTokens|366778080",
+                SSDBLayout.hashField("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080"));
+        assertEquals("somekey", SSDBLayout.hashField("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey"));
+        assertEquals("", SSDBLayout.hashField("cos|47e456be-b00a-465e-a1db-4b53e64fa"));
+    }
+
+    @Test
+    public void testIsAttributeKey() {
+        assertTrue(SSDBLayoutMigrator.isAttributeKey("cos|47e456be-b00a-465e-a1db-4b53e64fa|somekey"));
+        assertTrue(SSDBLayoutMigrator.isAttributeKey("account|1|zimbraAuthTokens|366778080"));
+        assertFalse("hashes should not be migrated", SSDBLayoutMigrator.isAttributeKey("cos|47e456be-b00a-465e-a1db-4b53e64fa"));
+        assertFalse(SSDBLayoutMigrator.isAttributeKey("cos|47e456be-b00a-465e-a1db-4b53e64fa|"));
+        assertFalse(SSDBLayoutMigrator.isAttributeKey("cos||somekey"));
+        assertFalse(SSDBLayoutMigrator.isAttributeKey("somekey"));
+    }
+}
@@ -0,0 +1,32 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public class SSDBMetricsTest {
+
+    @Test
+    public void testRetiredMetricsKeepReplacementBeans() throws Exception {
+        MailboxTestUtil.initServer("../zm-mailbox/store/");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SSDBMetrics.JMX_DOMAIN + ":type=Operation,name=" + SSDBOperation.GET.getName());
+        SSDBMetrics retired = new SSDBMetrics();
+        retired.register(Collections.<SSDBNode>emptyList());
+        SSDBMetrics replacement = new SSDBMetrics();
+        replacement.register(Collections.<SSDBNode>emptyList());
+        retired.unregister();
+        assertTrue("the retired store should not remove the beans of the store that replaced it", server.isRegistered(name));
+        replacement.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+}
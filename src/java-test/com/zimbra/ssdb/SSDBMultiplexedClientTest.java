@@ -0,0 +1,166 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class SSDBMultiplexedClientTest {
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private SSDBMultiplexedClient client;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Answers GET with the key itself, so that every reply can be matched with its command,
+     * SET with OK, "GET missing" with nil and anything else with an error
+     */
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket socket = server.accept();
+                 InputStream in = new BufferedInputStream(socket.getInputStream());
+                 OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command == null) {
+                        return;
+                    }
+                    String reply;
+                    if ("GET".equals(command.get(0)) && "missing".equals(command.get(1))) {
+                        reply = "$-1\r\n";
+                    } else if ("GET".equals(command.get(0))) {
+                        reply = "$" + command.get(1).length() + "\r\n" + command.get(1) + "\r\n";
+                    } else if ("SET".equals(command.get(0))) {
+                        reply = "+OK\r\n";
+                    } else {
+                        reply = "-ERR unknown command\r\n";
+                    }
+                    out.write(reply.getBytes(StandardCharsets.UTF_8));
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        client = new SSDBMultiplexedClient("127.0.0.1", server.getLocalPort(), 1, 1000, 5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        if (in.read() != '*') {
+            return null;
+        }
+        int count = Integer.parseInt(readLine(in));
+        List<String> args = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            in.read();
+            byte[] arg = new byte[Integer.parseInt(readLine(in))];
+            int n = 0;
+            while (n < arg.length) {
+                n += in.read(arg, n, arg.length - n);
+            }
+            in.read();
+            in.read();
+            args.add(new String(arg, StandardCharsets.UTF_8));
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            sb.append((char) b);
+        }
+        in.read();
+        return sb.toString();
+    }
+
+    @Test
+    public void testCommands() {
+        assertEquals("OK", client.set(bytes("key"), bytes("value")));
+        assertArrayEquals(bytes("key"), client.get(bytes("key")));
+        assertNull(client.get(bytes("missing")));
+        try {
+            client.del("key");
+            fail("error replies should be thrown");
+        } catch (JedisDataException e) {
+            // expected
+        }
+        assertArrayEquals("the connection should survive an error reply", bytes("key2"), client.get(bytes("key2")));
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneConnection() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 16; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String key = "account|" + thread + "|zimbraAuthTokens|" + i;
+                        assertArrayEquals("replies should be matched with their commands", bytes(key), client.get(bytes(key)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testServerGone() throws Exception {
+        assertArrayEquals(bytes("key"), client.get(bytes("key")));
+        server.close();
+        serverThread.interrupt();
+        client.close();
+        try {
+            client.get(bytes("key"));
+            fail("calls should fail once the node cannot be reached");
+        } catch (JedisConnectionException e) {
+            // expected
+        }
+    }
+}
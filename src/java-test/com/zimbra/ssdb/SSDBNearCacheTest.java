@@ -0,0 +1,74 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+
+public class SSDBNearCacheTest {
+
+    private SSDBNearCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SSDBNearCache(100, 60000L, Arrays.asList(Provisioning.A_zimbraAuthTokens));
+    }
+
+    @Test
+    public void testCacheable() {
+        assertTrue(cache.isCacheable(new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080")));
+        assertFalse(cache.isCacheable(new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp)));
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        String key = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        assertNull(cache.get(key));
+        cache.put(key, "8.7.0_GA_1659", null, cache.startLookup());
+        assertEquals("8.7.0_GA_1659", cache.get(key));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testEncodedExpiration() {
+        String key = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        cache.put(key, "8.7.0_GA_1659", System.currentTimeMillis() - 1000L, cache.startLookup());
+        assertNull("expired value should not be cached", cache.get(key));
+        cache.put(key, "8.7.0_GA_1659", System.currentTimeMillis() + 60000L, cache.startLookup());
+        assertEquals("8.7.0_GA_1659", cache.get(key));
+    }
+
+    @Test
+    public void testInvalidate() {
+        String key1 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        String key2 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|456779043";
+        String key3 = "account|58f567cf-c11b-576f-b2ec-5c64f75gb|zimbraAuthTokens|437745690";
+        cache.put(key1, "8.7.0_GA_1659", null, cache.startLookup());
+        cache.put(key2, "8.7.0_GA_1659", null, cache.startLookup());
+        cache.put(key3, "8.7.0_GA_1659", null, cache.startLookup());
+        cache.invalidate(key1);
+        assertNull(cache.get(key1));
+        cache.invalidatePrefix("account|47e456be-b00a-465e-a1db-4b53e64fa|");
+        assertNull(cache.get(key2));
+        assertEquals("8.7.0_GA_1659", cache.get(key3));
+    }
+
+    @Test
+    public void testStaleTicket() {
+        String key = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+        long ticket = cache.startLookup();
+        // a concurrent set() or delete() of the key after the lookup read it
+        cache.invalidate(key);
+        cache.put(key, "8.7.0_GA_1659", null, ticket);
+        assertNull("lookup that raced with an invalidation should not be cached", cache.get(key));
+    }
+}
@@ -0,0 +1,60 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.ForwardingCache;
+import com.zimbra.cs.account.Provisioning;
+
+public class SSDBNegativeCacheTest {
+
+    private static final String KEY = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraCsrfTokenData|3822663c52f27487f172055ddc0918aa";
+    private SSDBNegativeCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SSDBNegativeCache(100, 60000L, Arrays.asList(Provisioning.A_zimbraCsrfTokenData));
+    }
+
+    @Test
+    public void testPutAbsent() {
+        assertFalse(cache.isAbsent(KEY));
+        cache.putAbsent(KEY, cache.startLookup());
+        assertTrue(cache.isAbsent(KEY));
+        cache.invalidate(KEY);
+        assertFalse(cache.isAbsent(KEY));
+    }
+
+    @Test
+    public void testStaleTicket() {
+        long ticket = cache.startLookup();
+        // a concurrent set() of any key invalidates lookups that started before it
+        cache.invalidate(KEY);
+        cache.putAbsent(KEY, ticket);
+        assertFalse("lookup that raced with an invalidation should not be cached", cache.isAbsent(KEY));
+    }
+
+    @Test
+    public void testInvalidateDuringPut() {
+        SSDBNegativeCache[] racing = new SSDBNegativeCache[1];
+        Cache<String, Boolean> delegate = CacheBuilder.newBuilder().<String, Boolean>build();
+        Cache<String, Boolean> interleaving = new ForwardingCache.SimpleForwardingCache<String, Boolean>(delegate) {
+            @Override
+            public void put(String key, Boolean value) {
+                // a set() that lands after the ticket was checked but before the entry is stored
+                racing[0].invalidate(key);
+                super.put(key, value);
+            }
+        };
+        racing[0] = new SSDBNegativeCache(interleaving, Arrays.asList(Provisioning.A_zimbraCsrfTokenData));
+        racing[0].putAbsent(KEY, racing[0].startLookup());
+        assertFalse("a token issued during the put should not stay cached as absent", racing[0].isAbsent(KEY));
+    }
+}
@@ -0,0 +1,185 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SSDBOffHeapTableTest {
+
+    /** taken right before each test, since the expiration wheel starts at the time the table is created */
+    private long now;
+
+    @Before
+    public void setUp() {
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(1024L * 1024L, 1000L);
+        assertTrue(table.put("account|1|zimbraAuthTokens|123", "8.8.0_GA_1234", 0L));
+        assertEquals("8.8.0_GA_1234", table.get("account|1|zimbraAuthTokens|123", now));
+        assertNull(table.get("account|1|zimbraAuthTokens|456", now));
+        assertTrue(table.put("account|1|zimbraAuthTokens|123", "8.8.1_GA_1", 0L));
+        assertEquals("8.8.1_GA_1", table.get("account|1|zimbraAuthTokens|123", now));
+        assertEquals(1L, table.size());
+        assertTrue(table.remove("account|1|zimbraAuthTokens|123"));
+        assertFalse(table.remove("account|1|zimbraAuthTokens|123"));
+        assertNull(table.get("account|1|zimbraAuthTokens|123", now));
+        assertEquals("all memory should be given back", 0L, table.getUsedBytes());
+    }
+
+    @Test
+    public void testManyKeys() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(64L * 1024L * 1024L, 1000L);
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(table.put("account|" + i + "|zimbraLastLogonTimestamp", String.valueOf(i), 0L));
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            assertTrue(table.remove("account|" + i + "|zimbraLastLogonTimestamp"));
+        }
+        assertEquals(10000L, table.size());
+        for (int i = 0; i < 20000; i++) {
+            String value = table.get("account|" + i + "|zimbraLastLogonTimestamp", now);
+            if (i % 2 == 0) {
+                assertNull(value);
+            } else {
+                assertEquals("removing keys should not hide the others", String.valueOf(i), value);
+            }
+        }
+    }
+
+    @Test
+    public void testExpiration() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(1024L * 1024L, 1000L);
+        table.put("account|1|zimbraAuthTokens|123", "v1", now + 5000L);
+        table.put("account|1|zimbraAuthTokens|456", "v2", now + 60000L);
+        table.put("account|1|zimbraLastLogonTimestamp", "v3", 0L);
+        assertEquals("v1", table.get("account|1|zimbraAuthTokens|123", now));
+        assertNull("expired values should not be returned", table.get("account|1|zimbraAuthTokens|123", now + 5000L));
+        assertEquals(now + 60000L, table.getExpires("account|1|zimbraAuthTokens|456", now));
+        assertEquals(0L, table.getExpires("account|1|zimbraLastLogonTimestamp", now));
+        assertEquals(1, table.expire(now + 6000L));
+        assertEquals(2L, table.size());
+        assertEquals(1, table.expire(now + 61000L));
+        assertEquals("v3", table.get("account|1|zimbraLastLogonTimestamp", now + 61000L));
+    }
+
+    @Test
+    public void testExpirationOfReplacedValue() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(1024L * 1024L, 1000L);
+        table.put("account|1|zimbraAuthTokens|123", "v1", now + 5000L);
+        table.put("account|1|zimbraAuthTokens|123", "v2", now + 60000L);
+        assertEquals("the replaced value's timer should be ignored", 0, table.expire(now + 6000L));
+        assertEquals("v2", table.get("account|1|zimbraAuthTokens|123", now + 6000L));
+    }
+
+    @Test
+    public void testRemovePrefix() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(64L * 1024L * 1024L, 1000L);
+        for (int i = 0; i < 1000; i++) {
+            table.put("account|1|zimbraAuthTokens|" + i, "v", 0L);
+            table.put("account|2|zimbraAuthTokens|" + i, "v", 0L);
+        }
+        assertEquals(1000, table.removePrefix("account|1|"));
+        assertEquals(1000L, table.size());
+        for (int i = 0; i < 1000; i++) {
+            assertNull(table.get("account|1|zimbraAuthTokens|" + i, now));
+            assertEquals("v", table.get("account|2|zimbraAuthTokens|" + i, now));
+        }
+    }
+
+    @Test
+    public void testMemoryLimit() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(100L, 1000L);
+        assertTrue(table.put("account|1|zimbraLastLogonTimestamp", "20160912212057.178Z", 0L));
+        assertFalse("writes beyond the limit should be refused", table.put("account|2|zimbraLastLogonTimestamp", "20160912212057.178Z", 0L));
+        assertTrue(table.remove("account|1|zimbraLastLogonTimestamp"));
+        assertTrue(table.put("account|2|zimbraLastLogonTimestamp", "20160912212057.178Z", 0L));
+    }
+
+    @Test
+    public void testOverwriteAtLimit() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(100L, 1000L);
+        assertTrue(table.put("account|1|zimbraLastLogonTimestamp", "20160912212057.178Z", 0L));
+        assertTrue("replacing a value should not count the old one", table.put("account|1|zimbraLastLogonTimestamp", "20160913212057.178Z", 0L));
+        assertTrue(table.put("account|1|zimbraLastLogonTimestamp", "x", 0L));
+        assertEquals("x", table.get("account|1|zimbraLastLogonTimestamp", now));
+        assertEquals(24L + 34L + 1L, table.getUsedBytes());
+    }
+
+    @Test
+    public void testSlabsAreShared() throws IOException {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(64L * 1024L * 1024L, 1000L);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(table.put("account|" + i + "|zimbraLastLogonTimestamp", "20160912212057.178Z", 0L));
+        }
+        long slabBytes = table.getSlabBytes();
+        assertEquals("1000 small records should fit in one slab", 256L * 1024L, slabBytes);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(table.remove("account|" + i + "|zimbraLastLogonTimestamp"));
+            assertTrue(table.put("account|" + i + "|zimbraLastLogonTimestamp", "20160913212057.178Z", 0L));
+        }
+        assertEquals("freed chunks should be reused", slabBytes, table.getSlabBytes());
+    }
+
+    @Test
+    public void testRemovePrefixMatchesJournal() throws Exception {
+        SSDBOffHeapTable table = new SSDBOffHeapTable(64L * 1024L * 1024L, 1000L);
+        List<String[]> journal = Collections.synchronizedList(new ArrayList<String[]>());
+        table.setJournal(new SSDBOffHeapTable.Journal() {
+            @Override
+            public void set(String key, String value, long expires) {
+                journal.add(new String[] { "set", key, value });
+            }
+
+            @Override
+            public void delete(String key) {
+                journal.add(new String[] { "del", key });
+            }
+
+            @Override
+            public void deletePrefix(String prefix) {
+                journal.add(new String[] { "delprefix", prefix });
+            }
+        });
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 20000; i++) {
+                    table.put("account|1|zimbraAuthTokens|" + (i % 500), String.valueOf(i), 0L);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            table.removePrefix("account|1|");
+        }
+        writer.join();
+        SSDBOffHeapTable replayed = new SSDBOffHeapTable(64L * 1024L * 1024L, 1000L);
+        for (String[] change : journal) {
+            if (change[0].equals("set")) {
+                replayed.put(change[1], change[2], 0L);
+            } else if (change[0].equals("delprefix")) {
+                replayed.removePrefix(change[1]);
+            }
+        }
+        Map<String, String> expected = new HashMap<String, String>();
+        replayed.forEach(now, (key, value, expires) -> expected.put(key, value));
+        Map<String, String> actual = new HashMap<String, String>();
+        table.forEach(now, (key, value, expires) -> actual.put(key, value));
+        assertEquals("replaying the journal should give the table", expected, actual);
+    }
+}
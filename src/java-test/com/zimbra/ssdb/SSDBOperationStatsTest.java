@@ -0,0 +1,43 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SSDBOperationStatsTest {
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, SSDBOperationStats.bucket(0L));
+        assertEquals(1, SSDBOperationStats.bucket(1L));
+        assertEquals(2, SSDBOperationStats.bucket(2L));
+        assertEquals(2, SSDBOperationStats.bucket(3L));
+        assertEquals(11, SSDBOperationStats.bucket(1500L));
+        assertEquals(SSDBOperationStats.BUCKETS - 1, SSDBOperationStats.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRecord() {
+        SSDBOperationStats stats = new SSDBOperationStats();
+        assertEquals(0L, stats.getMedianLatencyMicros());
+        for (int i = 0; i < 98; i++) {
+            stats.record(TimeUnit.MICROSECONDS.toNanos(100L), false);
+        }
+        stats.record(TimeUnit.MILLISECONDS.toNanos(5L), true);
+        stats.record(TimeUnit.MILLISECONDS.toNanos(20L), true);
+        assertEquals(100L, stats.getCount());
+        assertEquals(2L, stats.getErrorCount());
+        assertEquals(20000L, stats.getMaxLatencyMicros());
+        assertEquals(128L, stats.getMedianLatencyMicros());
+        assertEquals(8192L, stats.get99thPercentileLatencyMicros());
+        assertEquals(348.0, stats.getMeanLatencyMicros(), 0.001);
+        long total = 0L;
+        for (long n : stats.getLatencyHistogram()) {
+            total += n;
+        }
+        assertEquals(100L, total);
+        assertEquals(98L, stats.getLatencyHistogram()[7]);
+    }
+}
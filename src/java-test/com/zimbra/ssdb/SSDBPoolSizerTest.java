@@ -0,0 +1,65 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SSDBPoolSizerTest {
+
+    private SSDBPoolSizer sizer;
+    /** with no tuning bounds set */
+    private SSDBPoolSizer unbounded;
+
+    @Before
+    public void setUp() throws Exception {
+        sizer = new SSDBPoolSizer(() -> Collections.<SSDBNode>emptyList(), 2, 64, 5L, 60000L);
+        unbounded = new SSDBPoolSizer(() -> Collections.<SSDBNode>emptyList(), 0, 0, 5L, 60000L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sizer.shutdown();
+        unbounded.shutdown();
+    }
+
+    @Test
+    public void testGrow() {
+        assertEquals("waiting threads should grow the pool", 20, sizer.newMaxTotal(16, 16, 16, 0, 3, 0L));
+        assertEquals("slow borrows should grow an exhausted pool", 20, sizer.newMaxTotal(16, 16, 16, 0, 0, 5L));
+        assertEquals("slow borrows alone should not grow a pool with free connections", 16, sizer.newMaxTotal(16, 16, 10, 0, 0, 5L));
+        assertEquals("small pools should still grow", 4, sizer.newMaxTotal(3, 3, 3, 0, 1, 0L));
+        assertEquals("pools should not grow beyond the maximum", 64, sizer.newMaxTotal(60, 60, 60, 0, 1, 0L));
+    }
+
+    @Test
+    public void testShrink() {
+        assertEquals(36, sizer.newMaxTotal(40, 40, 2, 30, 0, 0L));
+        assertEquals("small pools should still shrink", 4, sizer.newMaxTotal(5, 5, 0, 5, 0, 0L));
+        assertEquals("pools should not shrink below the minimum", 2, sizer.newMaxTotal(2, 2, 0, 2, 0, 0L));
+    }
+
+    @Test
+    public void testIdleWithHighMeanWait() {
+        // the mean borrow wait still reflects a burst that is long over
+        assertEquals("an idle pool should shrink whatever the mean borrow wait", 36, sizer.newMaxTotal(16, 40, 0, 40, 0, 50L));
+        assertEquals(16, unbounded.newMaxTotal(16, 16, 0, 16, 0, 50L));
+    }
+
+    @Test
+    public void testSteady() {
+        assertEquals(16, sizer.newMaxTotal(16, 16, 10, 4, 0, 1L));
+    }
+
+    @Test
+    public void testConfiguredSize() {
+        assertEquals("the configured size should be the floor", 200, unbounded.newMaxTotal(200, 200, 0, 200, 0, 0L));
+        assertEquals(200, unbounded.newMaxTotal(200, 210, 0, 210, 0, 0L));
+        assertEquals("pools configured above the default maximum should keep their size", 200, unbounded.newMaxTotal(200, 200, 200, 0, 1, 0L));
+        assertEquals(SSDBPoolSizer.DEFAULT_MAX_SIZE, unbounded.newMaxTotal(8, 120, 120, 0, 1, 0L));
+        assertEquals("set bounds should win over the configured size", 64, sizer.newMaxTotal(200, 200, 200, 0, 1, 0L));
+    }
+}
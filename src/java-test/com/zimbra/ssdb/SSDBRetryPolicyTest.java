@@ -0,0 +1,36 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class SSDBRetryPolicyTest {
+
+    @Test
+    public void testShouldRetry() {
+        SSDBRetryPolicy policy = new SSDBRetryPolicy(3, 10L, 100L);
+        assertTrue(policy.shouldRetry(new JedisConnectionException("connection reset"), 1));
+        assertTrue(policy.shouldRetry(new JedisConnectionException("connection reset"), 2));
+        assertFalse("attempts are exhausted", policy.shouldRetry(new JedisConnectionException("connection reset"), 3));
+        assertFalse("command errors are not retried", policy.shouldRetry(new JedisDataException("ERR wrong type"), 1));
+    }
+
+    @Test
+    public void testBackoff() {
+        SSDBRetryPolicy policy = new SSDBRetryPolicy(10, 10L, 100L);
+        for (int i = 0; i < 100; i++) {
+            long first = policy.getBackoffMillis(1);
+            assertTrue("first backoff " + first, first >= 5L && first <= 10L);
+            long third = policy.getBackoffMillis(3);
+            assertTrue("third backoff " + third, third >= 20L && third <= 40L);
+            long capped = policy.getBackoffMillis(9);
+            assertTrue("capped backoff " + capped, capped >= 50L && capped <= 100L);
+        }
+        assertEquals(0L, new SSDBRetryPolicy(2, 0L, 0L).getBackoffMillis(1));
+    }
+}
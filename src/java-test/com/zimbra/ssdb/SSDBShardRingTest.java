@@ -0,0 +1,57 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SSDBShardRingTest {
+
+    private SSDBShardRing ring;
+
+    @Before
+    public void setUp() throws Exception {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        ring = new SSDBShardRing(Arrays.asList(new SSDBShard("ssdb1", 8888, config),
+                new SSDBShard("ssdb2", 8888, config), new SSDBShard("ssdb3", 8888, config)));
+    }
+
+    @Test
+    public void testRoutingKey() {
+        assertEquals("account|47e456be-b00a-465e-a1db-4b53e64fa",
+                SSDBShardRing.getRoutingKey("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080"));
+        assertEquals("account|47e456be-b00a-465e-a1db-4b53e64fa",
+                SSDBShardRing.getRoutingKey("account|47e456be-b00a-465e-a1db-4b53e64fa|"));
+        assertEquals("somekey", SSDBShardRing.getRoutingKey("somekey"));
+    }
+
+    @Test
+    public void testAccountIsCoLocated() {
+        SSDBShard shard = ring.getShard("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080");
+        assertSame(shard, ring.getShard("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraCsrfTokenData|3822663c52f27487f172055ddc0918aa"));
+        assertSame(shard, ring.getShard("account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp"));
+        assertSame(shard, ring.getShard("account|47e456be-b00a-465e-a1db-4b53e64fa|"));
+    }
+
+    @Test
+    public void testDistribution() {
+        Map<SSDBShard, Integer> counts = new HashMap<SSDBShard, Integer>();
+        for (int i = 0; i < 3000; i++) {
+            SSDBShard shard = ring.getShard("account|" + UUID.randomUUID().toString() + "|zimbraLastLogonTimestamp");
+            Integer count = counts.get(shard);
+            counts.put(shard, count == null ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("keys should be spread roughly evenly, got " + counts, count > 500);
+        }
+    }
+}
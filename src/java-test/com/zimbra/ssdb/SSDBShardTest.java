@@ -0,0 +1,97 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+public class SSDBShardTest {
+
+    private SSDBNode replica1;
+    private SSDBNode replica2;
+    private SSDBShard shard;
+
+    @Before
+    public void setUp() throws Exception {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        replica1 = new SSDBNode("slave1", 8888, config);
+        replica2 = new SSDBNode("slave2", 8888, config);
+        shard = new SSDBShard("master", 8888, config, Arrays.asList(replica1, replica2));
+    }
+
+    @Test
+    public void testPrimary() {
+        assertSame(shard, shard.getReadNode(SSDBReadPolicy.PRIMARY));
+    }
+
+    @Test
+    public void testReplicaPreferred() {
+        SSDBNode first = shard.getReadNode(SSDBReadPolicy.REPLICA_PREFERRED);
+        SSDBNode second = shard.getReadNode(SSDBReadPolicy.REPLICA_PREFERRED);
+        assertNotSame(shard, first);
+        assertNotSame(shard, second);
+        assertNotSame("reads should rotate over the replicas", first, second);
+    }
+
+    @Test
+    public void testNearest() {
+        shard.recordPingLatency(500000L);
+        replica1.recordPingLatency(900000L);
+        replica2.recordPingLatency(200000L);
+        assertSame(replica2, shard.getReadNode(SSDBReadPolicy.NEAREST));
+        replica2.recordPingLatency(5000000L);
+        replica2.recordPingLatency(5000000L);
+        assertSame(shard, shard.getReadNode(SSDBReadPolicy.NEAREST));
+    }
+
+    @Test
+    public void testNearestIgnoresUnmeasuredNodes() {
+        assertSame("reads should stay on the master until a node is measured", shard, shard.getReadNode(SSDBReadPolicy.NEAREST));
+        shard.recordPingLatency(500000L);
+        replica1.recordPingLatency(200000L);
+        assertSame("a node that was not pinged yet should not win", replica1, shard.getReadNode(SSDBReadPolicy.NEAREST));
+    }
+
+    @Test
+    public void testNearestIgnoresCallLatency() {
+        shard.recordPingLatency(200000L);
+        replica1.recordPingLatency(500000L);
+        // slow writes and multi_dels on the master say nothing about how fast it answers reads
+        shard.recordLatency(9000000L);
+        replica1.recordLatency(100000L);
+        assertSame(shard, shard.getReadNode(SSDBReadPolicy.NEAREST));
+    }
+
+    @Test
+    public void testNoReplicas() throws Exception {
+        SSDBShard single = new SSDBShard("master", 8888, new GenericObjectPoolConfig());
+        assertSame(single, single.getReadNode(SSDBReadPolicy.REPLICA_PREFERRED));
+        assertSame(single, single.getReadNode(SSDBReadPolicy.NEAREST));
+    }
+
+    @Test
+    public void testCallPermits() throws Exception {
+        assertNull("calls should be unbounded by default", shard.acquireCallPermit(0L));
+        shard.setMaxConcurrentCalls(1);
+        Semaphore permits = shard.acquireCallPermit(0L);
+        assertNotNull(permits);
+        try {
+            shard.acquireCallPermit(10L);
+            fail("a second concurrent call should time out");
+        } catch (ServiceException e) {
+            // expected
+        }
+        permits.release();
+        assertNotNull(shard.acquireCallPermit(0L));
+    }
+}
@@ -0,0 +1,40 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SSDBSlabAllocatorTest {
+
+    @Test
+    public void testAllocateAndFree() {
+        SSDBSlabAllocator slabs = new SSDBSlabAllocator(1024L * 1024L);
+        long a = slabs.allocate(100);
+        long b = slabs.allocate(100);
+        assertNotEquals(SSDBSlabAllocator.NONE, a);
+        assertNotEquals(a, b);
+        assertEquals("chunks of one class should share a slab", 1, slabs.getSlabCount());
+        assertTrue(slabs.chunkSize(a) >= 100);
+        assertTrue(slabs.fits(a, 99));
+        assertFalse(slabs.fits(a, 1000));
+        slabs.free(a);
+        assertEquals("a freed chunk should be handed out again", a, slabs.allocate(110));
+        slabs.allocate(1000);
+        assertEquals("another class should get a slab of its own", 2, slabs.getSlabCount());
+    }
+
+    @Test
+    public void testLimit() {
+        SSDBSlabAllocator slabs = new SSDBSlabAllocator(100L);
+        assertEquals(SSDBSlabAllocator.NONE, slabs.allocate(slabs.getSlabSize() + 1));
+        int allocated = 0;
+        while (slabs.allocate(60) != SSDBSlabAllocator.NONE) {
+            allocated++;
+        }
+        assertTrue(allocated > 0);
+        assertEquals("slabs should run out", allocated, slabs.getSlabCount());
+    }
+}
@@ -0,0 +1,195 @@
+package com.zimbra.ssdb;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+public class SSDBSweeperTest {
+
+    private static final String KEY1 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+    private static final String KEY2 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778081";
+    private static final String KEY3 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp";
+    private static final long NOW = 1473761137744L;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Response<byte[]> response(byte[] value) {
+        Response<byte[]> response = EasyMock.mock(Response.class);
+        expect(response.get()).andReturn(value);
+        replay(response);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Response<Long> longResponse(Long value) {
+        Response<Long> response = EasyMock.mock(Response.class);
+        expect(response.get()).andReturn(value);
+        replay(response);
+        return response;
+    }
+
+    @Test
+    public void testIsExpired() {
+        assertTrue(SSDBSweeper.isExpired(KEY1, bytes("8.7.0_GA_1659|" + (NOW - 1)), NOW));
+        assertTrue(SSDBSweeper.isExpired(KEY1, bytes("8.7.0_GA_1659|" + NOW), NOW));
+        assertFalse(SSDBSweeper.isExpired(KEY1, bytes("8.7.0_GA_1659|" + (NOW + 1)), NOW));
+        assertFalse("values without expiration never expire", SSDBSweeper.isExpired(KEY3, bytes("20160912212057.178Z|"), NOW));
+        assertTrue(SSDBSweeper.isExpired(KEY1, SSDBValueCodec.encode(SSDBValueFormat.BINARY, "8.7.0_GA_1659", NOW - 1), NOW));
+        assertFalse("undecodable values should be left alone", SSDBSweeper.isExpired(KEY1, new byte[] { (byte) 0xFF, 0x7F }, NOW));
+    }
+
+    @Test
+    public void testSweepPage() {
+        Jedis jedis = EasyMock.mock(Jedis.class);
+        SSDBClient client = EasyMock.mock(SSDBClient.class);
+        Pipeline pipeline = EasyMock.mock(Pipeline.class);
+        Pipeline deletes = EasyMock.mock(Pipeline.class);
+        expect(jedis.getClient()).andReturn(client).anyTimes();
+        expect(jedis.pipelined()).andReturn(pipeline).andReturn(deletes);
+        expect(client.sendCommand(SSDBCommand.KEYS, "", "", "4")).andReturn(client);
+        expect(client.readMultiBulkReply()).andReturn(Arrays.asList(KEY1, KEY2, KEY3, SSDBSweeper.CURSOR_KEY));
+        expect(pipeline.get(aryEq(bytes(KEY1)))).andReturn(response(bytes("8.7.0_GA_1659|" + (NOW - 1))));
+        expect(pipeline.get(aryEq(bytes(KEY2)))).andReturn(response(bytes("8.7.0_GA_1659|" + (NOW + 1))));
+        expect(pipeline.get(aryEq(bytes(KEY3)))).andReturn(response(bytes("20160912212057.178Z|")));
+        pipeline.sync();
+        expect(deletes.get(aryEq(bytes(KEY1)))).andReturn(response(bytes("8.7.0_GA_1659|" + (NOW - 1))));
+        expect(deletes.ttl(aryEq(bytes(KEY1)))).andReturn(longResponse(-1L));
+        expect(deletes.del(aryEq(bytes(KEY1)))).andReturn(null);
+        deletes.sync();
+        replay(jedis);
+        replay(client);
+        replay(pipeline);
+        replay(deletes);
+        SSDBSweeper.Page page = SSDBSweeper.sweepPage(jedis, SSDBLayout.KEYS, "", "", 4, NOW);
+        assertEquals(SSDBSweeper.CURSOR_KEY, page.lastKey);
+        assertEquals(4, page.examined);
+        assertEquals(1, page.expired);
+        verify(jedis);
+        verify(client);
+        verify(pipeline);
+        verify(deletes);
+    }
+
+    @Test
+    public void testLease() {
+        SSDBSweeper sweeper = new SSDBSweeper(Collections::emptyList, () -> SSDBLayout.KEYS, 100, 100, 3600000L, 600);
+        Jedis jedis = EasyMock.mock(Jedis.class);
+        // taken
+        expect(jedis.setnx(EasyMock.eq(SSDBSweeper.LEASE_KEY), EasyMock.anyString())).andReturn(1L);
+        expect(jedis.expire(SSDBSweeper.LEASE_KEY, 600)).andReturn(1L);
+        // held by another sweeper
+        expect(jedis.setnx(EasyMock.eq(SSDBSweeper.LEASE_KEY), EasyMock.anyString())).andReturn(0L);
+        expect(jedis.get(SSDBSweeper.LEASE_KEY)).andReturn("1234@mailbox2.example.com");
+        expect(jedis.ttl(SSDBSweeper.LEASE_KEY)).andReturn(300L);
+        // left without a time to live
+        expect(jedis.setnx(EasyMock.eq(SSDBSweeper.LEASE_KEY), EasyMock.anyString())).andReturn(0L);
+        expect(jedis.get(SSDBSweeper.LEASE_KEY)).andReturn("1234@mailbox2.example.com");
+        expect(jedis.ttl(SSDBSweeper.LEASE_KEY)).andReturn(-1L);
+        expect(jedis.expire(SSDBSweeper.LEASE_KEY, 600)).andReturn(1L);
+        replay(jedis);
+        try {
+            assertTrue(sweeper.takeLease(jedis));
+            assertFalse("a shard should be swept by one server at a time", sweeper.takeLease(jedis));
+            assertFalse(sweeper.takeLease(jedis));
+            verify(jedis);
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeleteFieldsIfExpired() {
+        String hashName = "account|47e456be-b00a-465e-a1db-4b53e64fa";
+        Jedis jedis = EasyMock.mock(Jedis.class);
+        Pipeline deletes = EasyMock.mock(Pipeline.class);
+        Pipeline restores = EasyMock.mock(Pipeline.class);
+        expect(jedis.pipelined()).andReturn(deletes).andReturn(restores);
+        byte[] rewritten = bytes("8.7.0_GA_1659|" + (NOW + 1));
+        expect(deletes.hget(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778080"))))
+                .andReturn(response(bytes("8.7.0_GA_1659|" + (NOW - 1))));
+        expect(deletes.hdel(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778080")))).andReturn(null);
+        expect(deletes.hget(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778081")))).andReturn(response(rewritten));
+        expect(deletes.hdel(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778081")))).andReturn(null);
+        expect(deletes.hget(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778082")))).andReturn(response(null));
+        expect(deletes.hdel(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778082")))).andReturn(null);
+        deletes.sync();
+        expect(restores.hset(aryEq(bytes(hashName)), aryEq(bytes("zimbraAuthTokens|366778081")), aryEq(rewritten))).andReturn(null);
+        restores.sync();
+        replay(jedis);
+        replay(deletes);
+        replay(restores);
+        int deleted = SSDBSweeper.deleteFieldsIfExpired(jedis, Arrays.asList(hashName, hashName, hashName),
+                Arrays.asList(bytes("zimbraAuthTokens|366778080"), bytes("zimbraAuthTokens|366778081"), bytes("zimbraAuthTokens|366778082")), NOW);
+        assertEquals("only the field still expired should count", 1, deleted);
+        verify(jedis);
+        verify(deletes);
+        verify(restores);
+    }
+
+    @Test
+    public void testDeleteKeysIfExpired() {
+        Jedis jedis = EasyMock.mock(Jedis.class);
+        Pipeline deletes = EasyMock.mock(Pipeline.class);
+        Pipeline restores = EasyMock.mock(Pipeline.class);
+        expect(jedis.pipelined()).andReturn(deletes).andReturn(restores);
+        byte[] rewritten = bytes("8.7.0_GA_1659|" + (NOW + 60000L));
+        expect(deletes.get(aryEq(bytes(KEY1)))).andReturn(response(bytes("8.7.0_GA_1659|" + (NOW - 1))));
+        expect(deletes.ttl(aryEq(bytes(KEY1)))).andReturn(longResponse(-1L));
+        expect(deletes.del(aryEq(bytes(KEY1)))).andReturn(null);
+        expect(deletes.get(aryEq(bytes(KEY2)))).andReturn(response(rewritten));
+        expect(deletes.ttl(aryEq(bytes(KEY2)))).andReturn(longResponse(60L));
+        expect(deletes.del(aryEq(bytes(KEY2)))).andReturn(null);
+        deletes.sync();
+        expect(restores.setex(aryEq(bytes(KEY2)), EasyMock.eq(60), aryEq(rewritten))).andReturn(null);
+        restores.sync();
+        replay(jedis);
+        replay(deletes);
+        replay(restores);
+        assertEquals("a key rewritten since it was seen expired should be put back", 1,
+                SSDBSweeper.deleteKeysIfExpired(jedis, Arrays.asList(KEY1, KEY2), NOW));
+        verify(jedis);
+        verify(deletes);
+        verify(restores);
+    }
+
+    @Test
+    public void testPassInterval() {
+        SSDBSweeper sweeper = new SSDBSweeper(Collections::emptyList, () -> SSDBLayout.KEYS, 100, 100, 3600000L, 600);
+        Jedis jedis = EasyMock.mock(Jedis.class);
+        // swept by another server a minute ago
+        expect(jedis.get(SSDBSweeper.CURSOR_KEY)).andReturn(null);
+        expect(jedis.get(SSDBSweeper.PASS_KEY)).andReturn(String.valueOf(System.currentTimeMillis() - 60000L));
+        // a pass left unfinished is always resumed
+        expect(jedis.get(SSDBSweeper.CURSOR_KEY)).andReturn(KEY1);
+        // swept two hours ago
+        expect(jedis.get(SSDBSweeper.CURSOR_KEY)).andReturn(null);
+        expect(jedis.get(SSDBSweeper.PASS_KEY)).andReturn(String.valueOf(System.currentTimeMillis() - 7200000L));
+        replay(jedis);
+        try {
+            assertFalse("a shard should not be swept again before the pass interval", sweeper.startPass(jedis));
+            assertTrue(sweeper.startPass(jedis));
+            assertTrue(sweeper.startPass(jedis));
+            verify(jedis);
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.zimbra.ssdb;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class SSDBTieredStoreTest {
+
+    private static final String TOKEN_KEY = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+    private static final EphemeralKey TOKEN = new EphemeralKey(Provisioning.A_zimbraAuthTokens, "366778080");
+    private static final EphemeralLocation ACCOUNT = new EphemeralLocation() {
+        @Override
+        public String[] getLocation() { return new String[] { "account", "47e456be-b00a-465e-a1db-4b53e64fa" }; }
+    };
+
+    private JedisPool pool;
+    private Jedis jedis;
+    private SSDBClient client;
+    private SSDBTieredStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.initServer("../zm-mailbox/store/");
+        pool = EasyMock.mock(JedisPool.class);
+        jedis = EasyMock.mock(Jedis.class);
+        client = EasyMock.mock(SSDBClient.class);
+        SSDBEphemeralStore l2 = new SSDBEphemeralStore("ssdb:localhost:8888");
+        l2.setPool(pool);
+        store = new SSDBTieredStore(l2, 1024L * 1024L, 60000L, 1000L, 0L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EasyMock.reset(pool);
+        pool.close();
+        pool.destroy();
+        replay(pool);
+        store.shutdown();
+        verify(pool);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRemoteInvalidation() throws Exception {
+        long expires = System.currentTimeMillis() + 3600000L;
+        expect(pool.getResource()).andReturn(jedis).times(4);
+        expect(jedis.getClient()).andReturn(client).anyTimes();
+        // first poll only learns the sequence
+        expect(jedis.get(SSDBInvalidationLog.SEQUENCE_KEY)).andReturn("5");
+        expect(jedis.get(aryEq(bytes(TOKEN_KEY)))).andReturn(bytes("8.8.0_GA_1234|" + expires));
+        // another server deletes the token
+        expect(jedis.get(SSDBInvalidationLog.SEQUENCE_KEY)).andReturn("6");
+        expect(client.sendCommand(SSDBCommand.ZSCAN, SSDBInvalidationLog.LOG_NAME, "", "6", "6", "1000")).andReturn(client);
+        expect(client.readMultiBulkReply()).andReturn(Arrays.asList(TOKEN_KEY, "6"));
+        expect(jedis.get(aryEq(bytes(TOKEN_KEY)))).andReturn(null);
+        jedis.close();
+        expectLastCall().times(4);
+        replay(pool, jedis, client);
+
+        store.pollInvalidations();
+        assertEquals("8.8.0_GA_1234", store.get(TOKEN, ACCOUNT).getValue());
+        assertEquals("the second lookup should be served locally", "8.8.0_GA_1234", store.get(TOKEN, ACCOUNT).getValue());
+        assertEquals(1L, store.getHitCount());
+        store.pollInvalidations();
+        assertNull("the invalidated copy should be dropped", store.get(TOKEN, ACCOUNT).getValue());
+        verify(pool, jedis, client);
+    }
+
+    @Test
+    public void testDeletePublishesInvalidation() throws Exception {
+        long expires = System.currentTimeMillis() + 3600000L;
+        expect(pool.getResource()).andReturn(jedis).times(3);
+        expect(jedis.getClient()).andReturn(client).anyTimes();
+        expect(jedis.get(aryEq(bytes(TOKEN_KEY)))).andReturn(bytes("8.8.0_GA_1234|" + expires));
+        expect(jedis.del(TOKEN_KEY)).andReturn(1L);
+        expect(client.sendCommand(SSDBCommand.INCR, SSDBInvalidationLog.SEQUENCE_KEY, "1")).andReturn(client);
+        expect(client.readIntegerReply()).andReturn(7L);
+        expect(client.sendCommand(SSDBCommand.ZSET, SSDBInvalidationLog.LOG_NAME, TOKEN_KEY, "7")).andReturn(client);
+        expect(client.readAllReplies()).andReturn(Arrays.<Object>asList(1L));
+        jedis.close();
+        expectLastCall().times(3);
+        replay(pool, jedis, client);
+
+        assertEquals("8.8.0_GA_1234", store.get(TOKEN, ACCOUNT).getValue());
+        store.delete(TOKEN, "8.8.0_GA_1234", ACCOUNT);
+        assertEquals("the local copy should be dropped", 0L, store.getL1().size());
+        verify(pool, jedis, client);
+    }
+}
@@ -0,0 +1,106 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
+
+public class SSDBValueCodecTest {
+
+    private final EphemeralKey key = new EphemeralKey("zimbraAuthTokens", "366778080");
+
+    @Test
+    public void testText() throws ServiceException {
+        byte[] encoded = SSDBValueCodec.encode(SSDBValueFormat.TEXT, "8.7.0_GA_1659", 1473761137744L);
+        assertArrayEquals("8.7.0_GA_1659|1473761137744".getBytes(StandardCharsets.UTF_8), encoded);
+        assertFalse(SSDBValueCodec.isBinary(encoded));
+        ExpirableEphemeralKeyValuePair kvp = SSDBValueCodec.decode(key, encoded);
+        assertEquals("8.7.0_GA_1659", kvp.getValue());
+        assertEquals(Long.valueOf(1473761137744L), kvp.getExpires());
+    }
+
+    @Test
+    public void testBinary() throws ServiceException {
+        byte[] encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, "8.7.0_GA_1659", 1473761137744L);
+        assertTrue(SSDBValueCodec.isBinary(encoded));
+        assertTrue("binary value should be smaller than text", encoded.length < "8.7.0_GA_1659|1473761137744".length());
+        ExpirableEphemeralKeyValuePair kvp = SSDBValueCodec.decode(key, encoded);
+        assertEquals("8.7.0_GA_1659", kvp.getValue());
+        assertEquals(Long.valueOf(1473761137744L), kvp.getExpires());
+
+        encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, "caf\u00e9|\u20ac", null);
+        assertEquals(2 + "caf\u00e9|\u20ac".getBytes(StandardCharsets.UTF_8).length, encoded.length);
+        kvp = SSDBValueCodec.decode(key, encoded);
+        assertEquals("caf\u00e9|\u20ac", kvp.getValue());
+        assertNull(kvp.getExpires());
+
+        kvp = SSDBValueCodec.decode(key, SSDBValueCodec.encode(SSDBValueFormat.BINARY, "", Long.MAX_VALUE));
+        assertEquals("", kvp.getValue());
+        assertEquals(Long.valueOf(Long.MAX_VALUE), kvp.getExpires());
+    }
+
+    @Test
+    public void testHexPayload() throws ServiceException {
+        String csrfData = "69643d33363a30666532376439312d656339342d346534352d383436342d3339326262383736313364383b6578703d31333a313437333735383435373138323b7369643d31303a3131353031303934343a6b";
+        byte[] encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, csrfData, null);
+        assertEquals(SSDBValueCodec.FLAG_HEX, encoded[1] & 0x0f);
+        assertEquals("hex should be stored as raw bytes", 2 + csrfData.length() / 2, encoded.length);
+        assertEquals(csrfData, SSDBValueCodec.decode(key, encoded).getValue());
+
+        assertFalse("upper case hex would not round-trip", SSDBValueCodec.isLowerCaseHex("ABCD"));
+        assertFalse(SSDBValueCodec.isLowerCaseHex("abc"));
+        assertEquals("ABCD", SSDBValueCodec.decode(key, SSDBValueCodec.encode(SSDBValueFormat.BINARY, "ABCD", null)).getValue());
+    }
+
+    @Test
+    public void testCompression() throws ServiceException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("id=36:0fe27d91-ec94-4e45-8464-392bb87613d8;");
+        }
+        String value = sb.toString();
+        byte[] encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, 256, value, 1473761137744L);
+        assertEquals(SSDBValueCodec.FLAG_EXPIRES | SSDBValueCodec.FLAG_DEFLATE, encoded[1] & 0x0f);
+        assertTrue(encoded.length < value.length() / 4);
+        ExpirableEphemeralKeyValuePair kvp = SSDBValueCodec.decode(key, encoded);
+        assertEquals(value, kvp.getValue());
+        assertEquals(Long.valueOf(1473761137744L), kvp.getExpires());
+
+        encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, 256, "8.7.0_GA_1659", null);
+        assertEquals("values under the threshold are not compressed", 0, encoded[1] & SSDBValueCodec.FLAG_DEFLATE);
+
+        String hex = "3822663c52f27487f172055ddc0918aa";
+        encoded = SSDBValueCodec.encode(SSDBValueFormat.BINARY, 1, hex, null);
+        assertEquals("incompressible values are stored as is", SSDBValueCodec.FLAG_HEX, encoded[1] & 0x0f);
+        assertEquals(hex, SSDBValueCodec.decode(key, encoded).getValue());
+    }
+
+    @Test
+    public void testMalformedBinary() {
+        byte[][] malformed = {
+            { SSDBValueCodec.MAGIC },
+            { SSDBValueCodec.MAGIC, (byte) 0x20 },
+            { SSDBValueCodec.MAGIC, (byte) 0x11, (byte) 0x80 },
+            { SSDBValueCodec.MAGIC, (byte) 0x18 },
+            { SSDBValueCodec.MAGIC, (byte) 0x14, (byte) 0x10, (byte) 0x01, (byte) 0x02 },
+        };
+        for (byte[] encoded : malformed) {
+            try {
+                SSDBValueCodec.decode(key, encoded);
+                fail("should not decode a malformed value");
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.PARSE_ERROR, e.getCode());
+            }
+        }
+    }
+}
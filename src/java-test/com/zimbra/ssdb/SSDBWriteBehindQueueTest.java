@@ -0,0 +1,99 @@
+package com.zimbra.ssdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
+
+public class SSDBWriteBehindQueueTest {
+
+    private static final String KEY1 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraLastLogonTimestamp";
+    private static final String KEY2 = "account|47e456be-b00a-465e-a1db-4b53e64fa|zimbraAuthTokens|366778080";
+    private final List<List<Mutation>> batches = new ArrayList<List<Mutation>>();
+    private boolean failWrites = false;
+    private SSDBWriteBehindQueue queue;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        batches.clear();
+        failWrites = false;
+        queue = new SSDBWriteBehindQueue(new SSDBWriteBehindQueue.Writer() {
+            @Override
+            public void write(List<Mutation> batch) throws ServiceException {
+                if (failWrites) {
+                    throw ServiceException.FAILURE("simulated SSDB failure", null);
+                }
+                batches.add(new ArrayList<Mutation>(batch));
+            }
+        }, 100, 10, 60000L, 10L);
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        queue.enqueue(Mutation.set(KEY1, bytes("20160912212057.178Z|"), 0));
+        queue.enqueue(Mutation.set(KEY1, bytes("20160912220045.178Z|"), 0));
+        queue.enqueue(Mutation.set(KEY2, bytes("8.7.0_GA_1659|1473761137744"), 3600));
+        assertEquals(2, queue.size());
+        assertEquals(1L, queue.getCoalescedCount());
+        assertArrayEquals(bytes("20160912220045.178Z|"), queue.lookup(KEY1).getValue());
+        queue.flush();
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertArrayEquals(bytes("20160912220045.178Z|"), batches.get(0).get(0).getValue());
+        assertEquals(3600, batches.get(0).get(1).getTtlSeconds());
+        assertNull(queue.lookup(KEY1));
+    }
+
+    @Test
+    public void testDeleteSupersedesSet() throws Exception {
+        queue.enqueue(Mutation.set(KEY2, bytes("8.7.0_GA_1659|1473761137744"), 3600));
+        queue.enqueue(Mutation.delete(KEY2));
+        assertTrue(queue.lookup(KEY2).isDelete());
+        queue.flush();
+        assertEquals(1, batches.get(0).size());
+        assertTrue(batches.get(0).get(0).isDelete());
+    }
+
+    @Test
+    public void testFailedFlushRequeues() throws Exception {
+        queue.enqueue(Mutation.set(KEY1, bytes("20160912212057.178Z|"), 0));
+        failWrites = true;
+        try {
+            queue.flush();
+            fail("flush should propagate the write failure");
+        } catch (ServiceException e) {
+            // expected
+        }
+        assertEquals(1, queue.size());
+        failWrites = false;
+        queue.shutdown();
+        assertEquals(1, batches.size());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testShutdownRejectsWrites() throws Exception {
+        queue.shutdown();
+        try {
+            queue.enqueue(Mutation.delete(KEY1));
+            fail("enqueue after shutdown should fail");
+        } catch (ServiceException e) {
+            // expected
+        }
+    }
+}
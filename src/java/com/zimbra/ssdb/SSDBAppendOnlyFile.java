@@ -0,0 +1,340 @@
+package com.zimbra.ssdb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBAppendOnlyFile persists the changes of an {@link SSDBOffHeapTable} in a memory-mapped log.
+ *
+ * The file is mapped REGION_SIZE bytes at a time and every change is appended as one record:
+ *
+ *   operation (1 byte) | expiration (8 bytes) | key length (4 bytes) | value length (4 bytes) | key | value
+ *
+ * A record that does not fit into the rest of a region is preceded by a NEXT_REGION marker and
+ * written at the start of the next region; a zero operation marks the end of the log. Appending
+ * only copies the record into the mapping, the operating system writes it back; {@link #sync()}
+ * forces it to disk.
+ *
+ * {@link #load(File, SSDBOffHeapTable, long)} replays the log into a table and then rewrites it
+ * with just the entries that are still alive, so the file does not grow without bounds across restarts.
+ * {@link #compact(SSDBOffHeapTable, long)} does the same while the table is in use: it writes the live
+ * entries to a new file, appends the changes logged meanwhile and then swaps the files. Regions are
+ * unmapped as soon as the log has moved past them.
+ *
+ */
+public class SSDBAppendOnlyFile implements SSDBOffHeapTable.Journal, Closeable {
+    static final long REGION_SIZE = 64L * 1024 * 1024;
+    private static final byte END = 0;
+    private static final byte SET = 1;
+    private static final byte DELETE = 2;
+    private static final byte DELETE_PREFIX = 3;
+    private static final byte NEXT_REGION = 4;
+    private static final int HEADER_SIZE = 17;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    /** number of bytes of records in the log */
+    private long logBytes = 0L;
+
+    private SSDBAppendOnlyFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0L);
+    }
+
+    /**
+     * Replays the log in file, if it exists, into table, compacts it and opens it for appending.
+     * The returned log is not set as the table's journal yet.
+     */
+    public static SSDBAppendOnlyFile load(File file, SSDBOffHeapTable table, long now) throws IOException {
+        if (file.exists()) {
+            try (SSDBAppendOnlyFile log = new SSDBAppendOnlyFile(file)) {
+                int count = log.replay(table, now);
+                ZimbraLog.extensions.info("replayed %d changes from %s, %d entries loaded", count, file, table.size());
+            }
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(compacted.toPath());
+        try (SSDBAppendOnlyFile log = new SSDBAppendOnlyFile(compacted)) {
+            table.forEach(now, log::set);
+            log.sync();
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SSDBAppendOnlyFile log = new SSDBAppendOnlyFile(file);
+        log.seekEnd();
+        return log;
+    }
+
+    private void map(long start) throws IOException {
+        MappedByteBuffer previous = region;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        regionStart = start;
+        if (previous != null) {
+            unmap(previous);
+        }
+    }
+
+    /**
+     * Releases the mapping right away instead of when the buffer is garbage collected. The buffer must not
+     * be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+            ZimbraLog.extensions.debug("could not unmap a region of an append-only file", e);
+        }
+    }
+
+    /**
+     * Applies the logged changes to the table, skipping values that have expired
+     *
+     * @return the number of changes read
+     */
+    private int replay(SSDBOffHeapTable table, long now) throws IOException {
+        int count = 0;
+        while (true) {
+            byte op = region.hasRemaining() ? region.get() : NEXT_REGION;
+            if (op == NEXT_REGION) {
+                if (regionStart + REGION_SIZE >= channel.size()) {
+                    return count;
+                }
+                map(regionStart + REGION_SIZE);
+                continue;
+            }
+            if (op == END) {
+                return count;
+            }
+            if (region.remaining() < HEADER_SIZE - 1) {
+                throw new IOException(String.format("truncated record at offset %d of %s", regionStart + region.position(), file));
+            }
+            long expires = region.getLong();
+            byte[] key = new byte[region.getInt()];
+            byte[] value = new byte[region.getInt()];
+            if (region.remaining() < key.length + value.length) {
+                throw new IOException(String.format("truncated record at offset %d of %s", regionStart + region.position(), file));
+            }
+            region.get(key);
+            region.get(value);
+            logBytes += HEADER_SIZE + key.length + value.length;
+            String k = new String(key, StandardCharsets.UTF_8);
+            switch (op) {
+            case SET:
+                if (expires <= 0L || expires > now) {
+                    if (!table.put(k, new String(value, StandardCharsets.UTF_8), expires)) {
+                        throw new IOException(String.format("%s does not fit into the embedded store's memory", file));
+                    }
+                }
+                break;
+            case DELETE:
+                table.remove(k);
+                break;
+            case DELETE_PREFIX:
+                table.removePrefix(k);
+                break;
+            default:
+                throw new IOException(String.format("unknown operation %d at offset %d of %s", op, regionStart + region.position(), file));
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Positions the log after its last record
+     */
+    private void seekEnd() throws IOException {
+        while (true) {
+            int position = region.position();
+            byte op = region.hasRemaining() ? region.get() : NEXT_REGION;
+            if (op == END) {
+                region.position(position);
+                return;
+            }
+            if (op == NEXT_REGION) {
+                map(regionStart + REGION_SIZE);
+                continue;
+            }
+            region.getLong();
+            int keyLength = region.getInt();
+            int valueLength = region.getInt();
+            region.position(region.position() + keyLength + valueLength);
+            logBytes += HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    @Override
+    public void set(String key, String value, long expires) throws IOException {
+        append(SET, key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), expires);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        append(DELETE, key.getBytes(StandardCharsets.UTF_8), new byte[0], 0L);
+    }
+
+    @Override
+    public void deletePrefix(String prefix) throws IOException {
+        append(DELETE_PREFIX, prefix.getBytes(StandardCharsets.UTF_8), new byte[0], 0L);
+    }
+
+    private synchronized void append(byte op, byte[] rawKey, byte[] value, long expires) throws IOException {
+        ensureOpen();
+        int size = HEADER_SIZE + rawKey.length + value.length;
+        if (size > REGION_SIZE) {
+            throw new IOException(String.format("record of %d bytes is too large for %s", size, file));
+        }
+        if (region.remaining() < size) {
+            if (region.hasRemaining()) {
+                region.put(NEXT_REGION);
+            }
+            region.force();
+            map(regionStart + REGION_SIZE);
+        }
+        int position = region.position();
+        region.position(position + 1);
+        region.putLong(expires);
+        region.putInt(rawKey.length);
+        region.putInt(value.length);
+        region.put(rawKey);
+        region.put(value);
+        // the operation goes in last, a record cut short by a crash still reads as the end of the log
+        region.put(position, op);
+        logBytes += size;
+    }
+
+    /**
+     * @return the number of bytes of records in the log
+     */
+    public synchronized long getLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * @return the offset in the file after the last record
+     */
+    private long position() throws IOException {
+        ensureOpen();
+        return regionStart + region.position();
+    }
+
+    /**
+     * A closed log has no mapping left, and touching one that was unmapped would crash the process
+     */
+    private void ensureOpen() throws IOException {
+        if (region == null) {
+            throw new IOException(String.format("%s is closed", file));
+        }
+    }
+
+    /**
+     * Rewrites the log with just the entries of the table that are alive, while the table goes on
+     * logging its changes here. The entries are read without stopping the table, so a change made
+     * meanwhile may or may not be seen; the changes logged since the rewrite started are appended to the
+     * new log afterwards, and since every change overwrites or deletes, replaying them gives the table.
+     * Appending waits only while those changes are copied and the files are swapped.
+     */
+    public void compact(SSDBOffHeapTable table, long now) throws IOException {
+        long start;
+        synchronized (this) {
+            start = position();
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(compacted.toPath());
+        SSDBAppendOnlyFile log = new SSDBAppendOnlyFile(compacted);
+        try {
+            table.forEach(now, log::set);
+            synchronized (this) {
+                long before = logBytes;
+                copyRecords(start, position(), log);
+                log.sync();
+                Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                MappedByteBuffer oldRegion = region;
+                FileChannel oldChannel = channel;
+                channel = log.channel;
+                region = log.region;
+                regionStart = log.regionStart;
+                logBytes = log.logBytes;
+                unmap(oldRegion);
+                try {
+                    oldChannel.close();
+                } catch (IOException e) {
+                    ZimbraLog.extensions.debug("could not close the replaced %s", file, e);
+                }
+                ZimbraLog.extensions.info("compacted %s from %d to %d bytes", file, before, logBytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (log.region != region) {
+                log.close();
+                Files.deleteIfExists(compacted.toPath());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the records of this log between the offsets from and to to another log
+     */
+    private void copyRecords(long from, long to, SSDBAppendOnlyFile target) throws IOException {
+        long start = from - from % REGION_SIZE;
+        MappedByteBuffer reader = channel.map(FileChannel.MapMode.READ_ONLY, start, REGION_SIZE);
+        try {
+            reader.position((int) (from - start));
+            while (start + reader.position() < to) {
+                byte op = reader.hasRemaining() ? reader.get() : NEXT_REGION;
+                if (op == NEXT_REGION) {
+                    unmap(reader);
+                    start += REGION_SIZE;
+                    reader = channel.map(FileChannel.MapMode.READ_ONLY, start, REGION_SIZE);
+                    continue;
+                }
+                long expires = reader.getLong();
+                byte[] key = new byte[reader.getInt()];
+                byte[] value = new byte[reader.getInt()];
+                reader.get(key);
+                reader.get(value);
+                target.append(op, key, value, expires);
+            }
+        } finally {
+            unmap(reader);
+        }
+    }
+
+    /**
+     * Forces the appended records to disk
+     */
+    public synchronized void sync() {
+        if (region != null) {
+            region.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (region == null) {
+            return;
+        }
+        region.force();
+        unmap(region);
+        region = null;
+        channel.close();
+    }
+}
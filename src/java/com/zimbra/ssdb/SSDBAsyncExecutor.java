@@ -0,0 +1,74 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ *
+ * SSDBAsyncExecutor runs store operations on a dedicated pool of I/O threads and hands out their results
+ * as CompletableFutures, so that callers can overlap ephemeral lookups with other work.
+ *
+ * Jedis connections are blocking, so each running operation holds one of the maxThreads threads for its
+ * round-trip; idle threads exit after a minute. At most queueSize operations wait for a thread; further
+ * operations complete exceptionally right away instead of piling up.
+ *
+ */
+public class SSDBAsyncExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    public SSDBAsyncExecutor(int maxThreads, int queueSize) {
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("SSDBAsync-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static SSDBAsyncExecutor fromConfig() {
+        int maxThreads = Math.max(1, SSDBConfig.getInt(SSDBConfig.ASYNC_THREADS, 16));
+        int queueSize = Math.max(1, SSDBConfig.getInt(SSDBConfig.ASYNC_QUEUE_SIZE, 1000));
+        return new SSDBAsyncExecutor(maxThreads, queueSize);
+    }
+
+    /**
+     * @return a future that completes with the result of the call, or exceptionally with the
+     * ServiceException it throws
+     */
+    public <T> CompletableFuture<T> submit(SSDBMetrics.Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(call.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(executor.isShutdown()
+                    ? ServiceException.FAILURE("SSDB ephemeral store is shut down", e)
+                    : ServiceException.FAILURE("too many pending asynchronous SSDB operations", e));
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of operations waiting for a thread
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -9,6 +9,8 @@ import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
  *
  * @author Greg Solovyev
  *
+ * Keys and values are decoded by scanning for the '|' separators once; the only strings created
+ * are the attribute name, the dynamic part and the value themselves.
  */
 public class SSDBAttributeEncoder extends AttributeEncoder {
 
@@ -19,34 +21,68 @@ public class SSDBAttributeEncoder extends AttributeEncoder {
 
     @Override
     public ExpirableEphemeralKeyValuePair decode(String key, String value) throws ServiceException {
-        String[] toks = key.split("|");
-        if(toks.length < 3) {
-            //SSDB uses format "entry type|entry ID|attribute name|optional dynamic part" for the key
+        return decodeTextValue(decodeKey(key), value);
+    }
+
+    /**
+     * Decodes a value in the legacy "value|expiration" text form
+     */
+    static ExpirableEphemeralKeyValuePair decodeTextValue(EphemeralKey eKey, String value) {
+        int sep = value.lastIndexOf(SSDBKeyEncoder.SEPARATOR);
+        if (sep < 0) {
+            return new ExpirableEphemeralKeyValuePair(eKey, value, null);
+        }
+        if (sep == value.length() - 1) {
+            //no expiration encoded
+            return new ExpirableEphemeralKeyValuePair(eKey, value.substring(0, sep), null);
+        }
+        Long expires = parseLong(value, sep + 1);
+        if (expires == null) {
+            //fall back to the whole string being the value
+            return new ExpirableEphemeralKeyValuePair(eKey, value, null);
+        }
+        return new ExpirableEphemeralKeyValuePair(eKey, value.substring(0, sep), expires);
+    }
+
+    /**
+     * SSDB uses format "entry type|entry ID|attribute name|optional dynamic part" for the key
+     */
+    static EphemeralKey decodeKey(String key) throws ServiceException {
+        int typeEnd = key.indexOf(SSDBKeyEncoder.SEPARATOR);
+        int idEnd = typeEnd < 0 ? -1 : key.indexOf(SSDBKeyEncoder.SEPARATOR, typeEnd + 1);
+        if (idEnd < 0 || idEnd == key.length() - 1) {
             throw ServiceException.PARSE_ERROR(String.format("unable to parse ephemeral key %s", key), null);
         }
-        EphemeralKey eKey = null;
-        String attrName = toks[2];
-        if(toks.length > 3) {
-            eKey = new EphemeralKey(attrName, toks[3]);
-        } else {
-            eKey = new EphemeralKey(attrName);
+        int attrEnd = key.indexOf(SSDBKeyEncoder.SEPARATOR, idEnd + 1);
+        if (attrEnd < 0) {
+            return new EphemeralKey(key.substring(idEnd + 1));
         }
-        String decodedValue;
-        Long expires = null;
-        if (value.endsWith("|")) {
-            //no expiration encoded
-            decodedValue = value.substring(0, value.length() - 1);
-        } else {
-            int lastPipeIdx = value.lastIndexOf("|");
-            decodedValue = value.substring(0, lastPipeIdx);
-            String expiryStr = value.substring(lastPipeIdx + 1);
-            try {
-                expires = Long.parseLong(expiryStr);
-            } catch (NumberFormatException e) {
-                //fall back to the whole string being the value
-                decodedValue = value;
+        return new EphemeralKey(key.substring(idEnd + 1, attrEnd), key.substring(attrEnd + 1));
+    }
+
+    /**
+     * Parses the decimal number that runs from start to the end of s without creating a substring
+     *
+     * @return the number, or null if it is not a well-formed long
+     */
+    private static Long parseLong(String s, int start) {
+        int end = s.length();
+        boolean negative = s.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 19) {
+            return null;
+        }
+        long result = 0L;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            if (result > (Long.MAX_VALUE - digit) / 10) {
+                return null;
             }
+            result = result * 10 + digit;
         }
-        return new ExpirableEphemeralKeyValuePair(eKey, decodedValue, expires);
+        return negative ? -result : result;
     }
 }
@@ -0,0 +1,103 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * SSDBCircuitBreaker stops calls to an SSDB node that keeps failing with connection errors.
+ *
+ * After failureThreshold consecutive failures the breaker opens and calls fail fast for openMillis.
+ * Then a single call is let through as a probe (half-open): if it succeeds the breaker closes,
+ * otherwise it opens again. A background prober may also close it by calling {@link #recordSuccess()}.
+ * A probe that ends without an answer either way is abandoned and the next call probes instead.
+ *
+ */
+public class SSDBCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Notified when the breaker closes again after having been open
+     */
+    public interface Listener {
+        void onClose(SSDBCircuitBreaker breaker);
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt = 0L;
+    private volatile Listener listener;
+
+    /**
+     * @param failureThreshold number of consecutive failures that opens the breaker; 0 disables the breaker
+     */
+    public SSDBCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    static SSDBCircuitBreaker fromConfig() {
+        return new SSDBCircuitBreaker(SSDBConfig.getInt(SSDBConfig.CIRCUIT_BREAKER_FAILURES, 5),
+                SSDBConfig.getLong(SSDBConfig.CIRCUIT_BREAKER_OPEN_MS, 5000L));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true unless the breaker is open; may be stale by design, it only avoids sending traffic to a dead node
+     */
+    public boolean isAvailable() {
+        return state.get() != State.OPEN;
+    }
+
+    /**
+     * @return true if a call may be made now. When the open period has elapsed, exactly one caller
+     * is allowed through as the half-open probe.
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        State previous = state.getAndSet(State.CLOSED);
+        Listener l = listener;
+        if (previous != State.CLOSED && l != null) {
+            l.onClose(this);
+        }
+    }
+
+    /**
+     * Called when a call ends without telling whether the node is healthy. If it was the half-open
+     * probe, the breaker opens again with its open period already elapsed, so the next call probes.
+     */
+    public void abandonProbe() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    public void recordFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (state.get() == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            state.set(State.OPEN);
+        }
+    }
+}
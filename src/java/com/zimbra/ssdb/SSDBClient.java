@@ -0,0 +1,123 @@
+package com.zimbra.ssdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ *
+ * SSDBClient is a Jedis client that can also send the native SSDB commands of {@link SSDBCommand}.
+ * Jedis 2.9.0 only sends the commands of its own Protocol.Command enum, so these are written to
+ * the socket directly and their replies read and counted separately from the commands sent by Jedis.
+ *
+ * Connections of an {@link SSDBJedisPool} always have an SSDBClient.
+ *
+ */
+public class SSDBClient extends Client {
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /** number of commands sent by {@link #sendCommand(byte[], byte[]...)} whose reply has not been read */
+    private int pending = 0;
+
+    public SSDBClient(String host, int port) {
+        super(host, port);
+    }
+
+    public SSDBClient sendCommand(SSDBCommand command, String... args) {
+        byte[][] rawArgs = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            rawArgs[i] = SafeEncoder.encode(args[i]);
+        }
+        return sendCommand(command.getRaw(), rawArgs);
+    }
+
+    /**
+     * Sends a command of any name without waiting for its reply
+     */
+    public SSDBClient sendCommand(byte[] command, byte[]... args) {
+        connect();
+        // commands buffered by Jedis go first
+        flush();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeLength(buffer, '*', args.length + 1);
+        writeBulk(buffer, command);
+        for (byte[] arg : args) {
+            writeBulk(buffer, arg);
+        }
+        try {
+            OutputStream out = getSocket().getOutputStream();
+            buffer.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // a partly written command must not be followed by another one
+            disconnect();
+            throw new JedisConnectionException(e);
+        }
+        pending++;
+        return this;
+    }
+
+    private static void writeLength(ByteArrayOutputStream buffer, char type, int length) {
+        buffer.write(type);
+        byte[] digits = SafeEncoder.encode(String.valueOf(length));
+        buffer.write(digits, 0, digits.length);
+        buffer.write(CRLF, 0, CRLF.length);
+    }
+
+    private static void writeBulk(ByteArrayOutputStream buffer, byte[] value) {
+        writeLength(buffer, '$', value.length);
+        buffer.write(value, 0, value.length);
+        buffer.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * @throws JedisDataException if the reply is an error
+     */
+    private Object readReply() {
+        pending--;
+        return readProtocolWithCheckingBroken();
+    }
+
+    public Long readIntegerReply() {
+        return (Long) readReply();
+    }
+
+    public List<String> readMultiBulkReply() {
+        @SuppressWarnings("unchecked")
+        List<byte[]> raw = (List<byte[]>) readReply();
+        List<String> reply = new ArrayList<String>(raw.size());
+        for (byte[] item : raw) {
+            reply.add(item == null ? null : SafeEncoder.encode(item));
+        }
+        return reply;
+    }
+
+    /**
+     * Reads the replies of all commands sent. Error replies are returned as JedisDataExceptions,
+     * so that the replies after them are read as well.
+     */
+    public List<Object> readAllReplies() {
+        List<Object> replies = new ArrayList<Object>(pending);
+        while (pending > 0) {
+            try {
+                replies.add(readReply());
+            } catch (JedisDataException e) {
+                replies.add(e);
+            }
+        }
+        return replies;
+    }
+
+    @Override
+    public void disconnect() {
+        pending = 0;
+        super.disconnect();
+    }
+}
@@ -0,0 +1,92 @@
+package com.zimbra.ssdb;
+
+import java.util.List;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ *
+ * SSDBCommand lists native SSDB commands that have no Jedis counterpart.
+ * SSDB passes their arguments through unchanged when they are sent over the Redis protocol.
+ * They are sent by the {@link SSDBClient} of connections from an {@link SSDBJedisPool}.
+ *
+ */
+public enum SSDBCommand {
+    /** hclear name: deletes a whole hash, replies with the number of fields deleted */
+    HCLEAR("hclear"),
+    /** hlist start end limit: lists up to limit hash names in the range (start, end], in name order */
+    HLIST("hlist"),
+    /** incr key num: adds num to an integer key, replies with the new value */
+    INCR("incr"),
+    /** keys start end limit: lists up to limit keys in the range (start, end], in key order */
+    KEYS("keys"),
+    /** multi_del key...: deletes several keys, replies with the number of keys given */
+    MULTI_DEL("multi_del"),
+    /** zremrangebyscore name start end: deletes the members with a score in [start, end], replies with their number */
+    ZREMRANGEBYSCORE("zremrangebyscore"),
+    /**
+     * zscan name key_start score_start score_end limit: lists up to limit members and their scores, alternating,
+     * that come after (key_start, score_start) and have a score of at most score_end, in score order.
+     * An empty key_start includes members with a score of score_start.
+     */
+    ZSCAN("zscan"),
+    /** zset name key score: sets the score of a member, replies with 1 if the member is new */
+    ZSET("zset");
+
+    private final byte[] raw;
+
+    private SSDBCommand(String name) {
+        this.raw = SafeEncoder.encode(name);
+    }
+
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    private static SSDBClient client(Jedis jedis) {
+        Client client = jedis.getClient();
+        if (!(client instanceof SSDBClient)) {
+            throw new JedisException("native SSDB commands need a connection from an SSDBJedisPool");
+        }
+        return (SSDBClient) client;
+    }
+
+    /**
+     * Sends a command whose reply is an integer
+     */
+    static long integerCommand(Jedis jedis, SSDBCommand command, String... args) {
+        return client(jedis).sendCommand(command, args).readIntegerReply();
+    }
+
+    /**
+     * Sends a command whose reply is a list of strings
+     */
+    static List<String> listCommand(Jedis jedis, SSDBCommand command, String... args) {
+        return client(jedis).sendCommand(command, args).readMultiBulkReply();
+    }
+
+    /**
+     * Sends a command once per argument list in a single round-trip. All replies are read
+     * before an error reply is thrown, so the connection stays usable.
+     *
+     * @return the sum of the integer replies
+     */
+    static long pipelinedIntegerCommand(Jedis jedis, SSDBCommand command, List<String[]> argLists) {
+        SSDBClient client = client(jedis);
+        for (String[] args : argLists) {
+            client.sendCommand(command, args);
+        }
+        long sum = 0L;
+        for (Object reply : client.readAllReplies()) {
+            if (reply instanceof JedisDataException) {
+                throw (JedisDataException) reply;
+            }
+            sum += (Long) reply;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,177 @@
+package com.zimbra.ssdb;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBConfig reads optional tuning parameters of the SSDB ephemeral store from localconfig.
+ * Missing or malformed values fall back to the supplied defaults.
+ *
+ */
+final class SSDBConfig {
+
+    /** maximum number of entries in the near-cache; 0 disables the near-cache */
+    static final String NEAR_CACHE_SIZE = "ssdb_near_cache_size";
+    /** maximum number of milliseconds a value is served from the near-cache */
+    static final String NEAR_CACHE_TTL_MS = "ssdb_near_cache_ttl_ms";
+    /** comma separated list of attribute names that are eligible for the near-cache */
+    static final String NEAR_CACHE_ATTRS = "ssdb_near_cache_attrs";
+    /** maximum number of absent keys remembered by the negative cache; 0 disables the negative cache */
+    static final String NEGATIVE_CACHE_SIZE = "ssdb_negative_cache_size";
+    /** number of milliseconds an absent key is remembered */
+    static final String NEGATIVE_CACHE_TTL_MS = "ssdb_negative_cache_ttl_ms";
+    /** comma separated list of attribute names that are eligible for the negative cache */
+    static final String NEGATIVE_CACHE_ATTRS = "ssdb_negative_cache_attrs";
+    /** if true, set/update/delete are queued and written to SSDB asynchronously in pipelined batches */
+    static final String WRITE_BEHIND_ENABLED = "ssdb_write_behind_enabled";
+    /** maximum number of distinct keys held by the write-behind queue */
+    static final String WRITE_BEHIND_MAX_PENDING = "ssdb_write_behind_max_pending";
+    /** number of queued keys that triggers a flush, and maximum number of commands per pipeline */
+    static final String WRITE_BEHIND_BATCH_SIZE = "ssdb_write_behind_batch_size";
+    /** maximum number of milliseconds a mutation stays queued */
+    static final String WRITE_BEHIND_FLUSH_INTERVAL_MS = "ssdb_write_behind_flush_interval_ms";
+    /** maximum number of milliseconds a writer waits for room in a full write-behind queue before flushing it itself */
+    static final String WRITE_BEHIND_MAX_WAIT_MS = "ssdb_write_behind_max_wait_ms";
+    /** which node of a shard serves reads: primary, replica-preferred or nearest */
+    static final String READ_POLICY = "ssdb_read_policy";
+    /** interval in milliseconds at which every node is pinged to measure its latency with ssdb_read_policy=nearest */
+    static final String LATENCY_PROBE_MS = "ssdb_latency_probe_ms";
+    /** number of milliseconds after a local write during which reads of the written key go to the master */
+    static final String READ_YOUR_WRITES_MS = "ssdb_read_your_writes_ms";
+    /** total number of attempts of an SSDB call that fails with a connection error */
+    static final String RETRY_MAX_ATTEMPTS = "ssdb_retry_max_attempts";
+    /** wait before the first retry in milliseconds; doubled for every further retry */
+    static final String RETRY_BACKOFF_MS = "ssdb_retry_backoff_ms";
+    /** upper bound of the wait between retries in milliseconds */
+    static final String RETRY_MAX_BACKOFF_MS = "ssdb_retry_max_backoff_ms";
+    /** number of consecutive connection failures that opens a node's circuit breaker; 0 disables circuit breakers */
+    static final String CIRCUIT_BREAKER_FAILURES = "ssdb_circuit_breaker_failures";
+    /** number of milliseconds an open circuit breaker fails calls fast before letting a probe through */
+    static final String CIRCUIT_BREAKER_OPEN_MS = "ssdb_circuit_breaker_open_ms";
+    /** interval in milliseconds at which nodes with an open circuit breaker are probed in the background */
+    static final String CIRCUIT_BREAKER_PROBE_MS = "ssdb_circuit_breaker_probe_ms";
+    /** maximum number of keys kept in the local fallback store during an outage; 0 makes calls fail instead */
+    static final String FALLBACK_SIZE = "ssdb_fallback_size";
+    /** if false, operation and node statistics are not exported over JMX */
+    static final String JMX_ENABLED = "ssdb_jmx_enabled";
+    /** format of the values written to SSDB: text (legacy) or binary; both are always readable */
+    static final String VALUE_FORMAT = "ssdb_value_format";
+    /** minimum size in bytes of a binary value payload that is Deflate-compressed; 0 disables compression */
+    static final String VALUE_COMPRESS_THRESHOLD = "ssdb_value_compress_threshold";
+    /** how attributes are stored: keys (one SSDB key per attribute) or hash (one SSDB hash per entry) */
+    static final String LAYOUT = "ssdb_layout";
+    /** whether the hash layout still reads and deletes top-level keys not yet moved by SSDBLayoutMigrator */
+    static final String LAYOUT_LEGACY_KEYS = "ssdb_layout_legacy_keys";
+    /** number of keys listed and deleted per round-trip when deleteData purges an entry */
+    static final String PURGE_BATCH_SIZE = "ssdb_purge_batch_size";
+    /** maximum number of keys per second examined by the background sweeper of expired values; 0 disables the sweeper */
+    static final String SWEEP_KEYS_PER_SECOND = "ssdb_sweep_keys_per_second";
+    /** number of keys examined by the sweeper per round-trip */
+    static final String SWEEP_BATCH_SIZE = "ssdb_sweep_batch_size";
+    /** number of milliseconds the sweeper waits after a complete pass over all shards */
+    static final String SWEEP_PASS_INTERVAL_MS = "ssdb_sweep_pass_interval_ms";
+    /** number of seconds a sweeper holds a shard after its last page before another server may take the shard over */
+    static final String SWEEP_LEASE_SECONDS = "ssdb_sweep_lease_seconds";
+    /** maximum number of threads running asynchronous store operations */
+    static final String ASYNC_THREADS = "ssdb_async_threads";
+    /** maximum number of asynchronous store operations waiting for a thread */
+    static final String ASYNC_QUEUE_SIZE = "ssdb_async_queue_size";
+    /** maximum number of concurrent calls to one SSDB node, whatever the number of threads; 0 means unbounded */
+    static final String MAX_CONCURRENT_CALLS = "ssdb_max_concurrent_calls";
+    /** maximum number of milliseconds a call waits for one of the ssdb_max_concurrent_calls permits */
+    static final String CONCURRENT_CALL_WAIT_MS = "ssdb_concurrent_call_wait_ms";
+    /** interval in milliseconds at which the ephemeral backend URL is checked for changes; 0 disables the check */
+    static final String URL_CHECK_INTERVAL_MS = "ssdb_url_check_interval_ms";
+    /** number of milliseconds a replaced store keeps serving calls in flight before it is shut down */
+    static final String RELOAD_GRACE_MS = "ssdb_reload_grace_ms";
+    /** number of milliseconds to wait for a connection to an SSDB node to be established */
+    static final String CONNECT_TIMEOUT_MS = "ssdb_connect_timeout_ms";
+    /** number of milliseconds to wait for a reply from an SSDB node */
+    static final String SOCKET_TIMEOUT_MS = "ssdb_socket_timeout_ms";
+    /** number of idle connections per node opened at startup and kept open by the evictor */
+    static final String POOL_MIN_IDLE = "ssdb_pool_min_idle";
+    /** maximum number of idle connections per node; negative means as many as the pool size */
+    static final String POOL_MAX_IDLE = "ssdb_pool_max_idle";
+    /** if true, idle connections are pinged by the evictor and dropped if they fail */
+    static final String POOL_TEST_WHILE_IDLE = "ssdb_pool_test_while_idle";
+    /** interval in milliseconds at which idle connections are checked; 0 or negative disables the evictor */
+    static final String POOL_EVICTION_INTERVAL_MS = "ssdb_pool_eviction_interval_ms";
+    /** number of milliseconds after which an idle connection above ssdb_pool_min_idle is closed */
+    static final String POOL_MIN_EVICTABLE_IDLE_MS = "ssdb_pool_min_evictable_idle_ms";
+    /** interval in milliseconds at which pool sizes are adjusted to the load; 0 disables adjustment */
+    static final String POOL_TUNE_INTERVAL_MS = "ssdb_pool_tune_interval_ms";
+    /** mean borrow wait in milliseconds at or above which a pool grows */
+    static final String POOL_TUNE_WAIT_MS = "ssdb_pool_tune_wait_ms";
+    /** smallest size an adjusted pool shrinks to; if unset, the configured pool size */
+    static final String POOL_TUNE_MIN_SIZE = "ssdb_pool_tune_min_size";
+    /** largest size an adjusted pool grows to; if unset, 128 or the configured pool size if larger */
+    static final String POOL_TUNE_MAX_SIZE = "ssdb_pool_tune_max_size";
+    /** how single-key reads and writes reach SSDB: pool (a pooled connection per call) or multiplexed */
+    static final String TRANSPORT = "ssdb_transport";
+    /** number of shared connections per node with ssdb_transport=multiplexed */
+    static final String MULTIPLEXED_CONNECTIONS = "ssdb_multiplexed_connections";
+    /** maximum number of megabytes of off-heap memory used by the embedded store's records */
+    static final String EMBEDDED_MAX_MEMORY_MB = "ssdb_embedded_max_memory_mb";
+    /** number of milliseconds between two expiry runs of the embedded store */
+    static final String EMBEDDED_EXPIRY_TICK_MS = "ssdb_embedded_expiry_tick_ms";
+    /** number of milliseconds between two syncs of the embedded store's append-only file to disk */
+    static final String EMBEDDED_SYNC_INTERVAL_MS = "ssdb_embedded_sync_interval_ms";
+    /** number of megabytes the embedded store's append-only file must reach before it is compacted while in use */
+    static final String EMBEDDED_COMPACT_MIN_MB = "ssdb_embedded_compact_min_mb";
+    /** maximum number of megabytes of off-heap memory used by the tiered store's local tier */
+    static final String TIERED_L1_MAX_MEMORY_MB = "ssdb_tiered_l1_max_memory_mb";
+    /** maximum number of milliseconds a value is served from the tiered store's local tier */
+    static final String TIERED_L1_TTL_MS = "ssdb_tiered_l1_ttl_ms";
+    /** number of milliseconds between two polls of the invalidation log */
+    static final String TIERED_POLL_INTERVAL_MS = "ssdb_tiered_poll_interval_ms";
+    /** number of invalidations kept in the invalidation log; nodes that fall further behind drop their local tier */
+    static final String TIERED_INVALIDATION_LOG_SIZE = "ssdb_tiered_invalidation_log_size";
+    /** resolution in milliseconds of the timing wheel that drops local state of expired values; 0 disables it */
+    static final String EXPIRY_TICK_MS = "ssdb_expiry_tick_ms";
+    /** maximum number of expirations held by the timing wheel; further ones are left to the sweeper */
+    static final String EXPIRY_MAX_ENTRIES = "ssdb_expiry_max_entries";
+
+    private SSDBConfig() {
+    }
+
+    static String getString(String key, String defaultValue) {
+        String value = LC.get(key);
+        return Strings.isNullOrEmpty(value) ? defaultValue : value.trim();
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ZimbraLog.extensions.warn("invalid value '%s' for localconfig key %s, using %d", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ZimbraLog.extensions.warn("invalid value '%s' for localconfig key %s, using %d", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = LC.get(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
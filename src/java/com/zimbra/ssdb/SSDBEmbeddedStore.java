@@ -0,0 +1,301 @@
+package com.zimbra.ssdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.ephemeral.EphemeralInput;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.ephemeral.EphemeralResult;
+import com.zimbra.cs.ephemeral.EphemeralStore;
+
+/**
+ *
+ * SSDBEmbeddedStore keeps ephemeral attributes inside the mailbox server process, for single-node
+ * installations that do not want to run SSDB, and for tests.
+ *
+ * Attributes use the same keys as {@link SSDBEphemeralStore}, "entry type|entry ID|attribute name[|dynamic part]",
+ * and live in an {@link SSDBOffHeapTable} of at most ssdb_embedded_max_memory_mb megabytes.
+ * Expired attributes are never returned and are removed every ssdb_embedded_expiry_tick_ms.
+ *
+ * The backend URL is "ssdb-embedded:" to keep the attributes in memory only, or "ssdb-embedded:<file>"
+ * to also log every change to an {@link SSDBAppendOnlyFile}, which is replayed when the store is created
+ * and synced to disk every ssdb_embedded_sync_interval_ms. Once the file holds more than ssdb_embedded_compact_min_mb
+ * megabytes and more than twice the size of the attributes, it is compacted in the background.
+ * The attributes are not shared with other servers.
+ *
+ */
+public class SSDBEmbeddedStore extends EphemeralStore {
+    public static final String EMBEDDED_STORE_ID = "ssdb-embedded";
+    private static final long COMPACT_CHECK_MILLIS = 60000L;
+
+    private final SSDBOffHeapTable table;
+    private final SSDBAppendOnlyFile log;
+    private final ScheduledExecutorService executor;
+    private final long compactMinBytes;
+    protected String url;
+
+    public SSDBEmbeddedStore(String url) throws ServiceException {
+        this(getFile(url), SSDBConfig.getLong(SSDBConfig.EMBEDDED_MAX_MEMORY_MB, 256L) * 1024L * 1024L,
+                Math.max(1L, SSDBConfig.getLong(SSDBConfig.EMBEDDED_EXPIRY_TICK_MS, 1000L)),
+                SSDBConfig.getLong(SSDBConfig.EMBEDDED_SYNC_INTERVAL_MS, 1000L),
+                SSDBConfig.getLong(SSDBConfig.EMBEDDED_COMPACT_MIN_MB, 64L) * 1024L * 1024L);
+        this.url = url;
+    }
+
+    /**
+     * @param file the append-only file, or null to keep the attributes in memory only
+     */
+    @VisibleForTesting
+    SSDBEmbeddedStore(File file, long maxBytes, long tickMillis, long syncMillis, long compactMinBytes) throws ServiceException {
+        this.compactMinBytes = compactMinBytes;
+        table = new SSDBOffHeapTable(maxBytes, tickMillis);
+        if (file != null) {
+            try {
+                log = SSDBAppendOnlyFile.load(file, table, System.currentTimeMillis());
+            } catch (IOException e) {
+                throw ServiceException.FAILURE(String.format("could not load embedded ephemeral store from %s", file), e);
+            }
+            table.setJournal(log);
+        } else {
+            log = null;
+        }
+        setAttributeEncoder(new SSDBAttributeEncoder());
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBEmbedded-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                int expired = table.expire(System.currentTimeMillis());
+                if (expired > 0) {
+                    ZimbraLog.extensions.debug("removed %d expired attributes from the embedded ephemeral store", expired);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        if (log != null && syncMillis > 0L) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    log.sync();
+                }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        if (log != null) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactIfNeeded();
+                }
+            }, COMPACT_CHECK_MILLIS, COMPACT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compacts the append-only file once it holds at least compactMinBytes and more than twice the size of the attributes
+     *
+     * @return true if the file was compacted
+     */
+    @VisibleForTesting
+    boolean compactIfNeeded() {
+        long logBytes = log.getLogBytes();
+        if (logBytes < compactMinBytes || logBytes <= 2L * table.getUsedBytes()) {
+            return false;
+        }
+        try {
+            log.compact(table, System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            ZimbraLog.extensions.warn("could not compact the embedded ephemeral store's file", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the file named by a backend URL of the form "ssdb-embedded:[<file>]", or null if there is none
+     */
+    static File getFile(String url) throws ServiceException {
+        String prefix = EMBEDDED_STORE_ID + ":";
+        if (url == null || !url.toLowerCase().startsWith(prefix)) {
+            throw ServiceException.FAILURE(String.format(
+                    "embedded ephemeral backend URL must be of the form 'ssdb-embedded:[<file>]', got '%s'", url), null);
+        }
+        String path = url.substring(prefix.length()).trim();
+        return Strings.isNullOrEmpty(path) ? null : new File(path);
+    }
+
+    @Override
+    public EphemeralResult get(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        String value = table.get(encodeKey(key, location), System.currentTimeMillis());
+        return value == null ? EphemeralResult.emptyResult(key) : new EphemeralResult(key, value);
+    }
+
+    @Override
+    public void set(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
+        if (attribute.getValue() == null) {
+            delete(attribute.getEphemeralKey(), "", location);
+            return;
+        }
+        String encodedKey = encodeKey(attribute, location);
+        Long expires = attribute.getExpiration();
+        try {
+            if (expires != null && expires > 0L && expires <= System.currentTimeMillis()) {
+                // already expired
+                table.remove(encodedKey);
+                return;
+            }
+            if (!table.put(encodedKey, attribute.getValue().toString(), expires == null ? 0L : expires)) {
+                throw ServiceException.FAILURE(String.format(
+                        "embedded ephemeral store is full, %d bytes used", table.getUsedBytes()), null);
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("could not write to the embedded ephemeral store's file", e);
+        }
+    }
+
+    @Override
+    public void update(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
+        set(attribute, location);
+    }
+
+    @Override
+    public void delete(EphemeralKey key, String value, EphemeralLocation location) throws ServiceException {
+        try {
+            table.remove(encodeKey(new EphemeralInput(key, value), location));
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("could not write to the embedded ephemeral store's file", e);
+        }
+    }
+
+    @Override
+    public boolean has(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        return table.get(encodeKey(key, location), System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * Expired attributes are never returned; this removes all of them right away instead of at the next tick
+     */
+    @Override
+    public void purgeExpired(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        table.expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes all attributes of the location. This visits every attribute in the store.
+     */
+    @Override
+    public void deleteData(EphemeralLocation location) throws ServiceException {
+        try {
+            int deleted = table.removePrefix(SSDBKeyEncoder.encodeLocation(location));
+            ZimbraLog.extensions.debug("deleted %d embedded ephemeral attributes", deleted);
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("could not write to the embedded ephemeral store's file", e);
+        }
+    }
+
+    /**
+     * @return the table holding the attributes
+     */
+    public SSDBOffHeapTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return the append-only file, or null if the attributes are kept in memory only
+     */
+    @VisibleForTesting
+    SSDBAppendOnlyFile getLog() {
+        return log;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        if (log != null) {
+            table.setJournal(null);
+            try {
+                log.close();
+            } catch (IOException e) {
+                ZimbraLog.extensions.warn("could not close the embedded ephemeral store's file", e);
+            }
+        }
+        table.clear();
+    }
+
+    public static class Factory extends EphemeralStore.Factory {
+
+        private static final ReentrantLock LOCK = new ReentrantLock();
+        private static volatile SSDBEmbeddedStore instance;
+
+        @Override
+        public EphemeralStore getNewStore() throws ServiceException {
+            String url = getURL();
+            if (url == null) {
+                ZimbraLog.extensions.debug("No URL found to create instance of SSDBEmbeddedStore");
+                return null;
+            }
+            return new SSDBEmbeddedStore(url);
+        }
+
+        @Override
+        public EphemeralStore getStore() {
+            SSDBEmbeddedStore store = instance;
+            if (store != null) {
+                return store;
+            }
+            LOCK.lock();
+            try {
+                if (instance == null) {
+                    try {
+                        String url = getURL();
+                        if (url != null) {
+                            instance = new SSDBEmbeddedStore(url);
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.extensions.error("Could not create an instance of SSDBEmbeddedStore", e);
+                    }
+                }
+                return instance;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        @Override
+        public void startup() {
+            getStore();
+        }
+
+        @Override
+        public void shutdown() {
+            LOCK.lock();
+            try {
+                if (instance != null) {
+                    instance.shutdown();
+                    instance = null;
+                }
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        @Override
+        public void test(String url) throws ServiceException {
+            File file = getFile(url);
+            if (file == null) {
+                return;
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (file.exists() ? !file.canWrite() : (dir == null || !dir.canWrite())) {
+                throw ServiceException.FAILURE(String.format("cannot write embedded ephemeral store file %s", file), null);
+            }
+        }
+    }
+}
@@ -1,13 +1,34 @@
 package com.zimbra.ssdb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Config;
@@ -18,7 +39,9 @@ import com.zimbra.cs.ephemeral.EphemeralKeyValuePair;
 import com.zimbra.cs.ephemeral.EphemeralLocation;
 import com.zimbra.cs.ephemeral.EphemeralResult;
 import com.zimbra.cs.ephemeral.EphemeralStore;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
 import com.zimbra.cs.ldap.LdapClient;
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
 
 /**
  *
@@ -43,112 +66,1092 @@ import com.zimbra.cs.ldap.LdapClient;
  * and value that looks like the following: "69643d33363a30666532376439312d656339342d346534352d383436342d3339326262383736313364383b6578703d31333a313437333735383435373138323b7369643d31303a3131353031303934343a6b"
  *
  * SSDBEphemeralStore uses SSDB's built-in key expiration for attributes that have a non-zero time to live
+ *
+ * Lookups of hot attributes can optionally be served from an in-process {@link SSDBNearCache},
+ * which is enabled by setting the localconfig key ssdb_near_cache_size to a positive value.
+ * Repeated lookups of absent tokens can likewise be short-circuited by an {@link SSDBNegativeCache},
+ * which is enabled by setting ssdb_negative_cache_size to a positive value.
+ *
+ * If ssdb_write_behind_enabled is true, mutations are queued in an {@link SSDBWriteBehindQueue}
+ * and written asynchronously in pipelined batches. Reads on this node see queued mutations immediately.
+ *
+ * The backend URL may list several SSDB instances, e.g. "ssdb:ssdb1:8888,ssdb2:8888". Keys are then distributed
+ * over the instances by an {@link SSDBShardRing}, which keeps all attributes of one entry on the same instance.
+ * Each instance may be followed by its read replicas, separated by '/', e.g. "ssdb:master1:8888/slave1:8888,master2:8888".
+ * Which node serves reads is decided by the {@link SSDBReadPolicy} named in ssdb_read_policy. Reads of a key
+ * written by this node within the last ssdb_read_your_writes_ms milliseconds always go to the master.
+ * With ssdb_read_policy=nearest, every node is pinged every ssdb_latency_probe_ms to measure its latency.
+ *
+ * Every node is guarded by an {@link SSDBCircuitBreaker} when ssdb_circuit_breaker_failures is positive.
+ * While a node's breaker is open, calls to it fail fast and the node is probed in the background.
+ * If ssdb_fallback_size is positive, writes made during the outage are kept in an {@link SSDBFallbackStore},
+ * served to local reads, and replayed to SSDB when the breaker closes.
+ *
+ * Values are written in the {@link SSDBValueFormat} named in ssdb_value_format (legacy text by default)
+ * and read in either format. Binary values store hex payloads such as CSRF token data as raw bytes and, if
+ * ssdb_value_compress_threshold is positive, Deflate-compress payloads of at least that many bytes.
+ *
+ * With ssdb_layout=hash, all attributes of an entry are kept in one SSDB hash (see {@link SSDBLayout}),
+ * so that {@link #deleteData(EphemeralLocation)} wipes them all and {@link #getData(EphemeralLocation)}
+ * reads them in one round-trip. Existing keys are moved over by {@link SSDBLayoutMigrator}; until it has run
+ * on every shard and ssdb_layout_legacy_keys is turned off, reads fall back to the top-level key of an attribute
+ * and writes, deletes and deleteData remove it as well.
+ * With the default layout, deleteData purges all keys of the entry with range scans, ssdb_purge_batch_size
+ * keys at a time.
+ *
+ * Values whose expiration is only encoded in the value are deleted by {@link #purgeExpired(EphemeralKey, EphemeralLocation)}
+ * and, if ssdb_sweep_keys_per_second is positive, by a rate-limited background {@link SSDBSweeper}.
+ * SSDB expires keys in whole seconds, so time to live is rounded up and reads enforce the expiration in
+ * milliseconds. If ssdb_expiry_tick_ms is positive, an {@link SSDBExpiryScheduler} drops near-cache entries
+ * as soon as their values expire and, with the hash layout, deletes the expired fields.
+ *
+ * getAsync, hasAsync, setAsync and deleteAsync run the corresponding operation on an {@link SSDBAsyncExecutor}
+ * sized by ssdb_async_threads and return a CompletableFuture, so that callers can overlap ephemeral lookups
+ * with other work.
+ *
+ * If ssdb_max_concurrent_calls is positive, at most that many calls to a node hold a connection at a time,
+ * however many threads make calls; the others wait up to ssdb_concurrent_call_wait_ms for a permit. Together
+ * with the lock-based {@link Factory}, this lets request handlers run on a large number of lightweight
+ * threads without one socket per thread.
+ *
+ * Connection pools are configured from localconfig as well: ssdb_pool_min_idle connections per node are opened
+ * by {@link Factory#startup()} and kept open, idle connections are validated and evicted in the background, and
+ * ssdb_connect_timeout_ms and ssdb_socket_timeout_ms bound network waits. If ssdb_pool_tune_interval_ms is positive,
+ * an {@link SSDBPoolSizer} adjusts pool sizes to the observed borrow waits.
+ *
+ * With ssdb_transport=multiplexed, single-key reads and writes and multi-gets are sent over
+ * ssdb_multiplexed_connections shared connections per node by an {@link SSDBMultiplexedClient}, which pipelines
+ * concurrent commands, instead of borrowing a pooled connection per call. Other operations still use the pool.
+ *
+ * The latency and outcome of every store operation is recorded in {@link SSDBMetrics}, which exports it
+ * together with the pool gauges of every node over JMX.
  */
 public class SSDBEphemeralStore extends EphemeralStore {
     public static String SSDB_EPHEMERAL_STORE = "ssdb";
-    private JedisPool pool;
+    /** number of keys per multi_del command when purging an entry */
+    private static final int MULTI_DEL_SIZE = 100;
+    private SSDBShardRing shards;
+    private SSDBNearCache nearCache;
+    private SSDBNegativeCache negativeCache;
+    private SSDBWriteBehindQueue writeBehind;
+    private SSDBReadPolicy readPolicy;
+    private SSDBRetryPolicy retryPolicy;
+    private SSDBFallbackStore fallbackStore;
+    private SSDBValueFormat valueFormat;
+    private SSDBLayout layout;
+    private boolean legacyKeys;
+    private int compressThreshold;
+    private int purgeBatchSize;
+    private long callPermitWaitMillis;
+    private SSDBTransport transport;
+    private ScheduledExecutorService prober;
+    private SSDBSweeper sweeper;
+    private SSDBExpiryScheduler expiryScheduler;
+    private SSDBPoolSizer poolSizer;
+    private final SSDBAsyncExecutor asyncExecutor = SSDBAsyncExecutor.fromConfig();
+    private Cache<String, Boolean> recentWrites;
+    private ScheduledExecutorService latencyProber;
+    private final SSDBMetrics metrics = new SSDBMetrics();
     protected String url;
     public SSDBEphemeralStore(String url) throws ServiceException {
         this.url = url;
-        pool = getPool(url);
+        shards = new SSDBShardRing(getShards(url));
+        nearCache = SSDBNearCache.fromConfig();
+        negativeCache = SSDBNegativeCache.fromConfig();
+        writeBehind = SSDBWriteBehindQueue.fromConfig(this::writeBatch);
+        readPolicy = SSDBReadPolicy.fromConfig();
+        retryPolicy = SSDBRetryPolicy.fromConfig();
+        fallbackStore = SSDBFallbackStore.fromConfig();
+        valueFormat = SSDBValueFormat.fromConfig();
+        layout = SSDBLayout.fromConfig();
+        legacyKeys = SSDBConfig.getBoolean(SSDBConfig.LAYOUT_LEGACY_KEYS, true);
+        compressThreshold = SSDBConfig.getInt(SSDBConfig.VALUE_COMPRESS_THRESHOLD, 0);
+        purgeBatchSize = Math.max(1, SSDBConfig.getInt(SSDBConfig.PURGE_BATCH_SIZE, 1000));
+        initCircuitBreakers();
+        initLatencyProbe();
+        int maxConcurrentCalls = SSDBConfig.getInt(SSDBConfig.MAX_CONCURRENT_CALLS, 0);
+        callPermitWaitMillis = SSDBConfig.getLong(SSDBConfig.CONCURRENT_CALL_WAIT_MS, 5000L);
+        for (SSDBNode node : getNodes()) {
+            node.setMaxConcurrentCalls(maxConcurrentCalls);
+        }
+        transport = SSDBTransport.fromConfig();
+        if (transport == SSDBTransport.MULTIPLEXED) {
+            int connections = Math.max(1, SSDBConfig.getInt(SSDBConfig.MULTIPLEXED_CONNECTIONS, 2));
+            for (SSDBNode node : getNodes()) {
+                node.setMultiplexedClient(new SSDBMultiplexedClient(node.getHost(),
+                        node.getPort() != null ? node.getPort() : Protocol.DEFAULT_PORT, connections,
+                        SSDBConfig.getInt(SSDBConfig.CONNECT_TIMEOUT_MS, Protocol.DEFAULT_TIMEOUT),
+                        SSDBConfig.getInt(SSDBConfig.SOCKET_TIMEOUT_MS, Protocol.DEFAULT_TIMEOUT)));
+            }
+        }
+        long readYourWritesMillis = SSDBConfig.getLong(SSDBConfig.READ_YOUR_WRITES_MS, 1000L);
+        if (readPolicy != SSDBReadPolicy.PRIMARY && readYourWritesMillis > 0L) {
+            recentWrites = CacheBuilder.newBuilder()
+                    .maximumSize(100000)
+                    .expireAfterWrite(readYourWritesMillis, TimeUnit.MILLISECONDS)
+                    .build();
+        }
         setAttributeEncoder(new SSDBAttributeEncoder());
+        metrics.register(getNodes());
+        sweeper = SSDBSweeper.fromConfig(this::getShards, () -> layout);
+        if (sweeper != null) {
+            sweeper.start();
+        }
+        expiryScheduler = SSDBExpiryScheduler.fromConfig(this::onExpired);
+        poolSizer = SSDBPoolSizer.fromConfig(this::getNodes);
     }
 
     @Override
     public EphemeralResult get(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        return metrics.time(SSDBOperation.GET, () -> getInternal(key, location));
+    }
+
+    /**
+     * Asynchronous {@link #get(EphemeralKey, EphemeralLocation)}
+     */
+    public CompletableFuture<EphemeralResult> getAsync(EphemeralKey key, EphemeralLocation location) {
+        return asyncExecutor.submit(() -> get(key, location));
+    }
+
+    /**
+     * Asynchronous {@link #getAll(Collection, EphemeralLocation)}
+     */
+    public CompletableFuture<List<EphemeralResult>> getAllAsync(Collection<EphemeralKey> keys, EphemeralLocation location) {
+        return asyncExecutor.submit(() -> getAll(keys, location));
+    }
+
+    /**
+     * Asynchronous {@link #has(EphemeralKey, EphemeralLocation)}
+     */
+    public CompletableFuture<Boolean> hasAsync(EphemeralKey key, EphemeralLocation location) {
+        return asyncExecutor.submit(() -> has(key, location));
+    }
+
+    /**
+     * Asynchronous {@link #set(EphemeralInput, EphemeralLocation)}
+     */
+    public CompletableFuture<Void> setAsync(EphemeralInput attribute, EphemeralLocation location) {
+        return asyncExecutor.submit(() -> {
+            set(attribute, location);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous {@link #delete(EphemeralKey, String, EphemeralLocation)}
+     */
+    public CompletableFuture<Void> deleteAsync(EphemeralKey key, String value, EphemeralLocation location) {
+        return asyncExecutor.submit(() -> {
+            delete(key, value, location);
+            return null;
+        });
+    }
+
+    private EphemeralResult getInternal(EphemeralKey key, EphemeralLocation location) throws ServiceException {
         String encodedKey = encodeKey(key, location);
-        return new JedisResourceWithRetry<EphemeralResult> () {
+        Mutation pendingWrite = getPendingWrite(encodedKey);
+        if (pendingWrite != null) {
+            EphemeralKeyValuePair kvp = pendingValue(encodedKey, pendingWrite);
+            return kvp == null ? EphemeralResult.emptyResult(key) : new EphemeralResult(key, kvp.getValue());
+        }
+        boolean cacheable = nearCache != null && nearCache.isCacheable(key);
+        if (cacheable) {
+            String cachedValue = nearCache.get(encodedKey);
+            if (cachedValue != null) {
+                return new EphemeralResult(key, cachedValue);
+            }
+        }
+        boolean negativeCacheable = negativeCache != null && negativeCache.isCacheable(key);
+        if (negativeCacheable && negativeCache.isAbsent(encodedKey)) {
+            return EphemeralResult.emptyResult(key);
+        }
+        long cacheTicket = cacheable ? nearCache.startLookup() : 0L;
+        long ticket = negativeCacheable ? negativeCache.startLookup() : 0L;
+        return new KeyValueResourceWithRetry<EphemeralResult> (readNodeFor(encodedKey)) {
             @Override
-            public EphemeralResult jedisMethod() throws JedisException, ServiceException {
-                try (Jedis jedis = pool.getResource()) {
-                    String encodedValue = jedis.get(encodedKey);
-                    if(encodedValue != null) {
-                        EphemeralKeyValuePair kvp = decode(encodedKey, encodedValue);
-                        return new EphemeralResult(key, kvp.getValue());
+            public EphemeralResult commandsMethod(SSDBKeyValueCommands commands) throws JedisException, ServiceException {
+                byte[] encodedValue = readValue(commands, encodedKey);
+                EphemeralKeyValuePair kvp = encodedValue == null ? null : decodeValue(encodedKey, encodedValue);
+                if(kvp != null && !isExpired(kvp)) {
+                    if (cacheable) {
+                        nearCache.put(encodedKey, kvp.getValue(), getExpires(kvp), cacheTicket);
                     }
-                    return EphemeralResult.emptyResult(key);
+                    return new EphemeralResult(key, kvp.getValue());
                 }
+                if (negativeCacheable) {
+                    negativeCache.putAbsent(encodedKey, ticket);
+                }
+                return EphemeralResult.emptyResult(key);
+            }
+
+            @Override
+            protected EphemeralResult fallbackMethod(SSDBNode node) throws ServiceException {
+                return fallbackRead(key, encodedKey, node);
             }
         }.callMethod();
     }
 
+    /**
+     * Reads an attribute together with the expiration encoded in its value, for callers that keep their
+     * own copy of it. Local writes not yet in SSDB are seen; the near and negative caches are bypassed.
+     *
+     * @return the attribute, or null if it is absent or expired
+     */
+    EphemeralKeyValuePair getEntry(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        return metrics.time(SSDBOperation.GET, () -> {
+            String encodedKey = encodeKey(key, location);
+            Mutation pendingWrite = getPendingWrite(encodedKey);
+            if (pendingWrite != null) {
+                return pendingValue(encodedKey, pendingWrite);
+            }
+            return new KeyValueResourceWithRetry<EphemeralKeyValuePair> (readNodeFor(encodedKey)) {
+                @Override
+                public EphemeralKeyValuePair commandsMethod(SSDBKeyValueCommands commands) throws JedisException, ServiceException {
+                    byte[] encodedValue = readValue(commands, encodedKey);
+                    return encodedValue == null ? null : liveOrNull(decodeValue(encodedKey, encodedValue));
+                }
+
+                @Override
+                protected EphemeralKeyValuePair fallbackMethod(SSDBNode node) throws ServiceException {
+                    if (fallbackStore == null) {
+                        throw unavailable(node);
+                    }
+                    // writes kept by the fallback store have been looked at already
+                    return null;
+                }
+            }.callMethod();
+        });
+    }
+
+    private static EphemeralKeyValuePair liveOrNull(EphemeralKeyValuePair kvp) {
+        return isExpired(kvp) ? null : kvp;
+    }
+
+    /**
+     * @return the value of a write not yet in SSDB, or null if it is a delete or has expired while queued
+     */
+    private EphemeralKeyValuePair pendingValue(String encodedKey, Mutation pendingWrite) throws ServiceException {
+        return pendingWrite.isDelete() ? null : liveOrNull(decodeValue(encodedKey, pendingWrite.getValue()));
+    }
+
     @Override
     public void set(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
+        metrics.time(SSDBOperation.SET, () -> {
+            setInternal(attribute, location);
+            return null;
+        });
+    }
+
+    private void setInternal(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
         String encodedKey = encodeKey(attribute, location);
-        String encodedValue = encodeValue(attribute, location);
-        if(encodedValue != null) {
-            if(attribute.getExpiration() == null) {
-                new JedisResourceWithRetry<String> () {
-                    @Override
-                    public String jedisMethod() throws JedisException {
-                        try (Jedis jedis = pool.getResource()) {
-                            return jedis.set(encodedKey, encodedValue);
+        byte[] encodedValue = encodeValueBytes(attribute);
+        noteWrite(encodedKey);
+        try {
+            if(encodedValue != null) {
+                if(attribute.getExpiration() == null) {
+                    if (writeBehind != null) {
+                        writeBehind.enqueue(Mutation.set(encodedKey, encodedValue, 0));
+                        return;
+                    }
+                    new KeyValueResourceWithRetry<Void> (shardFor(encodedKey)) {
+                        @Override
+                        public Void commandsMethod(SSDBKeyValueCommands commands) throws JedisException {
+                            writeValue(commands, encodedKey, encodedValue, 0);
+                            return null;
                         }
+
+                        @Override
+                        protected Void fallbackMethod(SSDBNode node) throws ServiceException {
+                            return fallbackWrite(Mutation.set(encodedKey, encodedValue, 0), node);
+                        }
+                    }.callMethod();
+                } else {
+                    long relativeMillis = attribute.getRelativeExpiration();
+                    if (relativeMillis <= 0L) {
+                        // already expired, an older value must not outlive it
+                        deleteInternal(attribute.getEphemeralKey(), "", location);
+                        return;
                     }
-                }.callMethod();
-            } else {
-                int ttl = (int)(attribute.getRelativeExpiration()/1000);
-                if(ttl > 0) {
-                    new JedisResourceWithRetry<String> () {
+                    // SSDB expires keys in whole seconds; reads enforce the expiration encoded in the value
+                    int ttl = (int) Math.min((relativeMillis + 999L) / 1000L, Integer.MAX_VALUE);
+                    if (expiryScheduler != null) {
+                        expiryScheduler.schedule(encodedKey, attribute.getExpiration());
+                    }
+                    if (writeBehind != null) {
+                        writeBehind.enqueue(Mutation.set(encodedKey, encodedValue, ttl));
+                        return;
+                    }
+                    new KeyValueResourceWithRetry<Void> (shardFor(encodedKey)) {
                         @Override
-                        public String jedisMethod() throws JedisException {
-                            try (Jedis jedis = pool.getResource()) {
-                                return jedis.setex(encodedKey, ttl, encodedValue);
-                            }
+                        public Void commandsMethod(SSDBKeyValueCommands commands) throws JedisException {
+                            writeValue(commands, encodedKey, encodedValue, ttl);
+                            return null;
+                        }
+
+                        @Override
+                        protected Void fallbackMethod(SSDBNode node) throws ServiceException {
+                            return fallbackWrite(Mutation.set(encodedKey, encodedValue, ttl), node);
                         }
                     }.callMethod();
                 }
+            } else {
+                deleteInternal(attribute.getEphemeralKey(), "", location);
             }
-        } else {
-            this.delete(attribute.getEphemeralKey(), "", location);
+        } finally {
+            invalidateCaches(encodedKey);
         }
     }
 
     @Override
     public void update(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
-        set(attribute, location);
+        metrics.time(SSDBOperation.UPDATE, () -> {
+            setInternal(attribute, location);
+            return null;
+        });
     }
 
 
     @Override
     public void delete(EphemeralKey key, String value, EphemeralLocation location) throws ServiceException {
+        metrics.time(SSDBOperation.DELETE, () -> {
+            deleteInternal(key, value, location);
+            return null;
+        });
+    }
+
+    private void deleteInternal(EphemeralKey key, String value, EphemeralLocation location) throws ServiceException {
         EphemeralInput attribute = new EphemeralInput(key, value);
         String encodedKey = encodeKey(attribute, location);
-        new JedisResourceWithRetry<Long> () {
-            @Override
-            public Long jedisMethod() throws JedisException {
-                try (Jedis jedis = pool.getResource()) {
-                    return jedis.del(encodedKey);
+        noteWrite(encodedKey);
+        try {
+            if (writeBehind != null) {
+                writeBehind.enqueue(Mutation.delete(encodedKey));
+                return;
+            }
+            new KeyValueResourceWithRetry<Long> (shardFor(encodedKey)) {
+                @Override
+                public Long commandsMethod(SSDBKeyValueCommands commands) throws JedisException {
+                    return deleteValue(commands, encodedKey);
                 }
+
+                @Override
+                protected Long fallbackMethod(SSDBNode node) throws ServiceException {
+                    return fallbackWrite(Mutation.delete(encodedKey), node);
+                }
+            }.callMethod();
+        } finally {
+            if (nearCache != null) {
+                nearCache.invalidate(encodedKey);
             }
-        }.callMethod();
+        }
+    }
+
+    /**
+     * Drops the cached copies of a key once it has been written. Lookups that started before
+     * the invalidation hold a stale ticket and do not cache what they read.
+     */
+    private void invalidateCaches(String encodedKey) {
+        if (nearCache != null) {
+            nearCache.invalidate(encodedKey);
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidate(encodedKey);
+        }
     }
 
     @Override
     public boolean has(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        return metrics.time(SSDBOperation.HAS, () -> hasInternal(key, location));
+    }
+
+    private boolean hasInternal(EphemeralKey key, EphemeralLocation location) throws ServiceException {
         String encodedKey = encodeKey(key, location);
-        return new JedisResourceWithRetry<Boolean> () {
+        Mutation pendingWrite = getPendingWrite(encodedKey);
+        if (pendingWrite != null) {
+            return pendingValue(encodedKey, pendingWrite) != null;
+        }
+        boolean cacheable = nearCache != null && nearCache.isCacheable(key);
+        if (cacheable && nearCache.get(encodedKey) != null) {
+            return true;
+        }
+        boolean negativeCacheable = negativeCache != null && negativeCache.isCacheable(key);
+        if (negativeCacheable && negativeCache.isAbsent(encodedKey)) {
+            return false;
+        }
+        long cacheTicket = cacheable ? nearCache.startLookup() : 0L;
+        long ticket = negativeCacheable ? negativeCache.startLookup() : 0L;
+        return new KeyValueResourceWithRetry<Boolean> (readNodeFor(encodedKey)) {
             @Override
-            public Boolean jedisMethod() throws JedisException {
-                try (Jedis jedis = pool.getResource()) {
-                    String value = jedis.get(encodedKey);
-                    return (value != null);
+            public Boolean commandsMethod(SSDBKeyValueCommands commands) throws JedisException, ServiceException {
+                byte[] value = readValue(commands, encodedKey);
+                EphemeralKeyValuePair kvp = null;
+                if (value != null) {
+                    kvp = decodeValue(encodedKey, value);
+                    if (isExpired(kvp)) {
+                        value = null;
+                    }
+                }
+                if (value != null && cacheable) {
+                    nearCache.put(encodedKey, kvp.getValue(), getExpires(kvp), cacheTicket);
+                } else if (value == null && negativeCacheable) {
+                    negativeCache.putAbsent(encodedKey, ticket);
                 }
+                return (value != null);
+            }
+
+            @Override
+            protected Boolean fallbackMethod(SSDBNode node) throws ServiceException {
+                return fallbackRead(key, encodedKey, node).getValue() != null;
             }
         }.callMethod();
     }
 
+    /**
+     * Looks up several attributes of the same location with a single MGET round-trip.
+     * Falls back to one {@link #get(EphemeralKey, EphemeralLocation)} call per key if the MGET fails.
+     *
+     * @return one result per key, in the iteration order of keys
+     */
+    public List<EphemeralResult> getAll(Collection<EphemeralKey> keys, EphemeralLocation location) throws ServiceException {
+        return metrics.time(SSDBOperation.GET_ALL, () -> getAllInternal(keys, location));
+    }
+
+    private List<EphemeralResult> getAllInternal(Collection<EphemeralKey> keys, EphemeralLocation location) throws ServiceException {
+        List<EphemeralKey> keyList = new ArrayList<EphemeralKey>(keys);
+        EphemeralResult[] results = new EphemeralResult[keyList.size()];
+        List<Integer> pending = new ArrayList<Integer>(keyList.size());
+        List<String> pendingKeys = new ArrayList<String>(keyList.size());
+        long cacheTicket = nearCache != null ? nearCache.startLookup() : 0L;
+        long ticket = negativeCache != null ? negativeCache.startLookup() : 0L;
+        for (int i = 0; i < keyList.size(); i++) {
+            EphemeralKey key = keyList.get(i);
+            String encodedKey = encodeKey(key, location);
+            Mutation pendingWrite = getPendingWrite(encodedKey);
+            if (pendingWrite != null) {
+                EphemeralKeyValuePair kvp = pendingValue(encodedKey, pendingWrite);
+                results[i] = kvp == null ? EphemeralResult.emptyResult(key) : new EphemeralResult(key, kvp.getValue());
+                continue;
+            }
+            if (nearCache != null && nearCache.isCacheable(key)) {
+                String cachedValue = nearCache.get(encodedKey);
+                if (cachedValue != null) {
+                    results[i] = new EphemeralResult(key, cachedValue);
+                    continue;
+                }
+            }
+            if (negativeCache != null && negativeCache.isCacheable(key) && negativeCache.isAbsent(encodedKey)) {
+                results[i] = EphemeralResult.emptyResult(key);
+                continue;
+            }
+            pending.add(i);
+            pendingKeys.add(encodedKey);
+        }
+        if (pending.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        List<byte[]> encodedValues;
+        try {
+            encodedValues = new KeyValueResourceWithRetry<List<byte[]>> (readNodeFor(pendingKeys.get(0))) {
+                @Override
+                public List<byte[]> commandsMethod(SSDBKeyValueCommands commands) throws JedisException {
+                    return readValues(commands, pendingKeys);
+                }
+            }.callMethod();
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.warn("SSDB multi-get of %d keys failed, falling back to single key lookups", pendingKeys.size(), e);
+            for (int i : pending) {
+                results[i] = get(keyList.get(i), location);
+            }
+            return Arrays.asList(results);
+        }
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            EphemeralKey key = keyList.get(i);
+            String encodedKey = pendingKeys.get(j);
+            byte[] encodedValue = encodedValues.get(j);
+            EphemeralKeyValuePair kvp = encodedValue == null ? null : decodeValue(encodedKey, encodedValue);
+            if (kvp != null && !isExpired(kvp)) {
+                if (nearCache != null && nearCache.isCacheable(key)) {
+                    nearCache.put(encodedKey, kvp.getValue(), getExpires(kvp), cacheTicket);
+                }
+                results[i] = new EphemeralResult(key, kvp.getValue());
+            } else {
+                if (negativeCache != null && negativeCache.isCacheable(key)) {
+                    negativeCache.putAbsent(encodedKey, ticket);
+                }
+                results[i] = EphemeralResult.emptyResult(key);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return true if at least one of the keys exists in the location. All keys are checked with a single MGET round-trip.
+     */
+    public boolean hasAny(Collection<EphemeralKey> keys, EphemeralLocation location) throws ServiceException {
+        for (EphemeralResult result : getAll(keys, location)) {
+            if (result.getValue() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * SSDB deletes keys with a time to live by itself. This deletes the values of the key, including all of its
+     * dynamic parts, whose expiration is only encoded in the value. With the hash layout, all expired fields
+     * of the entry's hash are deleted, and so are the expired keys not migrated yet.
+     */
     @Override
     public void purgeExpired(EphemeralKey key, EphemeralLocation location) throws ServiceException {
-        //nothing to do here. SSDB deletes expired keys automagically
+        String encoded = encodeKey(new EphemeralKey(key.getKey()), location);
+        long now = System.currentTimeMillis();
+        if (layout == SSDBLayout.HASH) {
+            new JedisResourceWithRetry<Integer> (shardFor(encoded)) {
+                @Override
+                public Integer jedisMethod(Jedis jedis) throws JedisException {
+                    return SSDBSweeper.deleteExpiredFields(jedis, Collections.singletonList(SSDBLayout.hashName(encoded)), now);
+                }
+            }.callMethod();
+            if (!legacyKeys) {
+                return;
+            }
+        }
+        new JedisResourceWithRetry<Integer> (shardFor(encoded)) {
+            @Override
+            public Integer jedisMethod(Jedis jedis) throws JedisException {
+                return SSDBSweeper.deleteExpired(jedis, Collections.singletonList(encoded), now);
+            }
+        }.callMethod();
+        // dynamic parts are stored under "type|id|attr|"
+        String prefix = encoded + SSDBKeyEncoder.SEPARATOR;
+        String end = rangeEnd(prefix);
+        String start = prefix;
+        while (true) {
+            String from = start;
+            SSDBSweeper.Page page = new JedisResourceWithRetry<SSDBSweeper.Page> (shardFor(encoded)) {
+                @Override
+                public SSDBSweeper.Page jedisMethod(Jedis jedis) throws JedisException {
+                    return SSDBSweeper.sweepPage(jedis, SSDBLayout.KEYS, from, end, purgeBatchSize, now);
+                }
+            }.callMethod();
+            if (page.examined < purgeBatchSize) {
+                return;
+            }
+            start = page.lastKey;
+        }
     }
 
+    /**
+     * Replaces the connection pool of the first shard
+     */
     public void setPool(JedisPool pool) {
-        this.pool = pool;
+        shards.getShards().get(0).setPool(pool);
     }
 
+    /**
+     * @return the connection pool of the first shard
+     */
     protected JedisPool getPool() {
-        return pool;
+        return shards.getShards().get(0).getPool();
+    }
+
+    /**
+     * @return all SSDB shards this store distributes its keys over
+     */
+    public List<SSDBShard> getShards() {
+        return shards.getShards();
+    }
+
+    /**
+     * @return the masters and replicas of all shards
+     */
+    public List<SSDBNode> getNodes() {
+        List<SSDBNode> nodes = new ArrayList<SSDBNode>();
+        for (SSDBShard shard : shards.getShards()) {
+            nodes.add(shard);
+            nodes.addAll(shard.getReplicas());
+        }
+        return nodes;
+    }
+
+    /**
+     * Opens up to count idle connections to every node
+     */
+    public void warmUp(int count) {
+        for (SSDBNode node : getNodes()) {
+            if (node.getCircuitBreaker().isAvailable()) {
+                node.warmUp(count);
+            }
+        }
+    }
+
+    /**
+     * @return latency and error statistics of the store operations
+     */
+    public SSDBMetrics getMetrics() {
+        return metrics;
+    }
+
+    private SSDBShard shardFor(String encodedKey) {
+        return shards.getShard(encodedKey);
+    }
+
+    /**
+     * @return the node that should serve a read of the encoded key under the configured read policy
+     */
+    private SSDBNode readNodeFor(String encodedKey) {
+        SSDBShard shard = shardFor(encodedKey);
+        if (readPolicy == SSDBReadPolicy.PRIMARY || (recentWrites != null && recentWrites.getIfPresent(encodedKey) != null)) {
+            return shard;
+        }
+        SSDBNode node = shard.getReadNode(readPolicy);
+        return node.getCircuitBreaker().isAvailable() ? node : shard;
+    }
+
+    /**
+     * Drops the near-cache entry of a key whose value has expired and, with the hash layout, whose field
+     * SSDB does not expire by itself, deletes the field if it still holds an expired value
+     */
+    private void onExpired(String encodedKey) {
+        if (nearCache != null) {
+            nearCache.invalidate(encodedKey);
+        }
+        if (layout != SSDBLayout.HASH || getPendingWrite(encodedKey) != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            new JedisResourceWithRetry<Integer> (shardFor(encodedKey)) {
+                @Override
+                public Integer jedisMethod(Jedis jedis) throws JedisException {
+                    // a value rewritten since is put back
+                    return SSDBSweeper.deleteFieldsIfExpired(jedis, Collections.singletonList(SSDBLayout.hashName(encodedKey)),
+                            Collections.singletonList(SafeEncoder.encode(SSDBLayout.hashField(encodedKey))), now);
+                }
+            }.callMethod();
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.debug("leaving the expired value of %s to the sweeper", encodedKey, e);
+        }
+    }
+
+    /**
+     * @return true if attributes may still be stored as top-level keys that the hash layout has to look at
+     */
+    private boolean hasLegacyKeys() {
+        return layout == SSDBLayout.HASH && legacyKeys;
+    }
+
+    /**
+     * @return the stored value of the encoded key, or, if the layout has none, of its top-level key not yet migrated
+     */
+    private byte[] readValue(SSDBKeyValueCommands commands, String encodedKey) {
+        byte[] value = layout.get(commands, encodedKey);
+        if (value == null && hasLegacyKeys()) {
+            value = SSDBLayout.KEYS.get(commands, encodedKey);
+        }
+        return value;
+    }
+
+    /**
+     * {@link #readValue(SSDBKeyValueCommands, String)} for several keys of the same entry
+     */
+    private List<byte[]> readValues(SSDBKeyValueCommands commands, List<String> encodedKeys) {
+        List<byte[]> values = layout.getAll(commands, encodedKeys);
+        if (!hasLegacyKeys() || !values.contains(null)) {
+            return values;
+        }
+        List<Integer> missing = new ArrayList<Integer>();
+        List<String> missingKeys = new ArrayList<String>();
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) == null) {
+                missing.add(i);
+                missingKeys.add(encodedKeys.get(i));
+            }
+        }
+        List<byte[]> legacyValues = SSDBLayout.KEYS.getAll(commands, missingKeys);
+        List<byte[]> merged = new ArrayList<byte[]>(values);
+        for (int j = 0; j < missing.size(); j++) {
+            merged.set(missing.get(j), legacyValues.get(j));
+        }
+        return merged;
+    }
+
+    /**
+     * Stores the value, deleting any top-level key not yet migrated so that its older value cannot
+     * be read once the new one is gone
+     */
+    private void writeValue(SSDBKeyValueCommands commands, String encodedKey, byte[] value, int ttlSeconds) {
+        layout.set(commands, encodedKey, value, ttlSeconds);
+        if (hasLegacyKeys()) {
+            SSDBLayout.KEYS.delete(commands, encodedKey);
+        }
+    }
+
+    /**
+     * @return the number of values deleted, including a top-level key not yet migrated
+     */
+    private Long deleteValue(SSDBKeyValueCommands commands, String encodedKey) {
+        Long deleted = layout.delete(commands, encodedKey);
+        if (hasLegacyKeys()) {
+            deleted += SSDBLayout.KEYS.delete(commands, encodedKey);
+        }
+        return deleted;
+    }
+
+    /**
+     * Pins reads of the encoded key to the master for the read-your-writes window
+     */
+    private void noteWrite(String encodedKey) {
+        if (recentWrites != null) {
+            recentWrites.put(encodedKey, Boolean.TRUE);
+        }
+    }
+
+    @VisibleForTesting
+    void setRetryPolicy(SSDBRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    @VisibleForTesting
+    void setReadPolicy(SSDBReadPolicy readPolicy, long readYourWritesMillis) {
+        this.readPolicy = readPolicy;
+        this.recentWrites = readYourWritesMillis <= 0L ? null : CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(readYourWritesMillis, TimeUnit.MILLISECONDS)
+                .<String, Boolean>build();
+    }
+
+    @VisibleForTesting
+    public void setNearCache(SSDBNearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * @return the near-cache in front of SSDB lookups, or null if it is disabled
+     */
+    public SSDBNearCache getNearCache() {
+        return nearCache;
+    }
+
+    @VisibleForTesting
+    public void setNegativeCache(SSDBNegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    /**
+     * @return the cache of keys known to be absent from SSDB, or null if it is disabled
+     */
+    public SSDBNegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    @VisibleForTesting
+    public void setWriteBehindQueue(SSDBWriteBehindQueue writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * @return the queue of asynchronous writes, or null if write-behind is disabled
+     */
+    public SSDBWriteBehindQueue getWriteBehindQueue() {
+        return writeBehind;
+    }
+
+    /**
+     * Synchronously writes all mutations queued by write-behind and stops the background flusher
+     */
+    public void shutdownWriteBehind() throws ServiceException {
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+    }
+
+    /**
+     * @return a mutation of the encoded key that this node has made but not yet written to SSDB, or null
+     */
+    private Mutation getPendingWrite(String encodedKey) {
+        Mutation mutation = writeBehind == null ? null : writeBehind.lookup(encodedKey);
+        if (mutation == null && fallbackStore != null) {
+            mutation = fallbackStore.get(encodedKey);
+        }
+        return mutation;
+    }
+
+    /**
+     * Creates the circuit breakers of all nodes and starts probing nodes whose breaker is not closed
+     */
+    private void initCircuitBreakers() {
+        int failureThreshold = SSDBConfig.getInt(SSDBConfig.CIRCUIT_BREAKER_FAILURES, 5);
+        if (failureThreshold <= 0) {
+            return;
+        }
+        List<SSDBNode> nodes = getNodes();
+        for (SSDBNode node : nodes) {
+            node.setCircuitBreaker(SSDBCircuitBreaker.fromConfig());
+        }
+        if (fallbackStore != null) {
+            for (SSDBShard shard : shards.getShards()) {
+                shard.getCircuitBreaker().setListener(new SSDBCircuitBreaker.Listener() {
+                    @Override
+                    public void onClose(SSDBCircuitBreaker breaker) {
+                        prober.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                replayFallbackWrites(shard);
+                            }
+                        });
+                    }
+                });
+            }
+        }
+        long probeMillis = SSDBConfig.getLong(SSDBConfig.CIRCUIT_BREAKER_PROBE_MS, 1000L);
+        prober = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBProber-%d").setDaemon(true).build());
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (SSDBNode node : nodes) {
+                    if (node.getCircuitBreaker().getState() != SSDBCircuitBreaker.State.CLOSED) {
+                        probe(node);
+                    }
+                }
+            }
+        }, probeMillis, probeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts pinging all nodes with a closed breaker, so that the nearest read policy compares latencies
+     * that are up to date whether or not a node has been chosen lately
+     */
+    private void initLatencyProbe() {
+        long probeMillis = SSDBConfig.getLong(SSDBConfig.LATENCY_PROBE_MS, 1000L);
+        if (readPolicy != SSDBReadPolicy.NEAREST || probeMillis <= 0L) {
+            return;
+        }
+        List<SSDBNode> nodes = getNodes();
+        if (nodes.size() == shards.getShards().size()) {
+            // no replicas, nothing to choose from
+            return;
+        }
+        latencyProber = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBLatencyProber-%d").setDaemon(true).build());
+        latencyProber.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (SSDBNode node : nodes) {
+                    if (node.getCircuitBreaker().getState() == SSDBCircuitBreaker.State.CLOSED) {
+                        ping(node);
+                    }
+                }
+            }
+        }, 0L, probeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void ping(SSDBNode node) {
+        try (Jedis jedis = node.getPool().getResource()) {
+            long start = System.nanoTime();
+            jedis.ping();
+            node.recordPingLatency(System.nanoTime() - start);
+        } catch (JedisException e) {
+            ZimbraLog.extensions.debug("could not ping SSDB node %s", node.getName(), e);
+        }
+    }
+
+    private void probe(SSDBNode node) {
+        try (Jedis jedis = node.getPool().getResource()) {
+            jedis.ping();
+            ZimbraLog.extensions.info("SSDB node %s is reachable again", node.getName());
+            node.getCircuitBreaker().recordSuccess();
+        } catch (JedisException e) {
+            ZimbraLog.extensions.debug("SSDB node %s is still unreachable", node.getName(), e);
+        }
+    }
+
+    /**
+     * Writes the mutations kept in the fallback store during an outage of the shard back to SSDB
+     */
+    private void replayFallbackWrites(SSDBShard shard) {
+        List<Mutation> mutations = fallbackStore.drain(key -> shardFor(key) == shard);
+        if (mutations.isEmpty()) {
+            return;
+        }
+        try {
+            writeBatch(shard, mutations);
+            ZimbraLog.extensions.info("replayed %d writes made while SSDB node %s was unavailable", mutations.size(), shard.getName());
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.warn("failed to replay %d writes to SSDB node %s", mutations.size(), shard.getName(), e);
+            fallbackStore.restore(mutations);
+        }
+    }
+
+    private ServiceException unavailable(SSDBNode node) {
+        return ServiceException.FAILURE(String.format("SSDB node %s is unavailable", node.getName()), null);
+    }
+
+    /**
+     * Answers a read while the node is unavailable from the writes this node made during the outage
+     */
+    private EphemeralResult fallbackRead(EphemeralKey key, String encodedKey, SSDBNode node) throws ServiceException {
+        if (fallbackStore == null) {
+            throw unavailable(node);
+        }
+        Mutation mutation = fallbackStore.get(encodedKey);
+        if (mutation == null || mutation.isDelete()) {
+            return EphemeralResult.emptyResult(key);
+        }
+        EphemeralKeyValuePair kvp = decodeValue(encodedKey, mutation.getValue());
+        if (isExpired(kvp)) {
+            return EphemeralResult.emptyResult(key);
+        }
+        return new EphemeralResult(key, kvp.getValue());
+    }
+
+    /**
+     * Keeps a write made while the node is unavailable, to be replayed when it is back
+     */
+    private <T> T fallbackWrite(Mutation mutation, SSDBNode node) throws ServiceException {
+        if (fallbackStore == null) {
+            throw unavailable(node);
+        }
+        fallbackStore.put(mutation);
+        return null;
+    }
+
+    @VisibleForTesting
+    void setFallbackStore(SSDBFallbackStore fallbackStore) {
+        this.fallbackStore = fallbackStore;
+    }
+
+    /**
+     * Flushes queued writes, stops background tasks and closes all connection pools
+     */
+    public void shutdown() {
+        try {
+            shutdownWriteBehind();
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.error("Could not flush queued SSDB writes on shutdown", e);
+        }
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        if (latencyProber != null) {
+            latencyProber.shutdownNow();
+        }
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+        if (expiryScheduler != null) {
+            expiryScheduler.shutdown();
+        }
+        if (poolSizer != null) {
+            poolSizer.shutdown();
+        }
+        asyncExecutor.shutdown();
+        metrics.unregister();
+        for (SSDBNode node : getNodes()) {
+            if (node.getMultiplexedClient() != null) {
+                node.getMultiplexedClient().close();
+            }
+        }
+        for (SSDBShard shard : getShards()) {
+            for (SSDBNode replica : shard.getReplicas()) {
+                replica.getPool().close();
+                replica.getPool().destroy();
+            }
+            shard.getPool().close();
+            shard.getPool().destroy();
+        }
+    }
+
+    @VisibleForTesting
+    void writeBatch(List<Mutation> batch) throws ServiceException {
+        Map<SSDBShard, List<Mutation>> batchesByShard = new LinkedHashMap<SSDBShard, List<Mutation>>();
+        for (Mutation mutation : batch) {
+            noteWrite(mutation.getKey());
+            SSDBShard shard = shardFor(mutation.getKey());
+            List<Mutation> shardBatch = batchesByShard.get(shard);
+            if (shardBatch == null) {
+                shardBatch = new ArrayList<Mutation>();
+                batchesByShard.put(shard, shardBatch);
+            }
+            shardBatch.add(mutation);
+        }
+        for (Map.Entry<SSDBShard, List<Mutation>> entry : batchesByShard.entrySet()) {
+            writeBatch(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void writeBatch(SSDBShard shard, List<Mutation> batch) throws ServiceException {
+        new JedisResourceWithRetry<Void> (shard) {
+            @Override
+            public Void jedisMethod(Jedis jedis) throws JedisException {
+                Pipeline pipeline = jedis.pipelined();
+                for (Mutation mutation : batch) {
+                    layout.write(pipeline, mutation);
+                    if (hasLegacyKeys()) {
+                        pipeline.del(mutation.getKey());
+                    }
+                }
+                pipeline.sync();
+                return null;
+            }
+        }.callMethod();
+    }
+
+    /**
+     * @return the bytes to store for the attribute's value, or null if the attribute has no value
+     */
+    private byte[] encodeValueBytes(EphemeralInput attribute) {
+        if (attribute == null || attribute.getValue() == null) {
+            return null;
+        }
+        return SSDBValueCodec.encode(valueFormat, compressThreshold, attribute.getValue().toString(), attribute.getExpiration());
+    }
+
+    private EphemeralKeyValuePair decodeValue(String encodedKey, byte[] encodedValue) throws ServiceException {
+        return SSDBValueCodec.decode(SSDBAttributeEncoder.decodeKey(encodedKey), encodedValue);
+    }
+
+    @VisibleForTesting
+    void setLayout(SSDBLayout layout) {
+        this.layout = layout;
+    }
+
+    @VisibleForTesting
+    void setLegacyKeys(boolean legacyKeys) {
+        this.legacyKeys = legacyKeys;
+    }
+
+    @VisibleForTesting
+    void setValueFormat(SSDBValueFormat valueFormat) {
+        this.valueFormat = valueFormat;
+    }
+
+    @VisibleForTesting
+    void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @VisibleForTesting
+    void setPurgeBatchSize(int purgeBatchSize) {
+        this.purgeBatchSize = purgeBatchSize;
+    }
+
+    /**
+     * @return true if the expiration encoded in the value has passed. SSDB removes expired keys by itself,
+     * but not expired hash fields.
+     */
+    private static boolean isExpired(EphemeralKeyValuePair kvp) {
+        Long expires = getExpires(kvp);
+        return expires != null && expires > 0L && expires <= System.currentTimeMillis();
+    }
+
+    private static Long getExpires(EphemeralKeyValuePair kvp) {
+        if (kvp instanceof ExpirableEphemeralKeyValuePair) {
+            return ((ExpirableEphemeralKeyValuePair) kvp).getExpires();
+        }
+        return null;
     }
 
     private ServiceException wrapJedisException(JedisException e) {
@@ -157,11 +1160,21 @@ public class SSDBEphemeralStore extends EphemeralStore {
 
     public static class Factory extends EphemeralStore.Factory {
 
-        private static SSDBEphemeralStore instance;
+        /** a lock rather than a monitor, so that threads waiting for the store do not pin virtual threads */
+        private static final ReentrantLock LOCK = new ReentrantLock();
+        /** read without the lock once set; only replaced while holding LOCK */
+        private static volatile SSDBEphemeralStore instance;
+        private static ScheduledExecutorService urlWatcher;
 
         /** Note that this falls back to hard coded defaults if LDAP is unavailable */
         protected static GenericObjectPoolConfig getPoolConfig() throws ServiceException {
             GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+            poolConfig.setMinIdle(SSDBConfig.getInt(SSDBConfig.POOL_MIN_IDLE, 0));
+            poolConfig.setMaxIdle(SSDBConfig.getInt(SSDBConfig.POOL_MAX_IDLE, GenericObjectPoolConfig.DEFAULT_MAX_IDLE));
+            poolConfig.setTestWhileIdle(SSDBConfig.getBoolean(SSDBConfig.POOL_TEST_WHILE_IDLE, true));
+            poolConfig.setTimeBetweenEvictionRunsMillis(SSDBConfig.getLong(SSDBConfig.POOL_EVICTION_INTERVAL_MS, 30000L));
+            poolConfig.setMinEvictableIdleTimeMillis(SSDBConfig.getLong(SSDBConfig.POOL_MIN_EVICTABLE_IDLE_MS, 60000L));
+            poolConfig.setNumTestsPerEvictionRun(-1);
             try {
                 LdapClient.initializeIfLDAPAvailable();
             } catch (ServiceException se) {
@@ -202,7 +1215,12 @@ public class SSDBEphemeralStore extends EphemeralStore {
 
         @Override
         public EphemeralStore getStore() {
-            synchronized (Factory.class) {
+            SSDBEphemeralStore store = instance;
+            if (store != null) {
+                return store;
+            }
+            LOCK.lock();
+            try {
                 if (instance == null) {
                     String url;
                     try {
@@ -215,32 +1233,124 @@ public class SSDBEphemeralStore extends EphemeralStore {
                     }
                 }
                 return instance;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        /**
+         * Replaces the store if the ephemeral backend URL has changed. Readers keep using the old store
+         * until the new one is in place; the old store is shut down ssdb_reload_grace_ms later, so that
+         * calls already in flight can finish.
+         *
+         * @return true if the store was replaced
+         */
+        public boolean reloadIfChanged() throws ServiceException {
+            LOCK.lock();
+            try {
+                SSDBEphemeralStore current = instance;
+                String url = getURL();
+                if (current == null || url == null || url.equals(current.url)) {
+                    return false;
+                }
+                ZimbraLog.extensions.info("ephemeral backend URL changed from '%s' to '%s', reloading SSDBEphemeralStore", current.url, url);
+                instance = new SSDBEphemeralStore(url);
+                retire(current);
+                return true;
+            } finally {
+                LOCK.unlock();
             }
         }
 
+        private static void retire(SSDBEphemeralStore store) {
+            long graceMillis = SSDBConfig.getLong(SSDBConfig.RELOAD_GRACE_MS, 5000L);
+            Thread retirer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(graceMillis);
+                    } catch (InterruptedException e) {
+                        // shut it down right away
+                    }
+                    store.shutdown();
+                }
+            }, "SSDBStoreRetirer");
+            retirer.setDaemon(true);
+            retirer.start();
+        }
+
+        /**
+         * Opens ssdb_pool_min_idle connections to every node and starts checking the ephemeral backend URL
+         * for changes every ssdb_url_check_interval_ms, if positive
+         */
         @Override
         public void startup() {
-            //nothing to do here
+            EphemeralStore store = getStore();
+            if (store instanceof SSDBEphemeralStore) {
+                ((SSDBEphemeralStore) store).warmUp(SSDBConfig.getInt(SSDBConfig.POOL_MIN_IDLE, 0));
+            }
+            long interval = SSDBConfig.getLong(SSDBConfig.URL_CHECK_INTERVAL_MS, 0L);
+            if (interval <= 0L) {
+                return;
+            }
+            LOCK.lock();
+            try {
+                if (urlWatcher != null) {
+                    return;
+                }
+                urlWatcher = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("SSDBUrlWatcher-%d").setDaemon(true).build());
+                urlWatcher.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            reloadIfChanged();
+                        } catch (ServiceException | RuntimeException e) {
+                            ZimbraLog.extensions.warn("Could not reload SSDBEphemeralStore", e);
+                        }
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            } finally {
+                LOCK.unlock();
+            }
         }
 
         @Override
-        public synchronized void  shutdown() {
-            if(instance != null) {
-                instance.getPool().close();
-                instance.getPool().destroy();
-                instance = null;
+        public void shutdown() {
+            LOCK.lock();
+            try {
+                if (urlWatcher != null) {
+                    urlWatcher.shutdownNow();
+                    urlWatcher = null;
+                }
+                if(instance != null) {
+                    instance.shutdown();
+                    instance = null;
+                }
+            } finally {
+                LOCK.unlock();
             }
         }
 
         @Override
         public void test(String url) throws ServiceException {
-            JedisPool pool = SSDBEphemeralStore.getPool(url);
+            List<SSDBNode> nodes = new ArrayList<SSDBNode>();
+            for (SSDBShard shard : SSDBEphemeralStore.getShards(url)) {
+                nodes.add(shard);
+                nodes.addAll(shard.getReplicas());
+            }
             try {
-                pool.getResource();
-            } catch (JedisConnectionException e) {
-                throw ServiceException.FAILURE(String.format("could not connect to SSDB on URL '%s'", url) , e);
+                for (SSDBNode node : nodes) {
+                    try (Jedis jedis = node.getPool().getResource()) {
+                        // connection succeeded
+                    } catch (JedisConnectionException e) {
+                        throw ServiceException.FAILURE(String.format("could not connect to SSDB node '%s' on URL '%s'", node.getName(), url) , e);
+                    }
+                }
             } finally {
-                pool.close();
+                for (SSDBNode node : nodes) {
+                    node.getPool().close();
+                }
             }
         }
     }
@@ -262,67 +1372,349 @@ public class SSDBEphemeralStore extends EphemeralStore {
 
     @Override
     public void deleteData(EphemeralLocation location) throws ServiceException {
-        /*
-         * The only ephemeral attribute that needs to be explicitly deleted is
-         * zimbraLastLogonTimestamp. Auth and CSRF tokens will expire automatically.
-         */
-        new JedisResourceWithRetry<Long> () {
-            @Override
-            public Long jedisMethod() throws JedisException {
-                try (Jedis jedis = pool.getResource()) {
-                    EphemeralKey lastLogonEphemeralKey = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
-                    String encoded = encodeKey(lastLogonEphemeralKey, location);
-                    return jedis.del(encoded);
+        metrics.time(SSDBOperation.DELETE_DATA, () -> {
+            deleteDataInternal(location);
+            return null;
+        });
+    }
+
+    private void deleteDataInternal(EphemeralLocation location) throws ServiceException {
+        String prefix = SSDBKeyEncoder.encodeLocation(location);
+        try {
+            purgeLocation(location, prefix);
+        } finally {
+            if (nearCache != null) {
+                nearCache.invalidatePrefix(prefix);
+            }
+        }
+    }
+
+    private void purgeLocation(EphemeralLocation location, String prefix) throws ServiceException {
+        EphemeralKey lastLogonEphemeralKey = new EphemeralKey(Provisioning.A_zimbraLastLogonTimestamp);
+        String encoded = encodeKey(lastLogonEphemeralKey, location);
+        noteWrite(encoded);
+        if (writeBehind != null) {
+            // queued writes to the entry must not resurrect keys after the purge
+            writeBehind.flush();
+        }
+        if (layout == SSDBLayout.HASH) {
+            // all attributes of the entry are in one hash, wipe it in one command
+            String hashName = SSDBLayout.hashName(encoded);
+            new JedisResourceWithRetry<Long> (shardFor(encoded)) {
+                @Override
+                public Long jedisMethod(Jedis jedis) throws JedisException {
+                    return SSDBCommand.integerCommand(jedis, SSDBCommand.HCLEAR, hashName);
+                }
+            }.callMethod();
+            if (!legacyKeys) {
+                return;
+            }
+            // and the keys not migrated yet
+        }
+        long deleted = purgeKeys(prefix, encoded);
+        ZimbraLog.extensions.debug("deleted %d SSDB keys under %s", deleted, prefix);
+    }
+
+    /**
+     * Deletes every key under the "entry type|entry ID|" prefix, so that deleting an entry frees its
+     * auth and CSRF tokens instead of leaving them to expire. Keys are listed with SSDB's "keys" range
+     * command purgeBatchSize at a time and deleted with pipelined multi_del commands, so memory use
+     * does not depend on the number of keys.
+     *
+     * @return the number of keys deleted
+     */
+    private long purgeKeys(String prefix, String lastLogonKey) throws ServiceException {
+        String end = rangeEnd(prefix);
+        SSDBNode shard = shardFor(lastLogonKey);
+        long deleted = 0L;
+        String start = prefix;
+        while (true) {
+            String from = start;
+            List<String> keys = new JedisResourceWithRetry<List<String>> (shard) {
+                @Override
+                public List<String> jedisMethod(Jedis jedis) throws JedisException {
+                    List<String> page = SSDBCommand.listCommand(jedis, SSDBCommand.KEYS, from, end, String.valueOf(purgeBatchSize));
+                    if (!page.isEmpty()) {
+                        List<String[]> batches = new ArrayList<String[]>();
+                        for (List<String> batch : Lists.partition(page, MULTI_DEL_SIZE)) {
+                            batches.add(batch.toArray(new String[batch.size()]));
+                        }
+                        SSDBCommand.pipelinedIntegerCommand(jedis, SSDBCommand.MULTI_DEL, batches);
+                    }
+                    return page;
+                }
+
+                @Override
+                protected List<String> fallbackMethod(SSDBNode node) throws ServiceException {
+                    // the purge cannot be deferred, but the last logon time must not outlive the outage
+                    fallbackWrite(Mutation.delete(lastLogonKey), node);
+                    return Collections.emptyList();
                 }
+            }.callMethod();
+            for (String key : keys) {
+                noteWrite(key);
+            }
+            deleted += keys.size();
+            if (keys.size() < purgeBatchSize) {
+                return deleted;
+            }
+            start = keys.get(keys.size() - 1);
+            ZimbraLog.extensions.info("deleted %d SSDB keys under %s so far", deleted, prefix);
+        }
+    }
+
+    /**
+     * Reads all unexpired attributes of a location with a single HGETALL, plus a range scan of the keys not
+     * migrated yet while ssdb_layout_legacy_keys is on. Only supported by the hash layout.
+     */
+    public List<EphemeralKeyValuePair> getData(EphemeralLocation location) throws ServiceException {
+        if (layout != SSDBLayout.HASH) {
+            throw ServiceException.UNSUPPORTED();
+        }
+        String prefix = SSDBKeyEncoder.encodeLocation(location);
+        String hashName = prefix.substring(0, prefix.length() - 1);
+        Map<byte[], byte[]> fields = new JedisResourceWithRetry<Map<byte[], byte[]>> (readNodeFor(prefix)) {
+            @Override
+            public Map<byte[], byte[]> jedisMethod(Jedis jedis) throws JedisException {
+                return jedis.hgetAll(SafeEncoder.encode(hashName));
             }
         }.callMethod();
+        Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+            values.put(prefix + SafeEncoder.encode(field.getKey()), field.getValue());
+        }
+        if (legacyKeys) {
+            readLegacyKeys(prefix, values);
+        }
+        List<EphemeralKeyValuePair> data = new ArrayList<EphemeralKeyValuePair>(values.size());
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            EphemeralKeyValuePair kvp = decodeValue(value.getKey(), value.getValue());
+            if (!isExpired(kvp)) {
+                data.add(kvp);
+            }
+        }
+        return data;
     }
 
-    private static JedisPool getPool(String url) throws ServiceException {
-        String host;
-        Integer port;
-        String[] tokens = url.split(":");
-        if (tokens != null && tokens.length >= 2 && tokens[0].equalsIgnoreCase(SSDB_EPHEMERAL_STORE)) {
-            host = tokens[1];
-            port = null;
-            if(tokens.length == 3) {
-                try {
-                    port = Integer.parseInt(tokens[2]);
-                } catch (NumberFormatException e) {
-                    throw ServiceException.FAILURE(
-                            String.format("Failed to parse SSDB port number %s", tokens[2]), e);
+    /**
+     * Adds the top-level keys under the prefix that have not been migrated into the entry's hash yet,
+     * purgeBatchSize at a time, unless values already holds the key's field
+     */
+    private void readLegacyKeys(String prefix, Map<String, byte[]> values) throws ServiceException {
+        String end = rangeEnd(prefix);
+        String start = prefix;
+        while (true) {
+            String from = start;
+            Map<String, byte[]> page = new JedisResourceWithRetry<Map<String, byte[]>> (readNodeFor(prefix)) {
+                @Override
+                public Map<String, byte[]> jedisMethod(Jedis jedis) throws JedisException {
+                    List<String> keys = SSDBCommand.listCommand(jedis, SSDBCommand.KEYS, from, end, String.valueOf(purgeBatchSize));
+                    Map<String, byte[]> keyValues = new LinkedHashMap<String, byte[]>();
+                    if (!keys.isEmpty()) {
+                        List<byte[]> pageValues = SSDBLayout.KEYS.getAll(SSDBKeyValueCommands.of(jedis), keys);
+                        for (int i = 0; i < keys.size(); i++) {
+                            keyValues.put(keys.get(i), pageValues.get(i));
+                        }
+                    }
+                    return keyValues;
+                }
+            }.callMethod();
+            String lastKey = null;
+            for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+                lastKey = entry.getKey();
+                if (entry.getValue() != null && !values.containsKey(entry.getKey())) {
+                    values.put(entry.getKey(), entry.getValue());
                 }
             }
-            GenericObjectPoolConfig config = Factory.getPoolConfig();
-            if(port != null) {
-                return new JedisPool(config, host, port);
-            } else {
-                return new JedisPool(config, host);
+            if (page.size() < purgeBatchSize) {
+                return;
             }
-        } else {
+            start = lastKey;
+        }
+    }
+
+    /**
+     * @return the upper bound of the range holding all keys that start with the prefix, which ends with '|'
+     */
+    private static String rangeEnd(String prefix) {
+        // all keys starting with "...|" sort after the prefix and up to "...}"
+        return prefix.substring(0, prefix.length() - 1) + (char) (SSDBKeyEncoder.SEPARATOR + 1);
+    }
+
+    /**
+     * Parses a backend URL of the form "ssdb:<host>[:<port>][,<host>[:<port>]...]"
+     * and creates a connection pool for each host.
+     */
+    static List<SSDBShard> getShards(String url) throws ServiceException {
+        String prefix = SSDB_EPHEMERAL_STORE + ":";
+        if (url == null || !url.toLowerCase().startsWith(prefix) || url.length() == prefix.length()) {
             throw ServiceException.FAILURE(String.format(
-                    "SSDB backend URL must be of the form 'ssdb:<host>[:<port>]', got '%s'", url), null);
+                    "SSDB backend URL must be of the form 'ssdb:<host>[:<port>][,<host>[:<port>]...]', got '%s'", url), null);
         }
+        List<SSDBShard> shards = new ArrayList<SSDBShard>();
+        GenericObjectPoolConfig config = Factory.getPoolConfig();
+        for (String shardSpec : url.substring(prefix.length()).split(",")) {
+            String[] nodeSpecs = shardSpec.trim().split("/");
+            List<SSDBNode> replicas = new ArrayList<SSDBNode>(nodeSpecs.length - 1);
+            for (int i = 1; i < nodeSpecs.length; i++) {
+                replicas.add(new SSDBNode(parseHost(nodeSpecs[i], url), parsePort(nodeSpecs[i]), config));
+            }
+            shards.add(new SSDBShard(parseHost(nodeSpecs[0], url), parsePort(nodeSpecs[0]), config, replicas));
+        }
+        return shards;
     }
 
+    private static String parseHost(String hostAndPort, String url) throws ServiceException {
+        String[] tokens = hostAndPort.trim().split(":");
+        if (tokens.length > 2 || tokens[0].isEmpty()) {
+            throw ServiceException.FAILURE(String.format(
+                    "SSDB backend URL must be of the form 'ssdb:<host>[:<port>][/<replica host>[:<port>]...][,<host>[:<port>]...]', got '%s'", url), null);
+        }
+        return tokens[0];
+    }
+
+    private static Integer parsePort(String hostAndPort) throws ServiceException {
+        String[] tokens = hostAndPort.trim().split(":");
+        if(tokens.length == 2) {
+            try {
+                return Integer.parseInt(tokens[1]);
+            } catch (NumberFormatException e) {
+                throw ServiceException.FAILURE(
+                        String.format("Failed to parse SSDB port number %s", tokens[1]), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a Jedis call on a connection borrowed from a node's pool.
+     *
+     * A connection that fails with a connection error is marked broken by Jedis, and closing it
+     * destroys just that connection instead of returning it to the pool; healthy pooled connections
+     * are left alone. The call is then retried on a fresh connection as allowed by the {@link SSDBRetryPolicy}.
+     * Command errors are not retried. The pool itself is only replaced if it has been closed.
+     */
     private abstract class JedisResourceWithRetry<T> {
-        public abstract T jedisMethod() throws JedisException, ServiceException;
+        final SSDBNode node;
+
+        JedisResourceWithRetry(SSDBNode node) {
+            this.node = node;
+        }
+
+        public abstract T jedisMethod(Jedis jedis) throws JedisException, ServiceException;
+
+        /**
+         * Called instead of jedisMethod when the node is unavailable. Fails unless overridden.
+         */
+        protected T fallbackMethod(SSDBNode node) throws ServiceException {
+            throw unavailable(node);
+        }
+
+        /**
+         * Runs jedisMethod on a pooled connection
+         */
+        protected T call(JedisPool pool) throws JedisException, ServiceException {
+            try (Jedis jedis = pool.getResource()) {
+                return jedisMethod(jedis);
+            }
+        }
+
+        private T callOnce(JedisPool pool) throws JedisException, ServiceException {
+            Semaphore permits = node.acquireCallPermit(callPermitWaitMillis);
+            try {
+                long start = System.nanoTime();
+                T result = call(pool);
+                node.recordLatency(System.nanoTime() - start);
+                return result;
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+
         public final T callMethod() throws ServiceException {
+            SSDBCircuitBreaker breaker = node.getCircuitBreaker();
+            if (!breaker.allowRequest()) {
+                return fallbackMethod(node);
+            }
+            node.recordOperation();
+            JedisPool pool = node.getPool();
+            boolean recorded = false;
             try {
-                return jedisMethod();
-            } catch (JedisException e) {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        T result = callOnce(pool);
+                        recorded = true;
+                        breaker.recordSuccess();
+                        return result;
+                    } catch (JedisException e) {
+                        node.recordError();
+                        if (!retryPolicy.shouldRetry(e, attempt)) {
+                            recorded = true;
+                            if (!(e instanceof JedisConnectionException)) {
+                                // the node answered, it just did not like the command
+                                breaker.recordSuccess();
+                                throw wrapJedisException(e);
+                            }
+                            breaker.recordFailure();
+                            if (fallbackStore != null) {
+                                ZimbraLog.extensions.warn("SSDB node %s is unavailable, using local fallback store", node.getName(), e);
+                                return fallbackMethod(node);
+                            }
+                            throw wrapJedisException(e);
+                        }
+                        ZimbraLog.extensions.debug("SSDB call to %s failed on attempt %d, retrying", node.getName(), attempt, e);
+                        node.recordRetry();
+                        backoff(attempt);
+                        if (pool.isClosed()) {
+                            pool = node.replaceClosedPool(pool);
+                        }
+                    }
+                }
+            } finally {
+                if (!recorded) {
+                    // no call permit, an undecodable reply or an unexpected error says nothing about
+                    // the node, but a half-open probe must not stay outstanding
+                    breaker.abandonProbe();
+                }
+            }
+        }
+
+        private void backoff(int attempt) throws ServiceException {
+            long millis = retryPolicy.getBackoffMillis(attempt);
+            if (millis > 0L) {
                 try {
-                    /* Jedis throws an exception when connections in the pool go stale.
-                     * Since there is no way to test a connection without trying to send data
-                     * this code makes one attempt to retry a failed request. 
-                     */
-                    pool.destroy();
-                    pool = getPool(url);
-                    return jedisMethod();
-                } catch (JedisException e2) {
-                    throw wrapJedisException(e2);
+                    Thread.sleep(millis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ServiceException.INTERRUPTED("interrupted while waiting to retry SSDB operation");
                 }
             }
         }
     }
+
+    /**
+     * A call limited to the {@link SSDBKeyValueCommands} of {@link SSDBLayout}, so that it can run on the
+     * node's {@link SSDBMultiplexedClient} instead of a pooled connection
+     */
+    private abstract class KeyValueResourceWithRetry<T> extends JedisResourceWithRetry<T> {
+
+        KeyValueResourceWithRetry(SSDBNode node) {
+            super(node);
+        }
+
+        public abstract T commandsMethod(SSDBKeyValueCommands commands) throws JedisException, ServiceException;
+
+        @Override
+        public final T jedisMethod(Jedis jedis) throws JedisException, ServiceException {
+            return commandsMethod(SSDBKeyValueCommands.of(jedis));
+        }
+
+        @Override
+        protected T call(JedisPool pool) throws JedisException, ServiceException {
+            SSDBMultiplexedClient client = node.getMultiplexedClient();
+            return client != null ? commandsMethod(client) : super.call(pool);
+        }
+    }
 }
@@ -28,6 +28,8 @@ public class SSDBEphemeralStoreExtension implements ZimbraExtension, EphemeralSt
     @Override
     public void init() throws ExtensionException, ServiceException {
         EphemeralStore.registerFactory(getStoreId(), SSDBEphemeralStore.Factory.class.getName());
+        EphemeralStore.registerFactory(SSDBEmbeddedStore.EMBEDDED_STORE_ID, SSDBEmbeddedStore.Factory.class.getName());
+        EphemeralStore.registerFactory(SSDBTieredStore.TIERED_STORE_ID, SSDBTieredStore.Factory.class.getName());
         try {
             ZimbraSuite.addTest(TestSSDBEphemeralStore.class);
         } catch (NoClassDefFoundError e) {
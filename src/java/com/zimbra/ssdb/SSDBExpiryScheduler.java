@@ -0,0 +1,113 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBExpiryScheduler tells the store when the values it has written expire, to the millisecond, so that
+ * local state such as near-cache entries is dropped right away and, with {@link SSDBLayout#HASH}, the
+ * expired hash fields are deleted without waiting for the {@link SSDBSweeper} to come by.
+ *
+ * Expirations are kept in an {@link SSDBExpiryWheel} advanced every tickMillis. At most maxEntries
+ * of them are held; values written beyond that are left to the sweeper.
+ *
+ */
+public class SSDBExpiryScheduler {
+
+    private final SSDBExpiryWheel<String> wheel;
+    private final int maxEntries;
+    private final Consumer<String> onExpired;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param tickMillis interval at which the wheel is advanced; 0 leaves advancing it to the caller
+     */
+    public SSDBExpiryScheduler(long tickMillis, int maxEntries, Consumer<String> onExpired) {
+        this.wheel = new SSDBExpiryWheel<String>(Math.max(1L, tickMillis), System.currentTimeMillis());
+        this.maxEntries = maxEntries;
+        this.onExpired = onExpired;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBExpiry-%d").setDaemon(true).build());
+        if (tickMillis > 0L) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    advance(System.currentTimeMillis());
+                }
+            }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return a scheduler configured from localconfig, or null if it is disabled
+     */
+    static SSDBExpiryScheduler fromConfig(Consumer<String> onExpired) {
+        long tickMillis = SSDBConfig.getLong(SSDBConfig.EXPIRY_TICK_MS, 0L);
+        if (tickMillis <= 0L) {
+            return null;
+        }
+        int maxEntries = Math.max(1, SSDBConfig.getInt(SSDBConfig.EXPIRY_MAX_ENTRIES, 1000000));
+        return new SSDBExpiryScheduler(tickMillis, maxEntries, onExpired);
+    }
+
+    /**
+     * @param expires absolute expiration of the value of encodedKey in milliseconds
+     */
+    public void schedule(String encodedKey, long expires) {
+        if (wheel.size() >= maxEntries) {
+            dropped.incrementAndGet();
+            return;
+        }
+        wheel.schedule(encodedKey, expires);
+    }
+
+    /**
+     * Hands the keys whose values have expired at or before now to the store
+     */
+    @VisibleForTesting
+    void advance(long now) {
+        int count = wheel.advance(now, encodedKey -> {
+            try {
+                onExpired.accept(encodedKey);
+            } catch (RuntimeException e) {
+                ZimbraLog.extensions.warn("could not handle the expiration of %s", encodedKey, e);
+            }
+        });
+        expired.addAndGet(count);
+    }
+
+    /**
+     * @return the number of expirations waiting in the wheel
+     */
+    public int getScheduledCount() {
+        return wheel.size();
+    }
+
+    /**
+     * @return the number of expirations handed to the store since the scheduler was created
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * @return the number of expirations not held because the wheel was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
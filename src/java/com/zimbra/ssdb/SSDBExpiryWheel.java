@@ -0,0 +1,133 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ *
+ * SSDBExpiryWheel is a hierarchical timing wheel that hands out items once their expiration has passed.
+ *
+ * Time is counted in ticks of tickMillis milliseconds. The wheel has LEVELS levels of SLOTS slots each;
+ * a slot of level n spans SLOTS^n ticks, so four levels of 256 slots cover 2^32 ticks, about 50 days at
+ * a tick of a millisecond. An item goes into the slot of the lowest level that reaches its expiration,
+ * so scheduling is O(1). When time reaches the span of a higher-level slot, its items are moved down
+ * to the levels below (each item at most LEVELS - 1 times), and the items of a level 0 slot are handed
+ * out when its tick has passed. Items further away than the top level reaches are parked as far out
+ * as it goes and placed again when that slot comes due.
+ *
+ * Items are handed out at most one tick late and never early. The expired callback runs outside the
+ * wheel's lock, so it may schedule items itself.
+ *
+ */
+public class SSDBExpiryWheel<T> {
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+    private static class Timer<T> {
+        final T item;
+        final long expires;
+
+        Timer(T item, long expires) {
+            this.item = item;
+            this.expires = expires;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Timer<T>>> slots;
+    /** the last tick whose level 0 slot has been handed out */
+    private long currentTick;
+    private int size = 0;
+
+    public SSDBExpiryWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<List<Timer<T>>>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<Timer<T>>(0));
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * @param expires absolute expiration in milliseconds
+     */
+    public synchronized void schedule(T item, long expires) {
+        // the slot of the current tick has been handed out already
+        place(new Timer<T>(item, expires), currentTick + 1);
+        size++;
+    }
+
+    /**
+     * @param earliestTick the first tick whose level 0 slot has not been handed out
+     */
+    private void place(Timer<T> timer, long earliestTick) {
+        // rounded up, so that the item is not handed out before it has expired
+        long tick = Math.max((timer.expires + tickMillis - 1) / tickMillis, earliestTick);
+        long delta = Math.min(tick - currentTick, MAX_DELTA);
+        tick = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        slots.get(level * SLOTS + (int) ((tick >>> (BITS * level)) & MASK)).add(timer);
+    }
+
+    /**
+     * Hands every item whose expiration is at or before now to expired, except those expiring
+     * within now's own tick, which are handed out by the next call after that tick
+     *
+     * @return the number of expired items
+     */
+    public int advance(long now, Consumer<T> expired) {
+        List<T> due = new ArrayList<T>();
+        synchronized (this) {
+            long lastTick = now / tickMillis;
+            while (currentTick < lastTick) {
+                currentTick++;
+                cascade(1);
+                List<Timer<T>> slot = slots.get((int) (currentTick & MASK));
+                for (Timer<T> timer : slot) {
+                    due.add(timer.item);
+                }
+                size -= slot.size();
+                slot.clear();
+            }
+        }
+        for (T item : due) {
+            expired.accept(item);
+        }
+        return due.size();
+    }
+
+    /**
+     * Moves the items of the level's slot that has just come due down to the lower levels, after
+     * doing the same for the levels above
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+        List<Timer<T>> slot = slots.get(level * SLOTS + (int) ((currentTick >>> (BITS * level)) & MASK));
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Timer<T>> timers = new ArrayList<Timer<T>>(slot);
+        slot.clear();
+        for (Timer<T> timer : timers) {
+            // the current tick's slot is handed out right after the cascade
+            place(timer, currentTick);
+        }
+    }
+
+    /**
+     * @return the number of scheduled items, including those their owner no longer cares about
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
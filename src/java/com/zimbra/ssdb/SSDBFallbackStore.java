@@ -0,0 +1,76 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
+
+/**
+ *
+ * SSDBFallbackStore keeps the mutations made while an SSDB shard is unavailable, so that this node
+ * can keep serving them locally and replay them to SSDB once the shard is back.
+ *
+ * It is bounded: when it is full the least recently written keys are dropped.
+ *
+ */
+public class SSDBFallbackStore {
+
+    private final Cache<String, Mutation> mutations;
+
+    public SSDBFallbackStore(long maxSize) {
+        this.mutations = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * @return a fallback store configured from localconfig, or null if degrading to a local store is disabled
+     */
+    static SSDBFallbackStore fromConfig() {
+        int size = SSDBConfig.getInt(SSDBConfig.FALLBACK_SIZE, 0);
+        return size > 0 ? new SSDBFallbackStore(size) : null;
+    }
+
+    public void put(Mutation mutation) {
+        mutations.put(mutation.getKey(), mutation);
+    }
+
+    /**
+     * @return the mutation recorded for the encoded key, or null if the key was not written during the outage
+     */
+    public Mutation get(String encodedKey) {
+        return mutations.getIfPresent(encodedKey);
+    }
+
+    /**
+     * Removes and returns the recorded mutations of the keys accepted by the filter
+     */
+    public List<Mutation> drain(Predicate<String> keyFilter) {
+        List<Mutation> drained = new ArrayList<Mutation>();
+        ConcurrentMap<String, Mutation> map = mutations.asMap();
+        for (Map.Entry<String, Mutation> entry : map.entrySet()) {
+            // only take the mutation if it was not superseded while draining
+            if (keyFilter.apply(entry.getKey()) && map.remove(entry.getKey(), entry.getValue())) {
+                drained.add(entry.getValue());
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Puts back mutations that could not be replayed, unless the key was written again in the meantime
+     */
+    public void restore(List<Mutation> failed) {
+        ConcurrentMap<String, Mutation> map = mutations.asMap();
+        for (Mutation mutation : failed) {
+            map.putIfAbsent(mutation.getKey(), mutation);
+        }
+    }
+
+    public long size() {
+        return mutations.size();
+    }
+}
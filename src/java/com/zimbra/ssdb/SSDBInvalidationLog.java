@@ -0,0 +1,131 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ *
+ * SSDBInvalidationLog tells the mailbox servers sharing an SSDB cluster which keys have changed, so that
+ * they can drop their local copies. SSDB has no publish/subscribe, so changes are version-stamped instead:
+ *
+ * A writer takes the next numbers of the integer key {@link #SEQUENCE_KEY} and sets them as the scores of
+ * the changed keys in the sorted set {@link #LOG_NAME}. A key that changes again just gets a higher score.
+ * Readers poll the sequence and list the keys scored above the last sequence they have seen.
+ * Every poll lists the keys of the previous interval once more, so that a change whose score was taken
+ * but not written yet when the sequence was read is not missed. Writers keep the log at about
+ * maxEntries keys; a reader that falls further behind cannot tell what it missed and is told to drop
+ * everything.
+ *
+ * The log lives on the master of the first shard.
+ *
+ */
+public class SSDBInvalidationLog {
+
+    /** key of the sequence; it has no '|' so it is never mistaken for an attribute */
+    static final String SEQUENCE_KEY = "zimbra_ssdb_invalidation_seq";
+    /** name of the sorted set of changed keys */
+    static final String LOG_NAME = "zimbra_ssdb_invalidations";
+    /** the log is trimmed whenever the sequence passes a multiple of this */
+    private static final int TRIM_INTERVAL = 1000;
+    private static final int PAGE_SIZE = 1000;
+
+    private final Supplier<SSDBNode> node;
+    private final long maxEntries;
+    /** the sequence seen by the poll before the last one, or -1 before the first poll */
+    private long scanFrom = -1L;
+    /** the sequence seen by the last poll, or -1 before the first poll */
+    private long lastSeen = -1L;
+
+    public SSDBInvalidationLog(Supplier<SSDBNode> node, long maxEntries) {
+        this.node = node;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Records that the keys have changed. A key ending with '|' stands for all keys starting with it.
+     */
+    public void publish(Collection<String> keys) throws ServiceException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try (Jedis jedis = getResource()) {
+            long last = SSDBCommand.integerCommand(jedis, SSDBCommand.INCR, SEQUENCE_KEY, String.valueOf(keys.size()));
+            long seq = last - keys.size();
+            List<String[]> members = new ArrayList<String[]>(keys.size());
+            for (String key : keys) {
+                members.add(new String[] { LOG_NAME, key, String.valueOf(++seq) });
+            }
+            SSDBCommand.pipelinedIntegerCommand(jedis, SSDBCommand.ZSET, members);
+            if (last > maxEntries && last / TRIM_INTERVAL != (last - keys.size()) / TRIM_INTERVAL) {
+                SSDBCommand.integerCommand(jedis, SSDBCommand.ZREMRANGEBYSCORE, LOG_NAME, "0", String.valueOf(last - maxEntries));
+            }
+        } catch (JedisException e) {
+            throw ServiceException.FAILURE(String.format("could not publish %d invalidations", keys.size()), e);
+        }
+    }
+
+    /**
+     * Hands the keys changed since the previous poll to invalidate
+     *
+     * @return false if the changes cannot be told, because this is the first poll or the log has been
+     * trimmed past them; the caller has to drop all of its local copies then
+     */
+    public synchronized boolean poll(Consumer<String> invalidate) throws ServiceException {
+        try (Jedis jedis = getResource()) {
+            String raw = jedis.get(SEQUENCE_KEY);
+            long current = raw == null ? 0L : Long.parseLong(raw);
+            if (lastSeen < 0L || current < lastSeen || current - scanFrom > maxEntries) {
+                scanFrom = current;
+                lastSeen = current;
+                return false;
+            }
+            if (current > scanFrom) {
+                scan(jedis, scanFrom, current, invalidate);
+            }
+            scanFrom = lastSeen;
+            lastSeen = current;
+            return true;
+        } catch (JedisException | NumberFormatException e) {
+            // the caller drops everything, start over once the log is reachable again
+            scanFrom = -1L;
+            lastSeen = -1L;
+            throw ServiceException.FAILURE("could not poll the invalidation log", e);
+        }
+    }
+
+    /**
+     * Lists the keys with a score in (from, to]
+     */
+    private static void scan(Jedis jedis, long from, long to, Consumer<String> invalidate) {
+        String startKey = "";
+        String startScore = String.valueOf(from + 1);
+        while (true) {
+            List<String> page = SSDBCommand.listCommand(jedis, SSDBCommand.ZSCAN, LOG_NAME, startKey, startScore,
+                    String.valueOf(to), String.valueOf(PAGE_SIZE));
+            for (int i = 0; i + 1 < page.size(); i += 2) {
+                invalidate.accept(page.get(i));
+            }
+            if (page.size() < 2 * PAGE_SIZE) {
+                return;
+            }
+            startKey = page.get(page.size() - 2);
+            startScore = page.get(page.size() - 1);
+        }
+    }
+
+    private Jedis getResource() throws ServiceException {
+        SSDBNode master = node.get();
+        if (!master.getCircuitBreaker().isAvailable()) {
+            throw ServiceException.FAILURE(String.format("SSDB node %s is unavailable", master.getName()), null);
+        }
+        return master.getPool().getResource();
+    }
+}
@@ -0,0 +1,144 @@
+package com.zimbra.ssdb;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ *
+ * SSDBJedisPool is a JedisPool that can be filled ahead of demand and resized while in use.
+ * Its connections have an {@link SSDBClient}, so that they can send the commands of {@link SSDBCommand}.
+ *
+ */
+public class SSDBJedisPool extends JedisPool {
+    private final int configuredMaxTotal;
+
+    public SSDBJedisPool(GenericObjectPoolConfig poolConfig, String host, int port, int connectTimeout, int socketTimeout) {
+        super(poolConfig, host, port, connectTimeout, socketTimeout, null, Protocol.DEFAULT_DATABASE, null, false, null, null, null);
+        this.configuredMaxTotal = poolConfig.getMaxTotal();
+        // replaces the pool of plain connections created by JedisPool
+        initPool(poolConfig, new SSDBJedisFactory(host, port, connectTimeout, socketTimeout));
+    }
+
+    /**
+     * A Jedis connection with an {@link SSDBClient}
+     */
+    static class SSDBJedis extends Jedis {
+
+        SSDBJedis(String host, int port, int connectTimeout, int socketTimeout) {
+            super(host, port, connectTimeout, socketTimeout);
+            client = new SSDBClient(host, port);
+            client.setConnectionTimeout(connectTimeout);
+            client.setSoTimeout(socketTimeout);
+        }
+    }
+
+    /**
+     * Creates and validates {@link SSDBJedis} connections the way JedisPool's own factory does
+     */
+    private static class SSDBJedisFactory implements PooledObjectFactory<Jedis> {
+        private final String host;
+        private final int port;
+        private final int connectTimeout;
+        private final int socketTimeout;
+
+        SSDBJedisFactory(String host, int port, int connectTimeout, int socketTimeout) {
+            this.host = host;
+            this.port = port;
+            this.connectTimeout = connectTimeout;
+            this.socketTimeout = socketTimeout;
+        }
+
+        @Override
+        public PooledObject<Jedis> makeObject() throws Exception {
+            Jedis jedis = new SSDBJedis(host, port, connectTimeout, socketTimeout);
+            try {
+                jedis.connect();
+            } catch (JedisException e) {
+                jedis.close();
+                throw e;
+            }
+            return new DefaultPooledObject<Jedis>(jedis);
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Jedis> pooled) throws Exception {
+            Jedis jedis = pooled.getObject();
+            if (jedis.isConnected()) {
+                try {
+                    jedis.disconnect();
+                } catch (Exception e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<Jedis> pooled) {
+            try {
+                Jedis jedis = pooled.getObject();
+                return jedis.isConnected() && "PONG".equals(jedis.ping());
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void activateObject(PooledObject<Jedis> pooled) throws Exception {
+        }
+
+        @Override
+        public void passivateObject(PooledObject<Jedis> pooled) throws Exception {
+        }
+    }
+
+    /**
+     * Opens connections until the pool holds at least count idle connections or is full
+     *
+     * @return the number of connections opened
+     */
+    public int warmUp(int count) throws Exception {
+        int opened = 0;
+        while (internalPool.getNumIdle() < count && !isFull()) {
+            internalPool.addObject();
+            opened++;
+        }
+        return opened;
+    }
+
+    private boolean isFull() {
+        int maxTotal = internalPool.getMaxTotal();
+        return maxTotal >= 0 && internalPool.getNumActive() + internalPool.getNumIdle() >= maxTotal;
+    }
+
+    /**
+     * @return the maximum number of connections, or a negative number if unbounded
+     */
+    public int getMaxTotal() {
+        return internalPool.getMaxTotal();
+    }
+
+    /**
+     * @return the maximum number of connections the pool was created with, before any {@link #setMaxTotal(int)}
+     */
+    public int getConfiguredMaxTotal() {
+        return configuredMaxTotal;
+    }
+
+    /**
+     * Changes the maximum number of connections. Shrinking does not close connections in use;
+     * surplus connections are closed as they are returned.
+     */
+    public void setMaxTotal(int maxTotal) {
+        internalPool.setMaxTotal(maxTotal);
+        if (internalPool.getMaxIdle() >= 0 && internalPool.getMaxIdle() > maxTotal) {
+            internalPool.setMaxIdle(maxTotal);
+        }
+    }
+}
@@ -1,36 +1,56 @@
 package com.zimbra.ssdb;
 
-import java.util.Arrays;
-
-import com.google.common.base.Joiner;
 import com.zimbra.cs.ephemeral.EphemeralKey;
 import com.zimbra.cs.ephemeral.EphemeralLocation;
 import com.zimbra.cs.ephemeral.KeyEncoder;
 
 /**
- * 
+ *
  * @author Greg Solovyev
  * SSDBKeyEncoder encodes EphemeralKey and EphemeralLocation.
+ *
+ * Keys are built in a single pass into a presized buffer.
  */
 public class SSDBKeyEncoder extends KeyEncoder {
+    static final char SEPARATOR = '|';
 
     @Override
     /**
-     * @param target consists of object type and object ID. 
+     * @param target consists of object type and object ID.
      * @param key consists of attribute name and an optional dynamic part
      * In SSDB, the key will be composed as "object type|object ID|attribute name|dynamic part"
      */
     public String encodeKey(EphemeralKey key, EphemeralLocation target) {
-        int pathLength = target.getLocation().length + 1;
-        if(key.isDynamic()) {
-            pathLength++;
+        String[] location = target.getLocation();
+        String attrName = key.getKey();
+        String dynamicPart = key.isDynamic() ? key.getDynamicComponent() : null;
+        int length = attrName.length() + location.length;
+        for (String part : location) {
+            length += part.length();
+        }
+        if (dynamicPart != null) {
+            length += dynamicPart.length() + 1;
         }
-        String[] path = Arrays.copyOf(target.getLocation(), pathLength);
-        path[target.getLocation().length] = key.getKey();
-        if(key.isDynamic()) {
-            path[target.getLocation().length+1] = key.getDynamicComponent();
+        StringBuilder sb = new StringBuilder(length);
+        for (String part : location) {
+            sb.append(part).append(SEPARATOR);
         }
-        return Joiner.on("|").join(path);
+        sb.append(attrName);
+        if (dynamicPart != null) {
+            sb.append(SEPARATOR).append(dynamicPart);
+        }
+        return sb.toString();
     }
 
+    /**
+     * @param target consists of object type and object ID.
+     * @return the common prefix of all keys stored for the target, e.g. "account|47e456be-b00a-465e-a1db-4b53e64fa|"
+     */
+    public static String encodeLocation(EphemeralLocation target) {
+        StringBuilder sb = new StringBuilder(64);
+        for (String part : target.getLocation()) {
+            sb.append(part).append(SEPARATOR);
+        }
+        return sb.toString();
+    }
 }
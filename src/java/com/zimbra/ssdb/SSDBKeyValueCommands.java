@@ -0,0 +1,85 @@
+package com.zimbra.ssdb;
+
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ *
+ * SSDBKeyValueCommands are the commands {@link SSDBLayout} reads and writes attributes with.
+ * They are implemented by the {@link SSDBMultiplexedClient} and, through {@link #of(Jedis)},
+ * by pooled connections.
+ *
+ */
+public interface SSDBKeyValueCommands {
+
+    byte[] get(byte[] key);
+
+    List<byte[]> mget(byte[]... keys);
+
+    String set(byte[] key, byte[] value);
+
+    String setex(byte[] key, int seconds, byte[] value);
+
+    Long del(String key);
+
+    byte[] hget(byte[] key, byte[] field);
+
+    List<byte[]> hmget(byte[] key, byte[]... fields);
+
+    Long hset(byte[] key, byte[] field, byte[] value);
+
+    Long hdel(String key, String... fields);
+
+    /**
+     * @return the commands of a pooled connection
+     */
+    static SSDBKeyValueCommands of(Jedis jedis) {
+        return new SSDBKeyValueCommands() {
+            @Override
+            public byte[] get(byte[] key) {
+                return jedis.get(key);
+            }
+
+            @Override
+            public List<byte[]> mget(byte[]... keys) {
+                return jedis.mget(keys);
+            }
+
+            @Override
+            public String set(byte[] key, byte[] value) {
+                return jedis.set(key, value);
+            }
+
+            @Override
+            public String setex(byte[] key, int seconds, byte[] value) {
+                return jedis.setex(key, seconds, value);
+            }
+
+            @Override
+            public Long del(String key) {
+                return jedis.del(key);
+            }
+
+            @Override
+            public byte[] hget(byte[] key, byte[] field) {
+                return jedis.hget(key, field);
+            }
+
+            @Override
+            public List<byte[]> hmget(byte[] key, byte[]... fields) {
+                return jedis.hmget(key, fields);
+            }
+
+            @Override
+            public Long hset(byte[] key, byte[] field, byte[] value) {
+                return jedis.hset(key, field, value);
+            }
+
+            @Override
+            public Long hdel(String key, String... fields) {
+                return jedis.hdel(key, fields);
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
+
+/**
+ *
+ * SSDBLayout decides how encoded keys map onto SSDB data structures.
+ *
+ * With KEYS, every attribute is a top-level key "entry type|entry ID|attribute name[|dynamic part]"
+ * that SSDB expires by itself. With HASH, all attributes of an entry live in one hash named
+ * "entry type|entry ID", keyed by "attribute name[|dynamic part]". SSDB cannot expire hash fields,
+ * so expired fields are skipped on read using the expiration encoded in the value.
+ * Reading or wiping all attributes of an entry is then a single command.
+ *
+ */
+public enum SSDBLayout {
+    KEYS {
+        @Override
+        byte[] get(SSDBKeyValueCommands commands, String encodedKey) {
+            return commands.get(SafeEncoder.encode(encodedKey));
+        }
+
+        @Override
+        List<byte[]> getAll(SSDBKeyValueCommands commands, List<String> encodedKeys) {
+            return commands.mget(encode(encodedKeys));
+        }
+
+        @Override
+        void set(SSDBKeyValueCommands commands, String encodedKey, byte[] value, int ttlSeconds) {
+            if (ttlSeconds > 0) {
+                commands.setex(SafeEncoder.encode(encodedKey), ttlSeconds, value);
+            } else {
+                commands.set(SafeEncoder.encode(encodedKey), value);
+            }
+        }
+
+        @Override
+        Long delete(SSDBKeyValueCommands commands, String encodedKey) {
+            return commands.del(encodedKey);
+        }
+
+        @Override
+        void write(Pipeline pipeline, Mutation mutation) {
+            if (mutation.isDelete()) {
+                pipeline.del(mutation.getKey());
+            } else if (mutation.getTtlSeconds() > 0) {
+                pipeline.setex(SafeEncoder.encode(mutation.getKey()), mutation.getTtlSeconds(), mutation.getValue());
+            } else {
+                pipeline.set(SafeEncoder.encode(mutation.getKey()), mutation.getValue());
+            }
+        }
+    },
+    HASH {
+        @Override
+        byte[] get(SSDBKeyValueCommands commands, String encodedKey) {
+            return commands.hget(SafeEncoder.encode(hashName(encodedKey)), SafeEncoder.encode(hashField(encodedKey)));
+        }
+
+        /**
+         * All keys must belong to the same entry
+         */
+        @Override
+        List<byte[]> getAll(SSDBKeyValueCommands commands, List<String> encodedKeys) {
+            List<String> fields = new ArrayList<String>(encodedKeys.size());
+            for (String encodedKey : encodedKeys) {
+                fields.add(hashField(encodedKey));
+            }
+            return commands.hmget(SafeEncoder.encode(hashName(encodedKeys.get(0))), encode(fields));
+        }
+
+        @Override
+        void set(SSDBKeyValueCommands commands, String encodedKey, byte[] value, int ttlSeconds) {
+            commands.hset(SafeEncoder.encode(hashName(encodedKey)), SafeEncoder.encode(hashField(encodedKey)), value);
+        }
+
+        @Override
+        Long delete(SSDBKeyValueCommands commands, String encodedKey) {
+            return commands.hdel(hashName(encodedKey), hashField(encodedKey));
+        }
+
+        @Override
+        void write(Pipeline pipeline, Mutation mutation) {
+            if (mutation.isDelete()) {
+                pipeline.hdel(hashName(mutation.getKey()), hashField(mutation.getKey()));
+            } else {
+                pipeline.hset(SafeEncoder.encode(hashName(mutation.getKey())), SafeEncoder.encode(hashField(mutation.getKey())), mutation.getValue());
+            }
+        }
+    };
+
+    /**
+     * @return the stored value of the encoded key, or null
+     */
+    abstract byte[] get(SSDBKeyValueCommands commands, String encodedKey);
+
+    /**
+     * @return the stored values of the encoded keys, which all belong to the same entry, in the same order
+     */
+    abstract List<byte[]> getAll(SSDBKeyValueCommands commands, List<String> encodedKeys);
+
+    /**
+     * @param ttlSeconds time to live, or 0 if the key does not expire
+     */
+    abstract void set(SSDBKeyValueCommands commands, String encodedKey, byte[] value, int ttlSeconds);
+
+    /**
+     * @return the number of keys deleted
+     */
+    abstract Long delete(SSDBKeyValueCommands commands, String encodedKey);
+
+    /**
+     * Adds the mutation to a pipeline
+     */
+    abstract void write(Pipeline pipeline, Mutation mutation);
+
+    /**
+     * @return the name of the hash that holds the encoded key: its "entry type|entry ID" prefix
+     */
+    static String hashName(String encodedKey) {
+        return SSDBShardRing.getRoutingKey(encodedKey);
+    }
+
+    /**
+     * @return the field of the encoded key in its hash: everything after the "entry type|entry ID|" prefix
+     */
+    static String hashField(String encodedKey) {
+        int prefixLength = hashName(encodedKey).length();
+        return prefixLength < encodedKey.length() ? encodedKey.substring(prefixLength + 1) : "";
+    }
+
+    private static byte[][] encode(List<String> keys) {
+        byte[][] raw = new byte[keys.size()][];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = SafeEncoder.encode(keys.get(i));
+        }
+        return raw;
+    }
+
+    /**
+     * @return the layout named by localconfig key ssdb_layout, "keys" or "hash"
+     */
+    static SSDBLayout fromConfig() {
+        String name = SSDBConfig.getString(SSDBConfig.LAYOUT, KEYS.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ZimbraLog.extensions.warn("unknown SSDB layout '%s', using %s", name, KEYS);
+            return KEYS;
+        }
+    }
+}
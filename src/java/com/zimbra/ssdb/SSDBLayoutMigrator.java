@@ -0,0 +1,231 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.ssdb.SSDBWriteBehindQueue.Mutation;
+
+/**
+ *
+ * SSDBLayoutMigrator moves attributes stored as top-level keys into the per-entry hashes
+ * of {@link SSDBLayout#HASH}.
+ *
+ * Keys are read in key order, batchSize at a time, from the master of every shard. Each key is copied
+ * into its entry's hash and then deleted; keys whose encoded expiration has passed are only deleted.
+ * A key is not copied over a field that already exists, since that holds a newer value, and a copy is
+ * taken back if the key was deleted while it was being made.
+ *
+ * Run it after all mailbox servers have been switched to ssdb_layout=hash, so that no server
+ * writes top-level keys any more. Servers keep reading and deleting top-level keys until
+ * ssdb_layout_legacy_keys is turned off, which should be done once it has run on every shard.
+ *
+ */
+public class SSDBLayoutMigrator {
+
+    private final SSDBNode node;
+    private final int batchSize;
+    private final boolean dryRun;
+
+    public SSDBLayoutMigrator(SSDBNode node, int batchSize, boolean dryRun) {
+        this.node = node;
+        this.batchSize = batchSize;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * @return the number of keys moved into hashes
+     */
+    public long migrate() throws ServiceException {
+        long moved = 0L;
+        long dropped = 0L;
+        String start = "";
+        try (Jedis jedis = node.getPool().getResource()) {
+            while (true) {
+                List<String> keys = SSDBCommand.listCommand(jedis, SSDBCommand.KEYS, start, "", String.valueOf(batchSize));
+                if (keys.isEmpty()) {
+                    break;
+                }
+                start = keys.get(keys.size() - 1);
+                List<String> attributeKeys = new ArrayList<String>(keys.size());
+                for (String key : keys) {
+                    if (isAttributeKey(key)) {
+                        attributeKeys.add(key);
+                    }
+                }
+                List<Response<byte[]>> values = new ArrayList<Response<byte[]>>(attributeKeys.size());
+                Pipeline reads = jedis.pipelined();
+                for (String key : attributeKeys) {
+                    values.add(reads.get(SafeEncoder.encode(key)));
+                }
+                reads.sync();
+                List<String> migrated = new ArrayList<String>(attributeKeys.size());
+                List<String> candidates = new ArrayList<String>(attributeKeys.size());
+                List<byte[]> candidateValues = new ArrayList<byte[]>(attributeKeys.size());
+                for (int i = 0; i < attributeKeys.size(); i++) {
+                    String key = attributeKeys.get(i);
+                    byte[] value = values.get(i).get();
+                    if (value == null) {
+                        continue;
+                    }
+                    migrated.add(key);
+                    if (SSDBSweeper.isExpired(key, value, System.currentTimeMillis())) {
+                        dropped++;
+                    } else {
+                        candidates.add(key);
+                        candidateValues.add(value);
+                    }
+                }
+                List<String> copied = new ArrayList<String>(candidates.size());
+                List<byte[]> copiedValues = new ArrayList<byte[]>(candidates.size());
+                List<byte[]> fields = readFields(jedis, candidates);
+                for (int i = 0; i < candidates.size(); i++) {
+                    // an existing field holds a newer value written by a server on the hash layout
+                    if (fields.get(i) == null) {
+                        copied.add(candidates.get(i));
+                        copiedValues.add(candidateValues.get(i));
+                    }
+                }
+                moved += copied.size();
+                if (!dryRun) {
+                    Pipeline writes = jedis.pipelined();
+                    for (int i = 0; i < copied.size(); i++) {
+                        SSDBLayout.HASH.write(writes, Mutation.set(copied.get(i), copiedValues.get(i), 0));
+                    }
+                    writes.sync();
+                    undoCopiesOfDeletedKeys(jedis, copied, copiedValues);
+                    Pipeline deletes = jedis.pipelined();
+                    for (String key : migrated) {
+                        deletes.del(key);
+                    }
+                    deletes.sync();
+                }
+                ZimbraLog.extensions.info("SSDB node %s: moved %d keys into hashes, dropped %d expired keys so far",
+                        node.getName(), moved, dropped);
+            }
+        } catch (JedisException e) {
+            throw ServiceException.FAILURE(String.format("migration of SSDB node %s failed after moving %d keys", node.getName(), moved), e);
+        }
+        return moved;
+    }
+
+    /**
+     * @return the hash fields of the keys, null where there is none
+     */
+    private static List<byte[]> readFields(Jedis jedis, List<String> keys) {
+        List<Response<byte[]>> responses = new ArrayList<Response<byte[]>>(keys.size());
+        Pipeline reads = jedis.pipelined();
+        for (String key : keys) {
+            responses.add(reads.hget(SafeEncoder.encode(SSDBLayout.hashName(key)), SafeEncoder.encode(SSDBLayout.hashField(key))));
+        }
+        reads.sync();
+        List<byte[]> fields = new ArrayList<byte[]>(keys.size());
+        for (Response<byte[]> response : responses) {
+            fields.add(response.get());
+        }
+        return fields;
+    }
+
+    /**
+     * A server on the hash layout deletes both the field and the key, for instance on logout. If that
+     * happened between reading a key and copying it, the copy would bring the value back, so the copies
+     * of keys that are gone by now are deleted again unless the field has been rewritten since.
+     */
+    private static void undoCopiesOfDeletedKeys(Jedis jedis, List<String> copied, List<byte[]> copiedValues) {
+        List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>(copied.size());
+        Pipeline checks = jedis.pipelined();
+        for (String key : copied) {
+            exists.add(checks.exists(key));
+        }
+        checks.sync();
+        List<String> deleted = new ArrayList<String>();
+        List<byte[]> deletedValues = new ArrayList<byte[]>();
+        for (int i = 0; i < copied.size(); i++) {
+            if (!exists.get(i).get()) {
+                deleted.add(copied.get(i));
+                deletedValues.add(copiedValues.get(i));
+            }
+        }
+        if (deleted.isEmpty()) {
+            return;
+        }
+        List<byte[]> fields = readFields(jedis, deleted);
+        Pipeline undo = jedis.pipelined();
+        for (int i = 0; i < deleted.size(); i++) {
+            if (Arrays.equals(fields.get(i), deletedValues.get(i))) {
+                SSDBLayout.HASH.write(undo, Mutation.delete(deleted.get(i)));
+            }
+        }
+        undo.sync();
+    }
+
+    /**
+     * @return true if the key looks like "entry type|entry ID|attribute name[|dynamic part]"
+     */
+    static boolean isAttributeKey(String key) {
+        int typeEnd = key.indexOf(SSDBKeyEncoder.SEPARATOR);
+        if (typeEnd <= 0) {
+            return false;
+        }
+        int idEnd = key.indexOf(SSDBKeyEncoder.SEPARATOR, typeEnd + 1);
+        return idEnd > typeEnd + 1 && idEnd < key.length() - 1;
+    }
+
+    private static void usage(Options options) {
+        new HelpFormatter().printHelp(SSDBLayoutMigrator.class.getSimpleName() + " [options]",
+                "Moves SSDB ephemeral attributes from top-level keys into per-entry hashes.", options, null);
+    }
+
+    public static void main(String[] args) throws ServiceException {
+        Options options = new Options();
+        options.addOption("u", "url", true, "ephemeral backend URL, defaults to zimbraEphemeralBackendURL");
+        options.addOption("b", "batch-size", true, "number of keys read per round-trip, default 1000");
+        options.addOption("n", "dry-run", false, "only count the keys that would be moved");
+        options.addOption("h", "help", false, "print this help");
+        CommandLine cl;
+        try {
+            cl = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            usage(options);
+            System.exit(1);
+            return;
+        }
+        if (cl.hasOption('h')) {
+            usage(options);
+            return;
+        }
+        String url = cl.hasOption('u') ? cl.getOptionValue('u') : Provisioning.getInstance().getConfig().getEphemeralBackendURL();
+        int batchSize = Integer.parseInt(cl.getOptionValue('b', "1000"));
+        boolean dryRun = cl.hasOption('n');
+        List<SSDBShard> shards = SSDBEphemeralStore.getShards(url);
+        try {
+            for (SSDBShard shard : shards) {
+                long moved = new SSDBLayoutMigrator(shard, batchSize, dryRun).migrate();
+                System.out.println(String.format("%s: %s %d keys", shard.getName(), dryRun ? "would move" : "moved", moved));
+            }
+        } finally {
+            for (SSDBShard shard : shards) {
+                for (SSDBNode replica : shard.getReplicas()) {
+                    replica.getPool().close();
+                }
+                shard.getPool().close();
+            }
+        }
+    }
+}
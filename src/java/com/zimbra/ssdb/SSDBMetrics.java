@@ -0,0 +1,123 @@
+package com.zimbra.ssdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBMetrics keeps one {@link SSDBOperationStats} per {@link SSDBOperation} and exports them,
+ * together with the statistics and pool gauges of every {@link SSDBNode}, to the platform MBean server:
+ *
+ * com.zimbra.ssdb:type=Operation,name=get
+ * com.zimbra.ssdb:type=Node,name="ssdb1:8888"
+ *
+ * Exporting can be turned off with the localconfig key ssdb_jmx_enabled. A store that replaces another
+ * takes over its names; the retired store then leaves them alone when it unregisters.
+ *
+ */
+public class SSDBMetrics {
+    public static final String JMX_DOMAIN = "com.zimbra.ssdb";
+
+    /**
+     * A store operation that is timed by {@link SSDBMetrics#time(SSDBOperation, Call)}
+     */
+    public interface Call<T> {
+        T call() throws ServiceException;
+    }
+
+    /** the instance whose bean is registered under each name; guarded by itself */
+    private static final Map<ObjectName, SSDBMetrics> OWNERS = new HashMap<ObjectName, SSDBMetrics>();
+
+    private final Map<SSDBOperation, SSDBOperationStats> operations = new EnumMap<SSDBOperation, SSDBOperationStats>(SSDBOperation.class);
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    public SSDBMetrics() {
+        for (SSDBOperation operation : SSDBOperation.values()) {
+            operations.put(operation, new SSDBOperationStats());
+        }
+    }
+
+    /**
+     * Runs the call and records its latency, and whether it failed, under the operation
+     */
+    public <T> T time(SSDBOperation operation, Call<T> call) throws ServiceException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            operations.get(operation).record(System.nanoTime() - start, failed);
+        }
+    }
+
+    public SSDBOperationStats getStats(SSDBOperation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Exports the operation statistics and the given nodes over JMX, replacing beans of a previous store
+     */
+    public synchronized void register(List<SSDBNode> nodes) {
+        if (!SSDBConfig.getBoolean(SSDBConfig.JMX_ENABLED, true)) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Map.Entry<SSDBOperation, SSDBOperationStats> entry : operations.entrySet()) {
+                register(server, new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + entry.getKey().getName()), entry.getValue());
+            }
+            for (SSDBNode node : nodes) {
+                register(server, new ObjectName(JMX_DOMAIN + ":type=Node,name=" + ObjectName.quote(node.getName())), node);
+            }
+        } catch (JMException | RuntimeException e) {
+            ZimbraLog.extensions.warn("unable to export SSDB statistics over JMX", e);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        synchronized (OWNERS) {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+            OWNERS.put(name, this);
+        }
+        registered.add(name);
+    }
+
+    /**
+     * Removes the beans this instance exported, except those another instance has registered since
+     */
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (OWNERS) {
+            for (ObjectName name : registered) {
+                if (OWNERS.get(name) != this) {
+                    continue;
+                }
+                OWNERS.remove(name);
+                try {
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                    }
+                } catch (JMException e) {
+                    ZimbraLog.extensions.debug("unable to unregister %s", name, e);
+                }
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,172 @@
+package com.zimbra.ssdb;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ *
+ * SSDBMultiplexedClient sends the commands of all threads calling an SSDB node over a few shared
+ * {@link SSDBMultiplexedConnection}s, picked round-robin, instead of giving every call a pooled socket.
+ *
+ * It only implements the {@link SSDBKeyValueCommands} of {@link SSDBLayout}: GET, MGET, SET, SETEX, DEL,
+ * HGET, HMGET, HSET and HDEL. {@link SSDBEphemeralStore} only runs operations that are limited to those
+ * commands on it; everything else still uses the node's pool. {@link #close()} closes the connections.
+ *
+ */
+public class SSDBMultiplexedClient implements SSDBKeyValueCommands, Closeable {
+    private static final byte[] GET = SafeEncoder.encode("GET");
+    private static final byte[] MGET = SafeEncoder.encode("MGET");
+    private static final byte[] SET = SafeEncoder.encode("SET");
+    private static final byte[] SETEX = SafeEncoder.encode("SETEX");
+    private static final byte[] DEL = SafeEncoder.encode("DEL");
+    private static final byte[] HGET = SafeEncoder.encode("HGET");
+    private static final byte[] HMGET = SafeEncoder.encode("HMGET");
+    private static final byte[] HSET = SafeEncoder.encode("HSET");
+    private static final byte[] HDEL = SafeEncoder.encode("HDEL");
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final AtomicReferenceArray<SSDBMultiplexedConnection> connections;
+    private final AtomicInteger next = new AtomicInteger();
+    /** a lock rather than a monitor, so that threads waiting for a connection do not pin virtual threads */
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    public SSDBMultiplexedClient(String host, int port, int connectionCount, int connectTimeoutMillis, int socketTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.connections = new AtomicReferenceArray<SSDBMultiplexedConnection>(connectionCount);
+    }
+
+    /**
+     * @return a live connection, replacing a broken one if needed
+     */
+    private SSDBMultiplexedConnection connection() {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+        SSDBMultiplexedConnection current = connections.get(i);
+        if (current != null && !current.isBroken()) {
+            return current;
+        }
+        // callers arriving together must not each open a socket only to close all but one
+        connectLock.lock();
+        try {
+            current = connections.get(i);
+            if (current == null || current.isBroken()) {
+                current = new SSDBMultiplexedConnection(host, port, connectTimeoutMillis);
+                connections.set(i, current);
+            }
+            return current;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a command and waits up to the socket timeout for its reply
+     */
+    Object call(byte[]... args) throws JedisException {
+        SSDBMultiplexedConnection connection = connection();
+        CompletableFuture<Object> reply = connection.send(args);
+        try {
+            return reply.get(socketTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // the node is stuck; replies queued behind this one will not come either
+            connection.close();
+            throw new JedisConnectionException(String.format("no reply from SSDB node %s:%d within %d ms", host, port, socketTimeoutMillis));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JedisException) {
+                throw (JedisException) e.getCause();
+            }
+            throw new JedisConnectionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("interrupted while waiting for SSDB node", e);
+        }
+    }
+
+    private static byte[][] prepend(byte[] command, byte[] first, byte[]... rest) {
+        byte[][] args = new byte[rest.length + 2][];
+        args[0] = command;
+        args[1] = first;
+        System.arraycopy(rest, 0, args, 2, rest.length);
+        return args;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return (byte[]) call(GET, key);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<byte[]> mget(byte[]... keys) {
+        byte[][] args = new byte[keys.length + 1][];
+        args[0] = MGET;
+        System.arraycopy(keys, 0, args, 1, keys.length);
+        return (List<byte[]>) (List<?>) call(args);
+    }
+
+    @Override
+    public String set(byte[] key, byte[] value) {
+        return (String) call(SET, key, value);
+    }
+
+    @Override
+    public String setex(byte[] key, int seconds, byte[] value) {
+        return (String) call(SETEX, key, SafeEncoder.encode(String.valueOf(seconds)), value);
+    }
+
+    @Override
+    public Long del(String key) {
+        return (Long) call(DEL, SafeEncoder.encode(key));
+    }
+
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        return (byte[]) call(HGET, key, field);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<byte[]> hmget(byte[] key, byte[]... fields) {
+        return (List<byte[]>) (List<?>) call(prepend(HMGET, key, fields));
+    }
+
+    @Override
+    public Long hset(byte[] key, byte[] field, byte[] value) {
+        return (Long) call(HSET, key, field, value);
+    }
+
+    @Override
+    public Long hdel(String key, String... fields) {
+        byte[][] rawFields = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            rawFields[i] = SafeEncoder.encode(fields[i]);
+        }
+        return (Long) call(prepend(HDEL, SafeEncoder.encode(key), rawFields));
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < connections.length(); i++) {
+            SSDBMultiplexedConnection connection = connections.getAndSet(i, null);
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.zimbra.ssdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ *
+ * SSDBMultiplexedConnection is one socket to an SSDB node shared by any number of concurrent callers.
+ *
+ * Commands are queued and written by a writer thread, which sends everything queued so far in a single
+ * write, so commands issued concurrently are pipelined automatically. SSDB answers commands in order,
+ * so a reader thread completes the callers' futures in the order their commands were written.
+ * Once the socket fails, every outstanding and later command fails with a JedisConnectionException
+ * and the connection has to be replaced.
+ *
+ */
+class SSDBMultiplexedConnection implements Closeable {
+    private static final int MAX_BATCH = 512;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static class Request {
+        final byte[][] args;
+        final CompletableFuture<Object> reply;
+
+        Request(byte[][] args, CompletableFuture<Object> reply) {
+            this.args = args;
+            this.reply = reply;
+        }
+    }
+
+    private final String name;
+    private final SocketChannel channel;
+    private final BlockingQueue<Request> outbound = new LinkedBlockingQueue<Request>();
+    private final Queue<CompletableFuture<Object>> inFlight = new ConcurrentLinkedQueue<CompletableFuture<Object>>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+    private final Thread writer;
+    private volatile boolean broken = false;
+
+    SSDBMultiplexedConnection(String host, int port, int connectTimeoutMillis) {
+        name = host + ":" + port;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            throw new JedisConnectionException("could not connect to SSDB node " + name, e);
+        }
+        readBuffer.flip();
+        writer = startThread("writer", this::writeLoop);
+        startThread("reader", this::readLoop);
+    }
+
+    private Thread startThread(String role, Runnable loop) {
+        Thread thread = new Thread(loop, "SSDBMultiplexed-" + name + "-" + role);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * @return the number of commands written and not answered yet
+     */
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Queues a command
+     *
+     * @return the reply: a String, Long, byte[], List of replies or null; error replies complete
+     * the future exceptionally with a JedisDataException
+     */
+    CompletableFuture<Object> send(byte[]... args) {
+        CompletableFuture<Object> reply = new CompletableFuture<Object>();
+        outbound.add(new Request(args, reply));
+        if (broken) {
+            // the writer may already have exited
+            failQueued(new JedisConnectionException("connection to SSDB node " + name + " is closed"));
+        }
+        return reply;
+    }
+
+    private void writeLoop() {
+        List<Request> batch = new ArrayList<Request>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            while (!broken) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_BATCH - 1);
+                for (Request request : batch) {
+                    encode(request.args, out);
+                    inFlight.add(request.reply);
+                }
+                ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                batch.clear();
+                out.reset();
+            }
+        } catch (IOException | InterruptedException e) {
+            for (Request request : batch) {
+                request.reply.completeExceptionally(new JedisConnectionException(e));
+            }
+            fail(e);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!broken) {
+                Object reply = readReply();
+                CompletableFuture<Object> future = inFlight.poll();
+                if (future == null) {
+                    throw new IOException("unexpected reply from SSDB node " + name);
+                }
+                if (reply instanceof JedisDataException) {
+                    future.completeExceptionally((JedisDataException) reply);
+                } else {
+                    future.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable cause) {
+        broken = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already failing
+        }
+        if (Thread.currentThread() != writer) {
+            // wake the writer up if it waits for commands
+            writer.interrupt();
+        }
+        JedisConnectionException failure = cause instanceof JedisConnectionException ? (JedisConnectionException) cause
+                : new JedisConnectionException("connection to SSDB node " + name + " failed", cause);
+        CompletableFuture<Object> future;
+        while ((future = inFlight.poll()) != null) {
+            future.completeExceptionally(failure);
+        }
+        failQueued(failure);
+    }
+
+    private void failQueued(JedisConnectionException failure) {
+        Request request;
+        while ((request = outbound.poll()) != null) {
+            request.reply.completeExceptionally(failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new JedisConnectionException("connection to SSDB node " + name + " is closed"));
+    }
+
+    static void encode(byte[][] args, ByteArrayOutputStream out) {
+        writeLine(out, '*', args.length);
+        for (byte[] arg : args) {
+            writeLine(out, '$', arg.length);
+            out.write(arg, 0, arg.length);
+            out.write(CRLF, 0, CRLF.length);
+        }
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, char type, long value) {
+        out.write(type);
+        byte[] digits = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        out.write(digits, 0, digits.length);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    private Object readReply() throws IOException {
+        int type = readByte();
+        switch (type) {
+        case '+':
+            return readLine();
+        case '-':
+            return new JedisDataException(readLine());
+        case ':':
+            return Long.parseLong(readLine());
+        case '$': {
+            int length = Integer.parseInt(readLine());
+            if (length < 0) {
+                return null;
+            }
+            byte[] value = new byte[length];
+            readFully(value);
+            readByte();
+            readByte();
+            return value;
+        }
+        case '*': {
+            int count = Integer.parseInt(readLine());
+            if (count < 0) {
+                return null;
+            }
+            List<Object> replies = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++) {
+                replies.add(readReply());
+            }
+            return replies;
+        }
+        default:
+            throw new IOException(String.format("unknown reply type '%c' from SSDB node %s", (char) type, name));
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = readByte()) != '\r') {
+            sb.append((char) b);
+        }
+        readByte();
+        return sb.toString();
+    }
+
+    private void readFully(byte[] value) throws IOException {
+        int pos = 0;
+        while (pos < value.length) {
+            fill();
+            int n = Math.min(readBuffer.remaining(), value.length - pos);
+            readBuffer.get(value, pos, n);
+            pos += n;
+        }
+    }
+
+    private int readByte() throws IOException {
+        fill();
+        return readBuffer.get() & 0xff;
+    }
+
+    private void fill() throws IOException {
+        if (readBuffer.hasRemaining()) {
+            return;
+        }
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        readBuffer.flip();
+        if (n < 0) {
+            throw new IOException("SSDB node " + name + " closed the connection");
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.zimbra.ssdb;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+
+/**
+ *
+ * SSDBNearCache is a bounded in-process cache of values recently read from SSDB.
+ * It sits in front of the Jedis calls made by {@link SSDBEphemeralStore#get} and {@link SSDBEphemeralStore#has}
+ * for hot attributes such as auth tokens and CSRF token data.
+ *
+ * An entry is served for at most ttlMillis after it was loaded and never past the expiration
+ * that {@link SSDBValueEncoder} encoded into the value. Entries are keyed by the encoded SSDB key.
+ *
+ * As with {@link SSDBNegativeCache}, callers take a ticket with {@link #startLookup()} before querying
+ * SSDB and hand it to {@link #put(String, String, Long, long)}, so that a value read before a local
+ * set() or delete() is not cached after the invalidation that went with it.
+ *
+ */
+public class SSDBNearCache {
+    public static final String DEFAULT_ATTRS = Provisioning.A_zimbraAuthTokens + "," + Provisioning.A_zimbraCsrfTokenData;
+
+    private final Cache<String, Entry> cache;
+    private final Set<String> attributes;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SSDBNearCache(long maxSize, long ttlMillis, Collection<String> attributes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.attributes = new HashSet<String>(attributes);
+    }
+
+    /**
+     * @return a near-cache configured from localconfig, or null if the near-cache is disabled
+     */
+    static SSDBNearCache fromConfig() {
+        int size = SSDBConfig.getInt(SSDBConfig.NEAR_CACHE_SIZE, 0);
+        if (size <= 0) {
+            return null;
+        }
+        long ttl = SSDBConfig.getLong(SSDBConfig.NEAR_CACHE_TTL_MS, 5000L);
+        String attrs = SSDBConfig.getString(SSDBConfig.NEAR_CACHE_ATTRS, DEFAULT_ATTRS);
+        return new SSDBNearCache(size, ttl, Splitter.on(',').trimResults().omitEmptyStrings().splitToList(attrs));
+    }
+
+    public boolean isCacheable(EphemeralKey key) {
+        return attributes.contains(key.getKey());
+    }
+
+    /**
+     * @return the cached decoded value for the encoded key, or null if it is not cached or has expired
+     */
+    public String get(String encodedKey) {
+        Entry entry = cache.getIfPresent(encodedKey);
+        if (entry != null) {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                cache.invalidate(encodedKey);
+            } else {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return a ticket to pass to {@link #put(String, String, Long, long)} once the SSDB lookup has completed
+     */
+    public long startLookup() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a value read from SSDB, unless the cache was invalidated since the lookup started
+     *
+     * @param expires absolute expiration in milliseconds decoded from the SSDB value, or null if the value does not expire
+     */
+    public void put(String encodedKey, String value, Long expires, long ticket) {
+        Entry entry = new Entry(value, expires);
+        if (generation.get() != ticket || entry.isExpired(System.currentTimeMillis())) {
+            return;
+        }
+        cache.put(encodedKey, entry);
+        if (generation.get() != ticket) {
+            // invalidated while it was put
+            cache.invalidate(encodedKey);
+        }
+    }
+
+    public void invalidate(String encodedKey) {
+        generation.incrementAndGet();
+        cache.invalidate(encodedKey);
+    }
+
+    /**
+     * Removes every cached entry whose encoded key starts with the given prefix
+     */
+    public void invalidatePrefix(String prefix) {
+        generation.incrementAndGet();
+        cache.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static class Entry {
+        private final String value;
+        private final Long expires;
+
+        private Entry(String value, Long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long now) {
+            return expires != null && expires > 0L && expires <= now;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.zimbra.ssdb;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+
+/**
+ *
+ * SSDBNegativeCache remembers for a short time that an encoded key was not found in SSDB,
+ * so that repeated lookups of absent auth and CSRF tokens do not each cost a round-trip.
+ *
+ * Callers take a ticket with {@link #startLookup()} before querying SSDB and hand it back to
+ * {@link #putAbsent(String, long)}. Any invalidation that happens in between makes the ticket stale,
+ * and the generation is checked again after the put, so a lookup racing with a local set() can never
+ * hide a newly issued token.
+ *
+ */
+public class SSDBNegativeCache {
+
+    private final Cache<String, Boolean> cache;
+    private final Set<String> attributes;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SSDBNegativeCache(long maxSize, long ttlMillis, Collection<String> attributes) {
+        this(CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .<String, Boolean>build(), attributes);
+    }
+
+    @VisibleForTesting
+    SSDBNegativeCache(Cache<String, Boolean> cache, Collection<String> attributes) {
+        this.cache = cache;
+        this.attributes = new HashSet<String>(attributes);
+    }
+
+    /**
+     * @return a negative cache configured from localconfig, or null if the negative cache is disabled
+     */
+    static SSDBNegativeCache fromConfig() {
+        int size = SSDBConfig.getInt(SSDBConfig.NEGATIVE_CACHE_SIZE, 0);
+        if (size <= 0) {
+            return null;
+        }
+        long ttl = SSDBConfig.getLong(SSDBConfig.NEGATIVE_CACHE_TTL_MS, 1000L);
+        String attrs = SSDBConfig.getString(SSDBConfig.NEGATIVE_CACHE_ATTRS, SSDBNearCache.DEFAULT_ATTRS);
+        return new SSDBNegativeCache(size, ttl, Splitter.on(',').trimResults().omitEmptyStrings().splitToList(attrs));
+    }
+
+    public boolean isCacheable(EphemeralKey key) {
+        return attributes.contains(key.getKey());
+    }
+
+    /**
+     * @return true if the encoded key is known to be absent from SSDB
+     */
+    public boolean isAbsent(String encodedKey) {
+        if (cache.getIfPresent(encodedKey) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return a ticket to pass to {@link #putAbsent(String, long)} once the SSDB lookup has completed
+     */
+    public long startLookup() {
+        return generation.get();
+    }
+
+    /**
+     * Records that the encoded key was not found, unless the cache was invalidated since the lookup started
+     */
+    public void putAbsent(String encodedKey, long ticket) {
+        if (generation.get() != ticket) {
+            return;
+        }
+        cache.put(encodedKey, Boolean.TRUE);
+        if (generation.get() != ticket) {
+            // invalidated while it was put
+            cache.invalidate(encodedKey);
+        }
+    }
+
+    public void invalidate(String encodedKey) {
+        generation.incrementAndGet();
+        cache.invalidate(encodedKey);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
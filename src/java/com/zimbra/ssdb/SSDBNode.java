@@ -0,0 +1,280 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBNode is a single SSDB server together with its connection pool, operation counters,
+ * a moving average of the latency of calls made to it and one of the round-trip time of pings,
+ * which unlike the former does not depend on which commands the node is sent. Its statistics are exported over JMX
+ * by {@link SSDBMetrics}.
+ *
+ */
+public class SSDBNode implements SSDBNodeMXBean {
+    private final String host;
+    private final Integer port;
+    private final GenericObjectPoolConfig poolConfig;
+    private final AtomicReference<JedisPool> pool = new AtomicReference<JedisPool>();
+    private volatile long latencyNanos = 0L;
+    private volatile long pingNanos = 0L;
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong poolRebuilds = new AtomicLong();
+    private volatile SSDBCircuitBreaker circuitBreaker = new SSDBCircuitBreaker(0, 0L);
+    private volatile Semaphore callPermits = null;
+    private volatile SSDBMultiplexedClient multiplexedClient = null;
+
+    public SSDBNode(String host, Integer port, GenericObjectPoolConfig poolConfig) throws ServiceException {
+        this.host = host;
+        this.port = port;
+        this.poolConfig = poolConfig;
+        this.pool.set(createPool());
+    }
+
+    /**
+     * @return "host" or "host:port", used to identify the node in logs, stats and the hash ring
+     */
+    @Override
+    public String getName() {
+        return port == null ? host : host + ":" + port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public JedisPool getPool() {
+        return pool.get();
+    }
+
+    public void setPool(JedisPool pool) {
+        this.pool.set(pool);
+    }
+
+    /**
+     * Replaces a pool that has been closed with a new one. Only the first of several threads that observed
+     * the same closed pool installs a replacement; the others pick it up.
+     *
+     * @return the pool to use from now on
+     */
+    JedisPool replaceClosedPool(JedisPool closed) throws ServiceException {
+        JedisPool current = pool.get();
+        if (current != closed || !closed.isClosed()) {
+            return current;
+        }
+        JedisPool replacement = createPool();
+        if (pool.compareAndSet(closed, replacement)) {
+            poolRebuilds.incrementAndGet();
+            return replacement;
+        }
+        replacement.destroy();
+        return pool.get();
+    }
+
+    /**
+     * @return a new connection pool to this node
+     */
+    JedisPool createPool() throws ServiceException {
+        return new SSDBJedisPool(poolConfig, host, port != null ? port : Protocol.DEFAULT_PORT,
+                SSDBConfig.getInt(SSDBConfig.CONNECT_TIMEOUT_MS, Protocol.DEFAULT_TIMEOUT),
+                SSDBConfig.getInt(SSDBConfig.SOCKET_TIMEOUT_MS, Protocol.DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * Opens connections until the pool holds at least count idle ones, so that the first requests
+     * after startup do not pay for connecting
+     */
+    public void warmUp(int count) {
+        JedisPool current = getPool();
+        if (count <= 0 || !(current instanceof SSDBJedisPool)) {
+            return;
+        }
+        try {
+            int opened = ((SSDBJedisPool) current).warmUp(count);
+            ZimbraLog.extensions.debug("opened %d connections to SSDB node %s", opened, getName());
+        } catch (Exception e) {
+            ZimbraLog.extensions.warn("could not open connections to SSDB node %s", getName(), e);
+        }
+    }
+
+    /**
+     * @return the circuit breaker guarding calls to this node; it never opens unless one has been configured
+     */
+    public SSDBCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(SSDBCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the client multiplexing calls over shared connections, or null if calls use the pool
+     */
+    public SSDBMultiplexedClient getMultiplexedClient() {
+        return multiplexedClient;
+    }
+
+    public void setMultiplexedClient(SSDBMultiplexedClient multiplexedClient) {
+        this.multiplexedClient = multiplexedClient;
+    }
+
+    /**
+     * Bounds the number of calls to this node that may hold a connection at the same time,
+     * independently of the number of calling threads
+     *
+     * @param maxConcurrentCalls maximum number of concurrent calls; 0 removes the bound
+     */
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        callPermits = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls, true) : null;
+    }
+
+    /**
+     * Waits up to waitMillis for a call permit; a no-op if concurrent calls are not bounded
+     *
+     * @return the semaphore to release the permit to after the call, or null
+     */
+    Semaphore acquireCallPermit(long waitMillis) throws ServiceException {
+        Semaphore permits = callPermits;
+        if (permits == null) {
+            return null;
+        }
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw ServiceException.FAILURE(String.format("timed out after %d ms waiting to call SSDB node %s", waitMillis, getName()), null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED(String.format("interrupted while waiting to call SSDB node %s", getName()));
+        }
+        return permits;
+    }
+
+    void recordOperation() {
+        operations.incrementAndGet();
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Folds the duration of a successful call into the exponentially weighted moving average latency
+     */
+    void recordLatency(long nanos) {
+        long current = latencyNanos;
+        latencyNanos = current == 0L ? nanos : (current * 4 + nanos) / 5;
+    }
+
+    /**
+     * Folds the round-trip time of a ping into the exponentially weighted moving average ping time
+     */
+    void recordPingLatency(long nanos) {
+        long current = pingNanos;
+        // a measurement of 0 would read as unmeasured
+        pingNanos = Math.max(1L, current == 0L ? nanos : (current * 4 + nanos) / 5);
+    }
+
+    /**
+     * @return number of store operations routed to this node
+     */
+    @Override
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    /**
+     * @return number of failed SSDB calls made to this node
+     */
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return number of times a failed call to this node was retried
+     */
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of times a closed connection pool of this node was replaced
+     */
+    @Override
+    public long getPoolRebuildCount() {
+        return poolRebuilds.get();
+    }
+
+    /**
+     * @return moving average latency of calls to this node in nanoseconds, or 0 if no call has been measured yet
+     */
+    @Override
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return moving average round-trip time of pings to this node in nanoseconds, or 0 if it has not been pinged yet
+     */
+    @Override
+    public long getPingLatencyNanos() {
+        return pingNanos;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return getPool().getNumActive();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return getPool().getNumIdle();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        return getPool().getNumWaiters();
+    }
+
+    @Override
+    public long getMeanBorrowWaitMillis() {
+        return getPool().getMeanBorrowWaitTimeMillis();
+    }
+
+    @Override
+    public long getMaxBorrowWaitMillis() {
+        return getPool().getMaxBorrowWaitTimeMillis();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreaker.getState().name();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
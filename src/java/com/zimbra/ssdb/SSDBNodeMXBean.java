@@ -0,0 +1,41 @@
+package com.zimbra.ssdb;
+
+/**
+ *
+ * SSDBNodeMXBean exposes the call statistics and connection pool gauges of one SSDB node over JMX.
+ *
+ */
+public interface SSDBNodeMXBean {
+
+    String getName();
+
+    long getOperationCount();
+
+    long getErrorCount();
+
+    long getRetryCount();
+
+    long getPoolRebuildCount();
+
+    long getLatencyNanos();
+
+    long getPingLatencyNanos();
+
+    /** @return number of connections currently borrowed from the pool */
+    int getActiveConnections();
+
+    /** @return number of idle connections in the pool */
+    int getIdleConnections();
+
+    /** @return number of threads waiting to borrow a connection */
+    int getWaitingThreads();
+
+    /** @return mean time in milliseconds that recent borrowers waited for a connection */
+    long getMeanBorrowWaitMillis();
+
+    /** @return maximum time in milliseconds that a borrower waited for a connection */
+    long getMaxBorrowWaitMillis();
+
+    /** @return CLOSED, OPEN or HALF_OPEN */
+    String getCircuitBreakerState();
+}
@@ -0,0 +1,549 @@
+package com.zimbra.ssdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ *
+ * SSDBOffHeapTable is a string to string hash table that keeps its keys and values in direct buffers
+ * outside of the Java heap, so that millions of tokens cost the heap little more than the index.
+ *
+ * Every entry is one record in a chunk handed out by an {@link SSDBSlabAllocator}:
+ *
+ *   expiration (8 bytes) | write sequence (8 bytes) | key length (4 bytes) | value length (4 bytes) | UTF-8 key | UTF-8 value
+ *
+ * A record that is replaced by one of the same size class is overwritten in its chunk. The key
+ * length of a freed chunk is set to -1.
+ *
+ * The index is split into segments, each an open-addressing table of 64-bit key hashes and chunk
+ * references guarded by a read-write lock, so lookups of different keys rarely contend and never
+ * allocate on the heap beyond the returned value. Entries with an expiration are also put on an
+ * {@link SSDBExpiryWheel}; {@link #expire(long)} removes them once they have expired, and lookups
+ * never return an expired entry in the meantime.
+ *
+ * The records take at most maxBytes; writes that would exceed it, or that find no chunk left in
+ * the slabs, are refused. If a {@link Journal} is set, every change is reported to it while the
+ * changed key is locked, so the journal sees the changes of each key in the order they were made.
+ * {@link #removePrefix(String)} locks one segment at a time; every write is numbered in the order it
+ * reaches the journal, so that the removal skips the entries written after its journal entry.
+ *
+ */
+public class SSDBOffHeapTable {
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EXPIRES_OFFSET = 0;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 16;
+    private static final int VALUE_LENGTH_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+    private static final long NONE = SSDBSlabAllocator.NONE;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /**
+     * Receives the changes made to the table
+     */
+    public interface Journal {
+        void set(String key, String value, long expires) throws IOException;
+        void delete(String key) throws IOException;
+        void deletePrefix(String prefix) throws IOException;
+    }
+
+    /**
+     * Receives the unexpired entries of the table
+     */
+    public interface Visitor {
+        void visit(String key, String value, long expires) throws IOException;
+    }
+
+    private final Segment[] segments;
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong writeSequence = new AtomicLong();
+    /** shared by writes while they number and journal themselves, exclusive while a prefix removal does */
+    private final ReentrantReadWriteLock journalOrder = new ReentrantReadWriteLock();
+    private final SSDBSlabAllocator slabs;
+    private final SSDBExpiryWheel<Long> wheel;
+    private volatile Journal journal;
+
+    /**
+     * @param maxBytes maximum size of all records in bytes
+     * @param tickMillis resolution of expiration in milliseconds
+     */
+    public SSDBOffHeapTable(long maxBytes, long tickMillis) {
+        this.maxBytes = maxBytes;
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+        this.slabs = new SSDBSlabAllocator(maxBytes);
+        this.wheel = new SSDBExpiryWheel<Long>(tickMillis, System.currentTimeMillis());
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the value of the key, or null if the key is absent or expired
+     */
+    public String get(String key, long now) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(rawKey);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int i = segment.find(rawKey, hash);
+            if (i < 0) {
+                return null;
+            }
+            long ref = segment.refs[i];
+            if (isExpired(ref, now)) {
+                return null;
+            }
+            return readValue(ref);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the expiration of the key in milliseconds, 0 if it does not expire, or -1 if the key is absent or expired
+     */
+    public long getExpires(String key, long now) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(rawKey);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int i = segment.find(rawKey, hash);
+            if (i < 0 || isExpired(segment.refs[i], now)) {
+                return -1L;
+            }
+            return expires(segment.refs[i]);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the value of the key
+     *
+     * @param expires absolute expiration in milliseconds, or 0 if the value does not expire
+     * @return false if there is not enough memory left for the entry
+     */
+    public boolean put(String key, String value, long expires) throws IOException {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = value.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + rawKey.length + rawValue.length;
+        long hash = hash(rawKey);
+        Segment segment = segmentFor(hash);
+        long ref;
+        segment.lock.writeLock().lock();
+        try {
+            int i = segment.find(rawKey, hash);
+            long oldRef = i < 0 ? NONE : segment.refs[i];
+            // the record being replaced gives its bytes back
+            int growth = oldRef == NONE ? size : size - recordSize(oldRef);
+            if (usedBytes.addAndGet(growth) > maxBytes) {
+                usedBytes.addAndGet(-growth);
+                return false;
+            }
+            boolean inPlace = oldRef != NONE && slabs.fits(oldRef, size);
+            ref = inPlace ? oldRef : slabs.allocate(size);
+            if (ref == NONE) {
+                usedBytes.addAndGet(-growth);
+                return false;
+            }
+            long sequence;
+            journalOrder.readLock().lock();
+            try {
+                sequence = writeSequence.incrementAndGet();
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.set(key, value, expires);
+                }
+            } catch (IOException e) {
+                usedBytes.addAndGet(-growth);
+                if (!inPlace) {
+                    slabs.free(ref);
+                }
+                throw e;
+            } finally {
+                journalOrder.readLock().unlock();
+            }
+            writeRecord(ref, rawKey, rawValue, expires, sequence);
+            if (i < 0) {
+                segment.insert(hash, ref);
+            } else if (!inPlace) {
+                segment.refs[i] = ref;
+                freeChunk(oldRef);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+        if (expires > 0L) {
+            wheel.schedule(ref, expires);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    public boolean remove(String key) throws IOException {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(rawKey);
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.delete(key);
+            }
+            int i = segment.find(rawKey, hash);
+            if (i < 0) {
+                return false;
+            }
+            segment.removeAt(i);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every key that starts with the prefix. This visits the whole table, one segment at a time,
+     * so lookups and writes of other segments go on meanwhile. Entries written after the journal entry
+     * of the removal are kept, as replaying the journal would keep them.
+     *
+     * @return the number of keys removed
+     */
+    public int removePrefix(String prefix) throws IOException {
+        long sequence;
+        journalOrder.writeLock().lock();
+        try {
+            sequence = writeSequence.incrementAndGet();
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.deletePrefix(prefix);
+            }
+        } finally {
+            journalOrder.writeLock().unlock();
+        }
+        byte[] rawPrefix = prefix.getBytes(StandardCharsets.UTF_8);
+        int removed = 0;
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                int i = 0;
+                while (i < segment.refs.length) {
+                    long ref = segment.refs[i];
+                    if (segment.hashes[i] != 0L && sequence(ref) < sequence && keyStartsWith(ref, rawPrefix)) {
+                        // an entry further along may have moved into slot i, look at it again
+                        segment.removeAt(i);
+                        removed++;
+                    } else {
+                        i++;
+                    }
+                }
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the entries whose expiration is at or before now
+     *
+     * @return the number of entries removed
+     */
+    public int expire(long now) {
+        int[] removed = { 0 };
+        wheel.advance(now, ref -> {
+            if (removeExpired(ref, now)) {
+                removed[0]++;
+            }
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes the record if it is still the record of its key and has expired. The chunk may have been
+     * freed, reused or overwritten in place since it was scheduled, so it is read before its key is
+     * locked only to find that key, and checked again under the lock.
+     */
+    private boolean removeExpired(long ref, long now) {
+        int keyLength = slabs.slab(ref).getInt(SSDBSlabAllocator.offset(ref) + KEY_LENGTH_OFFSET);
+        if (keyLength < 0 || keyLength > slabs.chunkSize(ref) - HEADER_SIZE) {
+            return false;
+        }
+        byte[] rawKey = readKey(ref, keyLength);
+        long hash = hash(rawKey);
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int i = segment.find(rawKey, hash);
+            if (i < 0 || segment.refs[i] != ref || !isExpired(ref, now)) {
+                return false;
+            }
+            segment.removeAt(i);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every unexpired entry; each segment is locked while it is visited
+     */
+    public void forEach(long now, Visitor visitor) throws IOException {
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                for (int i = 0; i < segment.refs.length; i++) {
+                    long ref = segment.refs[i];
+                    if (segment.hashes[i] != 0L && !isExpired(ref, now)) {
+                        visitor.visit(new String(readKey(ref, keyLength(ref)), StandardCharsets.UTF_8), readValue(ref),
+                                expires(ref));
+                    }
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries, including expired entries that have not been removed yet
+     */
+    public long size() {
+        long size = 0L;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes used by the records; the slabs holding them take somewhat more
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the number of bytes of direct memory taken by the slabs
+     */
+    public long getSlabBytes() {
+        return (long) slabs.getSlabCount() * slabs.getSlabSize();
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * @return a non-zero hash of the key; 0 marks an empty slot
+     */
+    private static long hash(byte[] rawKey) {
+        long hash = HASH.hashBytes(rawKey).asLong();
+        return hash == 0L ? 1L : hash;
+    }
+
+    private void writeRecord(long ref, byte[] rawKey, byte[] rawValue, long expires, long sequence) {
+        ByteBuffer writer = slabs.slab(ref).duplicate();
+        writer.position(SSDBSlabAllocator.offset(ref));
+        writer.putLong(expires);
+        writer.putLong(sequence);
+        writer.putInt(rawKey.length);
+        writer.putInt(rawValue.length);
+        writer.put(rawKey);
+        writer.put(rawValue);
+    }
+
+    private void freeRecord(long ref) {
+        usedBytes.addAndGet(-recordSize(ref));
+        freeChunk(ref);
+    }
+
+    private void freeChunk(long ref) {
+        slabs.slab(ref).putInt(SSDBSlabAllocator.offset(ref) + KEY_LENGTH_OFFSET, -1);
+        slabs.free(ref);
+    }
+
+    private long expires(long ref) {
+        return slabs.slab(ref).getLong(SSDBSlabAllocator.offset(ref) + EXPIRES_OFFSET);
+    }
+
+    private long sequence(long ref) {
+        return slabs.slab(ref).getLong(SSDBSlabAllocator.offset(ref) + SEQUENCE_OFFSET);
+    }
+
+    private int keyLength(long ref) {
+        return slabs.slab(ref).getInt(SSDBSlabAllocator.offset(ref) + KEY_LENGTH_OFFSET);
+    }
+
+    private int valueLength(long ref) {
+        return slabs.slab(ref).getInt(SSDBSlabAllocator.offset(ref) + VALUE_LENGTH_OFFSET);
+    }
+
+    private int recordSize(long ref) {
+        return HEADER_SIZE + keyLength(ref) + valueLength(ref);
+    }
+
+    private boolean isExpired(long ref, long now) {
+        long expires = expires(ref);
+        return expires > 0L && expires <= now;
+    }
+
+    private boolean keyEquals(long ref, byte[] rawKey) {
+        if (keyLength(ref) != rawKey.length) {
+            return false;
+        }
+        return keyStartsWith(ref, rawKey);
+    }
+
+    private boolean keyStartsWith(long ref, byte[] rawPrefix) {
+        if (keyLength(ref) < rawPrefix.length) {
+            return false;
+        }
+        ByteBuffer slab = slabs.slab(ref);
+        int offset = SSDBSlabAllocator.offset(ref) + HEADER_SIZE;
+        for (int i = 0; i < rawPrefix.length; i++) {
+            if (slab.get(offset + i) != rawPrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readKey(long ref, int keyLength) {
+        byte[] rawKey = new byte[keyLength];
+        ByteBuffer reader = slabs.slab(ref).duplicate();
+        reader.position(SSDBSlabAllocator.offset(ref) + HEADER_SIZE);
+        reader.get(rawKey);
+        return rawKey;
+    }
+
+    private String readValue(long ref) {
+        byte[] rawValue = new byte[valueLength(ref)];
+        ByteBuffer reader = slabs.slab(ref).duplicate();
+        reader.position(SSDBSlabAllocator.offset(ref) + HEADER_SIZE + keyLength(ref));
+        reader.get(rawValue);
+        return new String(rawValue, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One open-addressing table with linear probing; the caller holds the lock
+     */
+    private final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long[] hashes = new long[INITIAL_CAPACITY];
+        long[] refs = new long[INITIAL_CAPACITY];
+        int size = 0;
+
+        /**
+         * @return the slot of the key, or -1 if it is absent
+         */
+        int find(byte[] rawKey, long hash) {
+            int mask = hashes.length - 1;
+            for (int i = (int) hash & mask; hashes[i] != 0L; i = (i + 1) & mask) {
+                if (hashes[i] == hash && keyEquals(refs[i], rawKey)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a key that {@link #find(byte[], long)} did not find
+         */
+        void insert(long hash, long ref) {
+            int mask = hashes.length - 1;
+            int i = (int) hash & mask;
+            while (hashes[i] != 0L) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            refs[i] = ref;
+            size++;
+            if (size * 4 > hashes.length * 3) {
+                resize(hashes.length * 2);
+            }
+        }
+
+        /**
+         * Empties slot i and moves later entries of the same probe run back, so that lookups
+         * need no tombstones
+         */
+        void removeAt(int i) {
+            freeRecord(refs[i]);
+            hashes[i] = 0L;
+            size--;
+            int mask = hashes.length - 1;
+            for (int j = (i + 1) & mask; hashes[j] != 0L; j = (j + 1) & mask) {
+                int home = (int) hashes[j] & mask;
+                // the entry at j may fill the hole unless its home slot lies cyclically in (i, j]
+                boolean homeBetween = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!homeBetween) {
+                    hashes[i] = hashes[j];
+                    refs[i] = refs[j];
+                    hashes[j] = 0L;
+                    i = j;
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldHashes = hashes;
+            long[] oldRefs = refs;
+            hashes = new long[capacity];
+            refs = new long[capacity];
+            int mask = capacity - 1;
+            for (int k = 0; k < oldHashes.length; k++) {
+                if (oldHashes[k] != 0L) {
+                    int i = (int) oldHashes[k] & mask;
+                    while (hashes[i] != 0L) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[k];
+                    refs[i] = oldRefs[k];
+                }
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0L) {
+                    freeRecord(refs[i]);
+                }
+            }
+            hashes = new long[INITIAL_CAPACITY];
+            refs = new long[INITIAL_CAPACITY];
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.zimbra.ssdb;
+
+/**
+ *
+ * SSDBOperation names the store operations that {@link SSDBMetrics} keeps statistics for.
+ *
+ */
+public enum SSDBOperation {
+    GET("get"),
+    HAS("has"),
+    SET("set"),
+    UPDATE("update"),
+    DELETE("delete"),
+    DELETE_DATA("deleteData"),
+    GET_ALL("getAll");
+
+    private final String name;
+
+    private SSDBOperation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the store method, used as the JMX name of the operation's statistics
+     */
+    public String getName() {
+        return name;
+    }
+}
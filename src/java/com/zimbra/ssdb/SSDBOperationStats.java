@@ -0,0 +1,114 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * SSDBOperationStats counts the calls of one store operation and records their latency
+ * in a fixed histogram of power-of-two microsecond buckets.
+ *
+ * Recording a call only updates striped counters, so it does not contend between threads
+ * and allocates nothing. Percentiles are approximate: they report the upper bound of the bucket.
+ *
+ */
+public class SSDBOperationStats implements SSDBOperationStatsMXBean {
+    static final int BUCKETS = 32;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+    private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+    public SSDBOperationStats() {
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos duration of the call
+     * @param failed true if the call threw an exception
+     */
+    public void record(long nanos, boolean failed) {
+        count.increment();
+        if (failed) {
+            errors.increment();
+        }
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        histogram[bucket(TimeUnit.NANOSECONDS.toMicros(nanos))].increment();
+    }
+
+    static int bucket(long micros) {
+        if (micros <= 0L) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long n = count.sum();
+        return n == 0L ? 0.0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+    }
+
+    @Override
+    public long getMedianLatencyMicros() {
+        return getPercentileMicros(0.5);
+    }
+
+    @Override
+    public long get99thPercentileLatencyMicros() {
+        return getPercentileMicros(0.99);
+    }
+
+    /**
+     * @return upper bound in microseconds of the bucket holding the given quantile, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double quantile) {
+        long[] buckets = getLatencyHistogram();
+        long total = 0L;
+        for (long n : buckets) {
+            total += n;
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histogram[i].sum();
+        }
+        return buckets;
+    }
+}
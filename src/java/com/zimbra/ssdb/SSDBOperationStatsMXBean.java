@@ -0,0 +1,27 @@
+package com.zimbra.ssdb;
+
+/**
+ *
+ * SSDBOperationStatsMXBean exposes the call count, error count and latency distribution of one store operation over JMX.
+ *
+ */
+public interface SSDBOperationStatsMXBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getMeanLatencyMicros();
+
+    long getMaxLatencyMicros();
+
+    long getMedianLatencyMicros();
+
+    long get99thPercentileLatencyMicros();
+
+    /**
+     * @return number of calls per latency bucket; bucket 0 counts calls under 1 microsecond
+     * and bucket i counts calls that took at least 2^(i-1) and less than 2^i microseconds
+     */
+    long[] getLatencyHistogram();
+}
@@ -0,0 +1,119 @@
+package com.zimbra.ssdb;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import redis.clients.jedis.JedisPool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBPoolSizer periodically resizes the connection pools of SSDB nodes from their observed load.
+ *
+ * A pool shrinks by a tenth when more than half of it is idle, and otherwise grows by a quarter when threads
+ * are waiting for a connection, or when all of its connections are in use and the mean borrow wait reached
+ * waitThresholdMillis. The mean borrow wait is a rolling mean over the last borrows that does not decay
+ * while the pool is idle, so it alone never grows a pool.
+ *
+ * The size stays between minSize and maxSize. Unless minSize is set, a pool never shrinks below the size
+ * it was configured with, so the sizer only adds to the size chosen by the administrator and gives it back;
+ * unless maxSize is set, it grows up to {@link #DEFAULT_MAX_SIZE} or its configured size if larger.
+ * Pools with an unbounded size are left alone.
+ *
+ */
+public class SSDBPoolSizer {
+
+    /** largest size a pool grows to if ssdb_pool_tune_max_size is not set */
+    static final int DEFAULT_MAX_SIZE = 128;
+
+    private final Supplier<List<SSDBNode>> nodes;
+    private final int minSize;
+    private final int maxSize;
+    private final long waitThresholdMillis;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param minSize smallest size of a pool, or 0 for the size it was configured with
+     * @param maxSize largest size of a pool, or 0 for {@link #DEFAULT_MAX_SIZE} or the configured size if larger
+     */
+    public SSDBPoolSizer(Supplier<List<SSDBNode>> nodes, int minSize, int maxSize, long waitThresholdMillis, long intervalMillis) {
+        this.nodes = nodes;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.waitThresholdMillis = waitThresholdMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBPoolSizer-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resize();
+                } catch (RuntimeException e) {
+                    ZimbraLog.extensions.warn("could not resize SSDB connection pools", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a pool sizer configured from localconfig, or null if pool sizing is disabled
+     */
+    static SSDBPoolSizer fromConfig(Supplier<List<SSDBNode>> nodes) {
+        long interval = SSDBConfig.getLong(SSDBConfig.POOL_TUNE_INTERVAL_MS, 0L);
+        if (interval <= 0L) {
+            return null;
+        }
+        // unset bounds leave the configured pool size in charge
+        int minSize = Math.max(0, SSDBConfig.getInt(SSDBConfig.POOL_TUNE_MIN_SIZE, 0));
+        int maxSize = Math.max(0, SSDBConfig.getInt(SSDBConfig.POOL_TUNE_MAX_SIZE, 0));
+        long waitThreshold = SSDBConfig.getLong(SSDBConfig.POOL_TUNE_WAIT_MS, 5L);
+        return new SSDBPoolSizer(nodes, minSize, maxSize, waitThreshold, interval);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    void resize() {
+        for (SSDBNode node : nodes.get()) {
+            JedisPool pool = node.getPool();
+            if (!(pool instanceof SSDBJedisPool) || pool.isClosed()) {
+                continue;
+            }
+            SSDBJedisPool sized = (SSDBJedisPool) pool;
+            int maxTotal = sized.getMaxTotal();
+            if (maxTotal < 0) {
+                continue;
+            }
+            int newMaxTotal = newMaxTotal(sized.getConfiguredMaxTotal(), maxTotal, pool.getNumActive(), pool.getNumIdle(),
+                    pool.getNumWaiters(), pool.getMeanBorrowWaitTimeMillis());
+            if (newMaxTotal != maxTotal) {
+                ZimbraLog.extensions.info("resizing connection pool of SSDB node %s from %d to %d", node.getName(), maxTotal, newMaxTotal);
+                sized.setMaxTotal(newMaxTotal);
+            }
+        }
+    }
+
+    /**
+     * @param configuredMaxTotal the size the pool was created with
+     * @return the pool size to use for the observed load
+     */
+    int newMaxTotal(int configuredMaxTotal, int maxTotal, int active, int idle, int waiters, long meanBorrowWaitMillis) {
+        int size;
+        if (waiters == 0 && idle > maxTotal / 2 && active < maxTotal / 2) {
+            size = Math.min(maxTotal - 1, maxTotal - maxTotal / 10);
+        } else if (waiters > 0 || (active >= maxTotal && meanBorrowWaitMillis >= waitThresholdMillis)) {
+            size = Math.max(maxTotal + 1, maxTotal + maxTotal / 4);
+        } else {
+            size = maxTotal;
+        }
+        int floor = minSize > 0 ? minSize : Math.max(1, configuredMaxTotal);
+        int ceiling = Math.max(floor, maxSize > 0 ? maxSize : Math.max(DEFAULT_MAX_SIZE, configuredMaxTotal));
+        return Math.max(floor, Math.min(ceiling, size));
+    }
+}
@@ -0,0 +1,30 @@
+package com.zimbra.ssdb;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBReadPolicy decides which node of a shard serves reads.
+ *
+ */
+public enum SSDBReadPolicy {
+    /** all reads go to the master */
+    PRIMARY,
+    /** reads are spread round-robin over the replicas, the master is used only if there are none */
+    REPLICA_PREFERRED,
+    /** reads go to the node with the lowest ping time, master included; every node is pinged every ssdb_latency_probe_ms */
+    NEAREST;
+
+    /**
+     * @return the policy named by localconfig key ssdb_read_policy, e.g. "replica-preferred"
+     */
+    static SSDBReadPolicy fromConfig() {
+        String name = SSDBConfig.getString(SSDBConfig.READ_POLICY, PRIMARY.name());
+        try {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            ZimbraLog.extensions.warn("unknown SSDB read policy '%s', using %s", name, PRIMARY);
+            return PRIMARY;
+        }
+    }
+}
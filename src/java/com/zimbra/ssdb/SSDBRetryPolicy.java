@@ -0,0 +1,60 @@
+package com.zimbra.ssdb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ *
+ * SSDBRetryPolicy decides whether a failed SSDB call is retried and how long to wait before the next attempt.
+ *
+ * Only connection errors are retried. Command errors, such as a wrong type or a malformed request,
+ * would fail again in the same way. The wait doubles with every attempt up to maxBackoffMillis,
+ * and a random jitter of up to half the wait keeps threads that failed together from retrying together.
+ *
+ */
+public class SSDBRetryPolicy {
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * @param maxAttempts total number of attempts, including the first one
+     */
+    public SSDBRetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffMillis = Math.max(0L, baseBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+    }
+
+    static SSDBRetryPolicy fromConfig() {
+        return new SSDBRetryPolicy(SSDBConfig.getInt(SSDBConfig.RETRY_MAX_ATTEMPTS, 2),
+                SSDBConfig.getLong(SSDBConfig.RETRY_BACKOFF_MS, 10L),
+                SSDBConfig.getLong(SSDBConfig.RETRY_MAX_BACKOFF_MS, 200L));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return true if a call that failed with e on the given attempt (starting at 1) should be attempted again
+     */
+    public boolean shouldRetry(JedisException e, int attempt) {
+        return attempt < maxAttempts && e instanceof JedisConnectionException;
+    }
+
+    /**
+     * @return number of milliseconds to wait after the given failed attempt (starting at 1)
+     */
+    public long getBackoffMillis(int attempt) {
+        if (baseBackoffMillis == 0L) {
+            return 0L;
+        }
+        long backoff = baseBackoffMillis << Math.min(attempt - 1, 20);
+        backoff = Math.min(backoff, maxBackoffMillis);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+}
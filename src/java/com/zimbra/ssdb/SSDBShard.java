@@ -0,0 +1,64 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ *
+ * SSDBShard is one partition of a (possibly sharded) SSDB backend. The shard itself is the SSDB master
+ * that receives all writes; it may additionally have read replicas that are kept up to date by
+ * SSDB's master-slave replication.
+ *
+ */
+public class SSDBShard extends SSDBNode {
+    private final List<SSDBNode> replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public SSDBShard(String host, Integer port, GenericObjectPoolConfig poolConfig) throws ServiceException {
+        this(host, port, poolConfig, Collections.<SSDBNode>emptyList());
+    }
+
+    public SSDBShard(String host, Integer port, GenericObjectPoolConfig poolConfig, List<SSDBNode> replicas) throws ServiceException {
+        super(host, port, poolConfig);
+        this.replicas = Collections.unmodifiableList(new ArrayList<SSDBNode>(replicas));
+    }
+
+    public List<SSDBNode> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the node that should serve a read under the given policy
+     */
+    public SSDBNode getReadNode(SSDBReadPolicy policy) {
+        if (replicas.isEmpty()) {
+            return this;
+        }
+        switch (policy) {
+        case REPLICA_PREFERRED:
+            return replicas.get(Math.abs(nextReplica.getAndIncrement() % replicas.size()));
+        case NEAREST:
+            // ping times, since call latencies would also count the master's writes;
+            // nodes not pinged yet are not chosen, the master serves reads until a node is measured
+            SSDBNode nearest = this;
+            long nearestNanos = getPingLatencyNanos();
+            for (SSDBNode replica : replicas) {
+                long nanos = replica.getPingLatencyNanos();
+                if (nanos > 0L && (nearestNanos == 0L || nanos < nearestNanos)) {
+                    nearest = replica;
+                    nearestNanos = nanos;
+                }
+            }
+            return nearest;
+        case PRIMARY:
+        default:
+            return this;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.zimbra.ssdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ *
+ * SSDBShardRing distributes encoded keys over SSDB shards with consistent hashing.
+ *
+ * Keys are routed by their "entry type|entry ID" prefix, so that all ephemeral attributes of an account
+ * live on the same shard. Each shard is placed on the ring at VIRTUAL_NODES points, so adding or removing
+ * a shard only moves about 1/N of the entries.
+ *
+ */
+public class SSDBShardRing {
+    static final int VIRTUAL_NODES = 160;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final List<SSDBShard> shards;
+    private final TreeMap<Long, SSDBShard> ring = new TreeMap<Long, SSDBShard>();
+
+    public SSDBShardRing(List<SSDBShard> shards) {
+        this.shards = Collections.unmodifiableList(new ArrayList<SSDBShard>(shards));
+        for (SSDBShard shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(shard.getName() + "#" + i), shard);
+            }
+        }
+    }
+
+    public List<SSDBShard> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param encodedKey an encoded key or location prefix as produced by {@link SSDBKeyEncoder}
+     * @return the shard that stores the key
+     */
+    public SSDBShard getShard(String encodedKey) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        Map.Entry<Long, SSDBShard> entry = ring.ceilingEntry(hash(getRoutingKey(encodedKey)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return the "entry type|entry ID" part of the encoded key, or the whole key if it has no such prefix
+     */
+    static String getRoutingKey(String encodedKey) {
+        int first = encodedKey.indexOf('|');
+        if (first < 0) {
+            return encodedKey;
+        }
+        int second = encodedKey.indexOf('|', first + 1);
+        return second < 0 ? encodedKey : encodedKey.substring(0, second);
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,151 @@
+package com.zimbra.ssdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.primitives.Ints;
+
+/**
+ *
+ * SSDBSlabAllocator hands out chunks of a few large direct buffers (slabs), so that storing an entry
+ * off the heap does not cost a direct buffer, with its cleaner and its system call, of its own.
+ *
+ * Chunks come in size classes roughly a quarter apart, from 32 bytes up to the slab size. A slab is
+ * carved into chunks of one class when that class runs out; freed chunks go back to their class and
+ * are handed out again before a new slab is carved, so a slab never changes class. A chunk is named
+ * by a reference holding its slab's index in the upper and its offset in the lower 32 bits.
+ *
+ * The slabs take at most about a quarter more than maxBytes, plus one slab per size class, so that
+ * chunks rounded up to their class and partly used slabs still fit.
+ *
+ */
+public class SSDBSlabAllocator {
+    /** returned by {@link #allocate(int)} when there is no room */
+    public static final long NONE = -1L;
+    private static final int MAX_SLAB_SIZE = 256 * 1024;
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final int[] CHUNK_SIZES;
+
+    static {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int size = MIN_CHUNK_SIZE; size < MAX_SLAB_SIZE; size = (size + size / 4 + 7) & ~7) {
+            sizes.add(size);
+        }
+        sizes.add(MAX_SLAB_SIZE);
+        CHUNK_SIZES = Ints.toArray(sizes);
+    }
+
+    private final int slabSize;
+    /** published after slabClasses is set, so that a slab read from here has its class visible */
+    private final AtomicReferenceArray<ByteBuffer> slabs;
+    private final int[] slabClasses;
+    /** first free chunk of each class, chained through the first 8 bytes of each free chunk; guarded by this */
+    private final long[] freeChunks = new long[CHUNK_SIZES.length];
+    private int slabCount = 0;
+
+    /**
+     * @param maxBytes number of bytes the chunks handed out should be able to hold in total
+     */
+    public SSDBSlabAllocator(long maxBytes) {
+        // a small allocator gets slabs just large enough for the largest chunk it can hand out
+        this.slabSize = CHUNK_SIZES[classOf((int) Math.max(1L, Math.min(maxBytes, MAX_SLAB_SIZE)))];
+        long slabBytes = maxBytes + maxBytes / 4;
+        long maxSlabs = (slabBytes + slabSize - 1) / slabSize + CHUNK_SIZES.length;
+        this.slabs = new AtomicReferenceArray<ByteBuffer>((int) Math.min(maxSlabs, Integer.MAX_VALUE - 8));
+        this.slabClasses = new int[slabs.length()];
+        Arrays.fill(freeChunks, NONE);
+    }
+
+    /**
+     * @return the smallest class whose chunks hold size bytes
+     */
+    private static int classOf(int size) {
+        int i = Arrays.binarySearch(CHUNK_SIZES, size);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * @return a chunk of at least size bytes, or {@link #NONE} if no slab is left for its class
+     */
+    public synchronized long allocate(int size) {
+        if (size > slabSize) {
+            return NONE;
+        }
+        int sizeClass = classOf(size);
+        if (freeChunks[sizeClass] == NONE && !addSlab(sizeClass)) {
+            return NONE;
+        }
+        long ref = freeChunks[sizeClass];
+        freeChunks[sizeClass] = slab(ref).getLong(offset(ref));
+        return ref;
+    }
+
+    private boolean addSlab(int sizeClass) {
+        if (slabCount == slabs.length()) {
+            return false;
+        }
+        int index = slabCount++;
+        int chunkSize = CHUNK_SIZES[sizeClass];
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        // chained back to front, so that the chunks are handed out in address order
+        long next = NONE;
+        for (int offset = (slabSize / chunkSize - 1) * chunkSize; offset >= 0; offset -= chunkSize) {
+            slab.putLong(offset, next);
+            next = ((long) index << 32) | offset;
+        }
+        freeChunks[sizeClass] = next;
+        slabClasses[index] = sizeClass;
+        slabs.set(index, slab);
+        return true;
+    }
+
+    /**
+     * Gives the chunk back; its first 8 bytes are overwritten
+     */
+    public synchronized void free(long ref) {
+        int sizeClass = slabClasses[(int) (ref >>> 32)];
+        slab(ref).putLong(offset(ref), freeChunks[sizeClass]);
+        freeChunks[sizeClass] = ref;
+    }
+
+    /**
+     * @return the slab holding the chunk; read and write it at {@link #offset(long)} with absolute gets and puts
+     */
+    public ByteBuffer slab(long ref) {
+        return slabs.get((int) (ref >>> 32));
+    }
+
+    public static int offset(long ref) {
+        return (int) ref;
+    }
+
+    /**
+     * @return the number of bytes the chunk holds
+     */
+    public int chunkSize(long ref) {
+        ByteBuffer slab = slab(ref);
+        return slab == null ? 0 : CHUNK_SIZES[slabClasses[(int) (ref >>> 32)]];
+    }
+
+    /**
+     * @return true if {@link #allocate(int)} would hand out a chunk of the same class for size bytes,
+     *         so that the chunk can be reused in place
+     */
+    public boolean fits(long ref, int size) {
+        return size <= slabSize && classOf(size) == slabClasses[(int) (ref >>> 32)];
+    }
+
+    /**
+     * @return the number of slabs allocated so far
+     */
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+}
@@ -0,0 +1,425 @@
+package com.zimbra.ssdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBSweeper deletes values whose expiration is only encoded in the value, which SSDB does not expire
+ * by itself: values written without a time to live and, with {@link SSDBLayout#HASH}, all hash fields.
+ *
+ * It walks the keyspace of one shard master after the other in key order, batchSize keys (or hashes)
+ * at a time, never examining more than keysPerSecond keys per second. The position in each shard is
+ * saved in the shard under {@link #CURSOR_KEY}, so a restarted sweeper resumes where it stopped.
+ * After a complete pass over all shards it waits passIntervalMillis before starting the next one.
+ *
+ * Every server runs a sweeper, so a shard is only swept by the one holding its lease: the key
+ * {@link #LEASE_KEY}, taken with SETNX and given a time to live of leaseSeconds, which is renewed
+ * with every page. The others skip the shard, and take it over from the saved position once the
+ * lease has run out. The time a pass over a shard was completed is saved under {@link #PASS_KEY}, and
+ * no server starts the next pass over it before passIntervalMillis has passed, so the shard is swept
+ * once per interval however many servers there are.
+ *
+ */
+public class SSDBSweeper {
+
+    /** key of the saved position; it has no '|' so it is never mistaken for an attribute */
+    static final String CURSOR_KEY = "zimbra_ssdb_sweeper_cursor";
+    /** key of the lease on the shard, holding the name of the sweeper that took it */
+    static final String LEASE_KEY = "zimbra_ssdb_sweeper_lease";
+    /** key of the time in milliseconds at which the last pass over the shard was completed */
+    static final String PASS_KEY = "zimbra_ssdb_sweeper_pass";
+    /** delay before trying a shard again after an error */
+    private static final long ERROR_DELAY_MILLIS = 60000L;
+
+    /**
+     * The outcome of sweeping one page of keys
+     */
+    static class Page {
+        final String lastKey;
+        final int examined;
+        final int expired;
+
+        Page(String lastKey, int examined, int expired) {
+            this.lastKey = lastKey;
+            this.examined = examined;
+            this.expired = expired;
+        }
+    }
+
+    private final Supplier<List<SSDBShard>> shards;
+    private final Supplier<SSDBLayout> layout;
+    private final int batchSize;
+    private final long passIntervalMillis;
+    private final int leaseSeconds;
+    /** process name, e.g. "1234@mailbox1.example.com" */
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName();
+    private final RateLimiter rateLimiter;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong examined = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private int shardIndex = 0;
+    private String cursor = null;
+
+    public SSDBSweeper(Supplier<List<SSDBShard>> shards, Supplier<SSDBLayout> layout, double keysPerSecond, int batchSize,
+            long passIntervalMillis, int leaseSeconds) {
+        this.shards = shards;
+        this.layout = layout;
+        this.batchSize = batchSize;
+        this.passIntervalMillis = passIntervalMillis;
+        this.leaseSeconds = leaseSeconds;
+        this.rateLimiter = RateLimiter.create(keysPerSecond);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBSweeper-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return a sweeper configured from localconfig, or null if sweeping is disabled
+     */
+    static SSDBSweeper fromConfig(Supplier<List<SSDBShard>> shards, Supplier<SSDBLayout> layout) {
+        int keysPerSecond = SSDBConfig.getInt(SSDBConfig.SWEEP_KEYS_PER_SECOND, 0);
+        if (keysPerSecond <= 0) {
+            return null;
+        }
+        int batchSize = Math.max(1, SSDBConfig.getInt(SSDBConfig.SWEEP_BATCH_SIZE, 100));
+        long passInterval = SSDBConfig.getLong(SSDBConfig.SWEEP_PASS_INTERVAL_MS, 3600000L);
+        int leaseSeconds = Math.max(1, SSDBConfig.getInt(SSDBConfig.SWEEP_LEASE_SECONDS, 600));
+        return new SSDBSweeper(shards, layout, keysPerSecond, batchSize, passInterval, leaseSeconds);
+    }
+
+    public void start() {
+        schedule(0L);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of keys, or hashes with the hash layout, examined since the sweeper was created
+     */
+    public long getExaminedCount() {
+        return examined.get();
+    }
+
+    /**
+     * @return the number of expired keys and hash fields deleted since the sweeper was created
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private void schedule(long delayMillis) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long delay;
+                try {
+                    delay = sweepNextPage();
+                } catch (RuntimeException e) {
+                    ZimbraLog.extensions.warn("SSDB sweeper failed", e);
+                    delay = ERROR_DELAY_MILLIS;
+                }
+                schedule(delay);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sweeps the next page of the current shard
+     *
+     * @return the delay in milliseconds before the next page
+     */
+    long sweepNextPage() {
+        List<SSDBShard> all = shards.get();
+        if (shardIndex >= all.size()) {
+            shardIndex = 0;
+            cursor = null;
+        }
+        SSDBShard shard = all.get(shardIndex);
+        if (!shard.getCircuitBreaker().isAvailable()) {
+            return ERROR_DELAY_MILLIS;
+        }
+        rateLimiter.acquire(batchSize);
+        try (Jedis jedis = shard.getPool().getResource()) {
+            if (!takeLease(jedis)) {
+                ZimbraLog.extensions.debug("SSDB sweeper skipped node %s, which another server is sweeping", shard.getName());
+            } else if (cursor == null && !startPass(jedis)) {
+                releaseLease(jedis);
+                ZimbraLog.extensions.debug("SSDB sweeper skipped node %s, which was swept less than %d ms ago",
+                        shard.getName(), passIntervalMillis);
+            } else {
+                Page page = sweepPage(jedis, layout.get(), cursor, "", batchSize, System.currentTimeMillis());
+                examined.addAndGet(page.examined);
+                expired.addAndGet(page.expired);
+                if (page.lastKey != null && page.examined >= batchSize) {
+                    cursor = page.lastKey;
+                    jedis.set(CURSOR_KEY, cursor);
+                    return 0L;
+                }
+                jedis.set(PASS_KEY, String.valueOf(System.currentTimeMillis()));
+                jedis.del(CURSOR_KEY);
+                releaseLease(jedis);
+                ZimbraLog.extensions.debug("SSDB sweeper finished node %s", shard.getName());
+            }
+        } catch (JedisException e) {
+            ZimbraLog.extensions.warn("SSDB sweeper failed on node %s at key '%s'", shard.getName(), cursor, e);
+            return ERROR_DELAY_MILLIS;
+        }
+        cursor = null;
+        shardIndex++;
+        if (shardIndex < all.size()) {
+            return 0L;
+        }
+        ZimbraLog.extensions.info("SSDB sweeper finished a pass: %d keys examined, %d expired keys deleted so far",
+                examined.get(), expired.get());
+        return passIntervalMillis;
+    }
+
+    /**
+     * Sets the cursor to the saved position, or to the start of the shard if its last pass was completed
+     * at least passIntervalMillis ago
+     *
+     * @return false if the shard was swept too recently
+     */
+    boolean startPass(Jedis jedis) {
+        String saved = jedis.get(CURSOR_KEY);
+        if (saved == null) {
+            Long lastPass = Longs.tryParse(Strings.nullToEmpty(jedis.get(PASS_KEY)));
+            if (lastPass != null && System.currentTimeMillis() - lastPass < passIntervalMillis) {
+                return false;
+            }
+        }
+        cursor = saved != null ? saved : "";
+        return true;
+    }
+
+    /**
+     * Takes the lease on the shard, or renews it if this sweeper holds it already
+     *
+     * @return false if another sweeper holds the lease
+     */
+    boolean takeLease(Jedis jedis) {
+        if (jedis.setnx(LEASE_KEY, owner) == 1L) {
+            jedis.expire(LEASE_KEY, leaseSeconds);
+            return true;
+        }
+        String holder = jedis.get(LEASE_KEY);
+        if (owner.equals(holder)) {
+            jedis.expire(LEASE_KEY, leaseSeconds);
+            return true;
+        }
+        // a sweeper that stopped between SETNX and EXPIRE left a lease that would never run out
+        if (holder != null && jedis.ttl(LEASE_KEY) < 0L) {
+            jedis.expire(LEASE_KEY, leaseSeconds);
+        }
+        return false;
+    }
+
+    private void releaseLease(Jedis jedis) {
+        if (owner.equals(jedis.get(LEASE_KEY))) {
+            jedis.del(LEASE_KEY);
+        }
+    }
+
+    /**
+     * Lists up to limit keys, or hashes with the hash layout, in the range (start, end] and deletes
+     * the expired ones. An empty end means no upper bound.
+     */
+    static Page sweepPage(Jedis jedis, SSDBLayout layout, String start, String end, int limit, long now) {
+        if (layout == SSDBLayout.HASH) {
+            List<String> names = SSDBCommand.listCommand(jedis, SSDBCommand.HLIST, start, end, String.valueOf(limit));
+            return new Page(names.isEmpty() ? null : names.get(names.size() - 1), names.size(), deleteExpiredFields(jedis, names, now));
+        }
+        List<String> keys = SSDBCommand.listCommand(jedis, SSDBCommand.KEYS, start, end, String.valueOf(limit));
+        List<String> attributeKeys = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            if (SSDBLayoutMigrator.isAttributeKey(key)) {
+                attributeKeys.add(key);
+            }
+        }
+        return new Page(keys.isEmpty() ? null : keys.get(keys.size() - 1), keys.size(), deleteExpired(jedis, attributeKeys, now));
+    }
+
+    /**
+     * Deletes the keys whose encoded expiration is at or before now
+     *
+     * @return the number of keys deleted
+     */
+    static int deleteExpired(Jedis jedis, List<String> keys, long now) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<Response<byte[]>> values = new ArrayList<Response<byte[]>>(keys.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (String key : keys) {
+            values.add(pipeline.get(SafeEncoder.encode(key)));
+        }
+        pipeline.sync();
+        List<String> expiredKeys = new ArrayList<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = values.get(i).get();
+            if (value != null && isExpired(keys.get(i), value, now)) {
+                expiredKeys.add(keys.get(i));
+            }
+        }
+        return deleteKeysIfExpired(jedis, expiredKeys, now);
+    }
+
+    /**
+     * Deletes keys that were seen holding an expired value. Each key is read, with its time to live, and deleted
+     * in the same round trip, and a value read back that is no longer expired is put back with the time to live it had.
+     *
+     * @return the number of keys deleted
+     */
+    static int deleteKeysIfExpired(Jedis jedis, List<String> keys, long now) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<Response<byte[]>> values = new ArrayList<Response<byte[]>>(keys.size());
+        List<Response<Long>> ttls = new ArrayList<Response<Long>>(keys.size());
+        Pipeline deletes = jedis.pipelined();
+        for (String key : keys) {
+            byte[] rawKey = SafeEncoder.encode(key);
+            values.add(deletes.get(rawKey));
+            ttls.add(deletes.ttl(rawKey));
+            deletes.del(rawKey);
+        }
+        deletes.sync();
+        int count = 0;
+        Pipeline restores = null;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = values.get(i).get();
+            if (value == null) {
+                continue;
+            }
+            if (isExpired(keys.get(i), value, now)) {
+                count++;
+                continue;
+            }
+            if (restores == null) {
+                restores = jedis.pipelined();
+            }
+            Long ttl = ttls.get(i).get();
+            if (ttl != null && ttl > 0L) {
+                restores.setex(SafeEncoder.encode(keys.get(i)), ttl.intValue(), value);
+            } else {
+                restores.set(SafeEncoder.encode(keys.get(i)), value);
+            }
+        }
+        if (restores != null) {
+            restores.sync();
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the fields of the hashes whose encoded expiration is at or before now
+     *
+     * @return the number of fields deleted
+     */
+    static int deleteExpiredFields(Jedis jedis, List<String> hashNames, long now) {
+        if (hashNames.isEmpty()) {
+            return 0;
+        }
+        List<Response<Map<byte[], byte[]>>> hashes = new ArrayList<Response<Map<byte[], byte[]>>>(hashNames.size());
+        Pipeline reads = jedis.pipelined();
+        for (String hashName : hashNames) {
+            hashes.add(reads.hgetAll(SafeEncoder.encode(hashName)));
+        }
+        reads.sync();
+        List<String> expiredHashNames = new ArrayList<String>();
+        List<byte[]> expiredFields = new ArrayList<byte[]>();
+        for (int i = 0; i < hashNames.size(); i++) {
+            String hashName = hashNames.get(i);
+            for (Map.Entry<byte[], byte[]> field : hashes.get(i).get().entrySet()) {
+                String encodedKey = hashName + SSDBKeyEncoder.SEPARATOR + SafeEncoder.encode(field.getKey());
+                if (isExpired(encodedKey, field.getValue(), now)) {
+                    expiredHashNames.add(hashName);
+                    expiredFields.add(field.getKey());
+                }
+            }
+        }
+        return deleteFieldsIfExpired(jedis, expiredHashNames, expiredFields, now);
+    }
+
+    /**
+     * Deletes fields that were seen holding an expired value. SSDB has neither transactions nor a
+     * conditional delete, so each field is read and deleted in the same round trip, and a value read
+     * back that is no longer expired, because the field was rewritten since it was seen, is put back.
+     *
+     * @param hashNames the hash of each field
+     * @return the number of fields deleted
+     */
+    static int deleteFieldsIfExpired(Jedis jedis, List<String> hashNames, List<byte[]> fields, long now) {
+        if (fields.isEmpty()) {
+            return 0;
+        }
+        List<Response<byte[]>> values = new ArrayList<Response<byte[]>>(fields.size());
+        Pipeline deletes = jedis.pipelined();
+        for (int i = 0; i < fields.size(); i++) {
+            byte[] hashName = SafeEncoder.encode(hashNames.get(i));
+            values.add(deletes.hget(hashName, fields.get(i)));
+            deletes.hdel(hashName, fields.get(i));
+        }
+        deletes.sync();
+        int count = 0;
+        Pipeline restores = null;
+        for (int i = 0; i < fields.size(); i++) {
+            byte[] value = values.get(i).get();
+            if (value == null) {
+                continue;
+            }
+            String hashName = hashNames.get(i);
+            if (isExpired(hashName + SSDBKeyEncoder.SEPARATOR + SafeEncoder.encode(fields.get(i)), value, now)) {
+                count++;
+                continue;
+            }
+            if (restores == null) {
+                restores = jedis.pipelined();
+            }
+            restores.hset(SafeEncoder.encode(hashName), fields.get(i), value);
+        }
+        if (restores != null) {
+            restores.sync();
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the value's encoded expiration is at or before now; values that cannot be decoded
+     * are left alone
+     */
+    static boolean isExpired(String encodedKey, byte[] value, long now) {
+        try {
+            Long expires = SSDBValueCodec.decode(SSDBAttributeEncoder.decodeKey(encodedKey), value).getExpires();
+            return expires != null && expires > 0L && expires <= now;
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.debug("cannot decode SSDB value of key %s", encodedKey, e);
+            return false;
+        }
+    }
+}
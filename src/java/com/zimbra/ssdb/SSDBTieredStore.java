@@ -0,0 +1,336 @@
+package com.zimbra.ssdb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.ephemeral.EphemeralInput;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.EphemeralKeyValuePair;
+import com.zimbra.cs.ephemeral.EphemeralLocation;
+import com.zimbra.cs.ephemeral.EphemeralResult;
+import com.zimbra.cs.ephemeral.EphemeralStore;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
+
+/**
+ *
+ * SSDBTieredStore puts a local tier in front of an {@link SSDBEphemeralStore}: attributes read from SSDB
+ * are kept in an {@link SSDBOffHeapTable} of at most ssdb_tiered_l1_max_memory_mb megabytes, so that
+ * repeated lookups of the same session's tokens need no round-trip and millions of them do not fill the heap.
+ *
+ * Writes go to SSDB first and then drop the local copy. They are also published to the
+ * {@link SSDBInvalidationLog}, which every server polls every ssdb_tiered_poll_interval_ms to drop its own
+ * copies, so a token deleted on one server stops being accepted by the others within about twice
+ * that interval. A local copy is served for at most ssdb_tiered_l1_ttl_ms, which bounds staleness if
+ * an invalidation is lost, and never past the attribute's own expiration. While the log cannot be
+ * polled, the local tier is emptied at every poll.
+ *
+ * The backend URL is the SSDB backend URL with "ssdb-tiered:" instead of "ssdb:", e.g. "ssdb-tiered:ssdb1:8888".
+ * The near-cache of the SSDB store is turned off; the local tier replaces it.
+ *
+ */
+public class SSDBTieredStore extends EphemeralStore {
+    public static final String TIERED_STORE_ID = "ssdb-tiered";
+    /** resolution of the local tier's expiration */
+    private static final long L1_TICK_MILLIS = 1000L;
+
+    private final SSDBEphemeralStore l2;
+    private final SSDBOffHeapTable l1;
+    private final SSDBInvalidationLog invalidationLog;
+    private final long l1TtlMillis;
+    /** incremented whenever local copies are dropped, see {@link #cache(String, EphemeralKeyValuePair, long, long)} */
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ScheduledExecutorService executor;
+    protected String url;
+
+    public SSDBTieredStore(String url) throws ServiceException {
+        this(new SSDBEphemeralStore(getL2URL(url)),
+                SSDBConfig.getLong(SSDBConfig.TIERED_L1_MAX_MEMORY_MB, 256L) * 1024L * 1024L,
+                SSDBConfig.getLong(SSDBConfig.TIERED_L1_TTL_MS, 60000L),
+                Math.max(1L, SSDBConfig.getLong(SSDBConfig.TIERED_INVALIDATION_LOG_SIZE, 100000L)),
+                Math.max(1L, SSDBConfig.getLong(SSDBConfig.TIERED_POLL_INTERVAL_MS, 1000L)));
+        this.url = url;
+    }
+
+    /**
+     * @param pollIntervalMillis interval at which the invalidation log is polled; 0 leaves polling to the caller
+     */
+    @VisibleForTesting
+    SSDBTieredStore(SSDBEphemeralStore l2, long maxBytes, long l1TtlMillis, long logSize, long pollIntervalMillis) {
+        this.l2 = l2;
+        if (l2.getNearCache() != null) {
+            ZimbraLog.extensions.info("turning off the SSDB near-cache, the tiered store's local tier replaces it");
+            l2.setNearCache(null);
+        }
+        this.l1 = new SSDBOffHeapTable(maxBytes, L1_TICK_MILLIS);
+        this.l1TtlMillis = l1TtlMillis;
+        this.invalidationLog = new SSDBInvalidationLog(() -> l2.getShards().get(0), logSize);
+        setAttributeEncoder(new SSDBAttributeEncoder());
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBTiered-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                l1.expire(System.currentTimeMillis());
+            }
+        }, L1_TICK_MILLIS, L1_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (pollIntervalMillis > 0L) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pollInvalidations();
+                }
+            }, 0L, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the SSDB backend URL of a backend URL of the form "ssdb-tiered:<host>[:<port>]..."
+     */
+    static String getL2URL(String url) throws ServiceException {
+        String prefix = TIERED_STORE_ID + ":";
+        if (url == null || !url.toLowerCase().startsWith(prefix)) {
+            throw ServiceException.FAILURE(String.format(
+                    "tiered ephemeral backend URL must be of the form 'ssdb-tiered:<host>[:<port>][,<host>[:<port>]...]', got '%s'", url), null);
+        }
+        return SSDBEphemeralStore.SSDB_EPHEMERAL_STORE + ":" + url.substring(prefix.length());
+    }
+
+    @Override
+    public EphemeralResult get(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        String encodedKey = encodeKey(key, location);
+        long now = System.currentTimeMillis();
+        String value = l1.get(encodedKey, now);
+        if (value != null) {
+            hits.incrementAndGet();
+            return new EphemeralResult(key, value);
+        }
+        misses.incrementAndGet();
+        long ticket = invalidations.get();
+        EphemeralKeyValuePair kvp = l2.getEntry(key, location);
+        if (kvp == null) {
+            return EphemeralResult.emptyResult(key);
+        }
+        cache(encodedKey, kvp, ticket, now);
+        return new EphemeralResult(key, kvp.getValue());
+    }
+
+    /**
+     * Keeps a value read from SSDB unless a copy was dropped since the read started, in which case
+     * the value may already be stale
+     */
+    private void cache(String encodedKey, EphemeralKeyValuePair kvp, long ticket, long now) throws ServiceException {
+        long expires = now + l1TtlMillis;
+        if (kvp instanceof ExpirableEphemeralKeyValuePair) {
+            Long valueExpires = ((ExpirableEphemeralKeyValuePair) kvp).getExpires();
+            if (valueExpires != null && valueExpires > 0L) {
+                expires = Math.min(expires, valueExpires);
+            }
+        }
+        if (invalidations.get() != ticket || expires <= now) {
+            return;
+        }
+        try {
+            l1.put(encodedKey, kvp.getValue(), expires);
+            if (invalidations.get() != ticket) {
+                // dropped while it was put
+                l1.remove(encodedKey);
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("could not update the local tier", e);
+        }
+    }
+
+    @Override
+    public boolean has(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        return get(key, location).getValue() != null;
+    }
+
+    @Override
+    public void set(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
+        l2.set(attribute, location);
+        invalidate(encodeKey(attribute, location));
+    }
+
+    @Override
+    public void update(EphemeralInput attribute, EphemeralLocation location) throws ServiceException {
+        l2.update(attribute, location);
+        invalidate(encodeKey(attribute, location));
+    }
+
+    @Override
+    public void delete(EphemeralKey key, String value, EphemeralLocation location) throws ServiceException {
+        l2.delete(key, value, location);
+        invalidate(encodeKey(new EphemeralInput(key, value), location));
+    }
+
+    /**
+     * The local tier never serves expired values, so only SSDB is purged
+     */
+    @Override
+    public void purgeExpired(EphemeralKey key, EphemeralLocation location) throws ServiceException {
+        l2.purgeExpired(key, location);
+    }
+
+    @Override
+    public void deleteData(EphemeralLocation location) throws ServiceException {
+        l2.deleteData(location);
+        invalidate(SSDBKeyEncoder.encodeLocation(location));
+    }
+
+    /**
+     * Drops the local copy of a key, or of all keys starting with it if it ends with '|', here and,
+     * through the invalidation log, on the other servers
+     */
+    private void invalidate(String encodedKey) {
+        dropLocal(encodedKey);
+        try {
+            invalidationLog.publish(Collections.singletonList(encodedKey));
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.warn("other servers may serve %s from their local tier for up to %d ms",
+                    encodedKey, l1TtlMillis, e);
+        }
+    }
+
+    private void dropLocal(String encodedKey) {
+        invalidations.incrementAndGet();
+        try {
+            if (encodedKey.endsWith(String.valueOf(SSDBKeyEncoder.SEPARATOR))) {
+                l1.removePrefix(encodedKey);
+            } else {
+                l1.remove(encodedKey);
+            }
+        } catch (IOException e) {
+            // the local tier has no journal
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Drops the local copies of the keys changed on any server since the previous poll
+     */
+    @VisibleForTesting
+    void pollInvalidations() {
+        try {
+            if (!invalidationLog.poll(this::dropLocal)) {
+                dropAllLocal();
+            }
+        } catch (ServiceException | RuntimeException e) {
+            ZimbraLog.extensions.warn("could not poll the invalidation log, emptying the local tier", e);
+            dropAllLocal();
+        }
+    }
+
+    private void dropAllLocal() {
+        invalidations.incrementAndGet();
+        l1.clear();
+    }
+
+    /**
+     * @return the SSDB store behind the local tier
+     */
+    public SSDBEphemeralStore getL2() {
+        return l2;
+    }
+
+    /**
+     * @return the local tier
+     */
+    public SSDBOffHeapTable getL1() {
+        return l1;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        l2.shutdown();
+        l1.clear();
+    }
+
+    public static class Factory extends EphemeralStore.Factory {
+
+        private static final ReentrantLock LOCK = new ReentrantLock();
+        private static volatile SSDBTieredStore instance;
+
+        @Override
+        public EphemeralStore getNewStore() throws ServiceException {
+            String url = getURL();
+            if (url == null) {
+                ZimbraLog.extensions.debug("No URL found to create instance of SSDBTieredStore");
+                return null;
+            }
+            return new SSDBTieredStore(url);
+        }
+
+        @Override
+        public EphemeralStore getStore() {
+            SSDBTieredStore store = instance;
+            if (store != null) {
+                return store;
+            }
+            LOCK.lock();
+            try {
+                if (instance == null) {
+                    try {
+                        String url = getURL();
+                        if (url != null) {
+                            instance = new SSDBTieredStore(url);
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.extensions.error("Could not create an instance of SSDBTieredStore", e);
+                    }
+                }
+                return instance;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        /**
+         * Opens ssdb_pool_min_idle connections to every SSDB node
+         */
+        @Override
+        public void startup() {
+            EphemeralStore store = getStore();
+            if (store instanceof SSDBTieredStore) {
+                ((SSDBTieredStore) store).getL2().warmUp(SSDBConfig.getInt(SSDBConfig.POOL_MIN_IDLE, 0));
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            LOCK.lock();
+            try {
+                if (instance != null) {
+                    instance.shutdown();
+                    instance = null;
+                }
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        @Override
+        public void test(String url) throws ServiceException {
+            new SSDBEphemeralStore.Factory().test(getL2URL(url));
+        }
+    }
+}
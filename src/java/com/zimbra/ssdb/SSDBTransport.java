@@ -0,0 +1,25 @@
+package com.zimbra.ssdb;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBTransport selects how {@link SSDBEphemeralStore} talks to SSDB nodes for single-key reads and writes.
+ *
+ */
+public enum SSDBTransport {
+    /** every call borrows a connection from the node's pool */
+    POOL,
+    /** calls share a few connections per node, see {@link SSDBMultiplexedClient} */
+    MULTIPLEXED;
+
+    static SSDBTransport fromConfig() {
+        String transport = SSDBConfig.getString(SSDBConfig.TRANSPORT, POOL.name());
+        try {
+            return valueOf(transport.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ZimbraLog.extensions.warn("unknown SSDB transport '%s', using %s", transport, POOL);
+            return POOL;
+        }
+    }
+}
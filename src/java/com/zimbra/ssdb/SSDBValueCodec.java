@@ -0,0 +1,252 @@
+package com.zimbra.ssdb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.ephemeral.EphemeralKey;
+import com.zimbra.cs.ephemeral.ExpirableEphemeralKeyValuePair;
+
+/**
+ *
+ * SSDBValueCodec converts values to and from the bytes stored in SSDB.
+ *
+ * The binary format is
+ *
+ *   0xFF | version (high nibble) and flags (low nibble) | [expiration] | [raw length] | payload
+ *
+ * where the expiration in milliseconds is present if FLAG_EXPIRES is set and the length of the payload
+ * before compression is present if FLAG_DEFLATE is set, both written as unsigned LEB128 varints.
+ * The payload is the UTF-8 encoded value, or the bytes a lowercase hex value stands for if FLAG_HEX is set
+ * (CSRF token data is hex), Deflate-compressed if FLAG_DEFLATE is set. Compression is only applied
+ * to payloads of at least compressThreshold bytes and only kept if it makes the payload smaller.
+ *
+ * 0xFF never occurs in UTF-8, so a binary value cannot be mistaken for a legacy "value|expiration"
+ * text value, which is decoded by {@link SSDBAttributeEncoder}.
+ *
+ */
+final class SSDBValueCodec {
+    static final byte MAGIC = (byte) 0xFF;
+    static final int VERSION = 1;
+    static final int FLAG_EXPIRES = 0x1;
+    static final int FLAG_HEX = 0x2;
+    static final int FLAG_DEFLATE = 0x4;
+    private static final int KNOWN_FLAGS = FLAG_EXPIRES | FLAG_HEX | FLAG_DEFLATE;
+    private static final int HEADER_SIZE = 2;
+    private static final int MAX_VARINT_SIZE = 10;
+    /** refuse to inflate values claiming to be larger than this */
+    private static final int MAX_RAW_LENGTH = 16 * 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private SSDBValueCodec() {
+    }
+
+    /**
+     * Encodes a value without compression
+     */
+    static byte[] encode(SSDBValueFormat format, String value, Long expires) {
+        return encode(format, 0, value, expires);
+    }
+
+    /**
+     * @param compressThreshold minimum payload size in bytes for Deflate compression; 0 disables compression
+     * @param expires absolute expiration in milliseconds, or null or 0 if the value does not expire
+     */
+    static byte[] encode(SSDBValueFormat format, int compressThreshold, String value, Long expires) {
+        if (format == SSDBValueFormat.TEXT) {
+            return SSDBValueEncoder.encodeText(value, expires).getBytes(StandardCharsets.UTF_8);
+        }
+        int flags = 0;
+        byte[] payload;
+        if (isLowerCaseHex(value)) {
+            payload = hexToBytes(value);
+            flags |= FLAG_HEX;
+        } else {
+            payload = value.getBytes(StandardCharsets.UTF_8);
+        }
+        int rawLength = payload.length;
+        if (compressThreshold > 0 && payload.length >= compressThreshold) {
+            byte[] deflated = deflate(payload);
+            if (deflated != null) {
+                payload = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        boolean expiring = expires != null && expires > 0L;
+        if (expiring) {
+            flags |= FLAG_EXPIRES;
+        }
+        byte[] buf = new byte[HEADER_SIZE + 2 * MAX_VARINT_SIZE + payload.length];
+        buf[0] = MAGIC;
+        buf[1] = (byte) ((VERSION << 4) | flags);
+        int pos = HEADER_SIZE;
+        if (expiring) {
+            pos = writeVarint(expires, buf, pos);
+        }
+        if ((flags & FLAG_DEFLATE) != 0) {
+            pos = writeVarint(rawLength, buf, pos);
+        }
+        System.arraycopy(payload, 0, buf, pos, payload.length);
+        pos += payload.length;
+        byte[] encoded = new byte[pos];
+        System.arraycopy(buf, 0, encoded, 0, pos);
+        return encoded;
+    }
+
+    static boolean isBinary(byte[] encoded) {
+        return encoded.length > 0 && encoded[0] == MAGIC;
+    }
+
+    /**
+     * Decodes a value in either format
+     */
+    static ExpirableEphemeralKeyValuePair decode(EphemeralKey key, byte[] encoded) throws ServiceException {
+        if (!isBinary(encoded)) {
+            return SSDBAttributeEncoder.decodeTextValue(key, new String(encoded, StandardCharsets.UTF_8));
+        }
+        if (encoded.length < HEADER_SIZE || (encoded[1] & 0xff) >> 4 != VERSION || (encoded[1] & ~KNOWN_FLAGS & 0x0f) != 0) {
+            throw malformed(key, "unsupported SSDB value format");
+        }
+        int flags = encoded[1] & 0x0f;
+        int[] pos = { HEADER_SIZE };
+        Long expires = null;
+        if ((flags & FLAG_EXPIRES) != 0) {
+            expires = readVarint(key, encoded, pos);
+        }
+        byte[] payload;
+        int offset;
+        int length;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            long rawLength = readVarint(key, encoded, pos);
+            if (rawLength > MAX_RAW_LENGTH) {
+                throw malformed(key, "oversized SSDB value");
+            }
+            payload = inflate(key, encoded, pos[0], (int) rawLength);
+            offset = 0;
+            length = payload.length;
+        } else {
+            payload = encoded;
+            offset = pos[0];
+            length = encoded.length - offset;
+        }
+        String value = (flags & FLAG_HEX) != 0 ? bytesToHex(payload, offset, length)
+                : new String(payload, offset, length, StandardCharsets.UTF_8);
+        return new ExpirableEphemeralKeyValuePair(key, value, expires);
+    }
+
+    private static ServiceException malformed(EphemeralKey key, String message) {
+        return ServiceException.PARSE_ERROR(String.format("%s for key %s", message, key.getKey()), null);
+    }
+
+    /**
+     * @return true if the value is a non-empty, even-length string of lowercase hex digits,
+     * so that it can be stored as the bytes it stands for and restored exactly
+     */
+    static boolean isLowerCaseHex(String value) {
+        int len = value.length();
+        if (len == 0 || (len & 1) != 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes, int offset, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xff;
+            hex[2 * i] = HEX_DIGITS[b >> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return the compressed bytes, or null if compression does not make the payload smaller
+     */
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            byte[] chunk = new byte[Math.max(64, raw.length)];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+                if (out.size() >= raw.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(EphemeralKey key, byte[] encoded, int offset, int rawLength) throws ServiceException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(encoded, offset, encoded.length - offset);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength) {
+                int inflated = inflater.inflate(raw, n, rawLength - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawLength) {
+                throw malformed(key, "truncated compressed SSDB value");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw ServiceException.PARSE_ERROR(String.format("corrupt compressed SSDB value for key %s", key.getKey()), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int writeVarint(long value, byte[] buf, int pos) {
+        while ((value & ~0x7fL) != 0L) {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Reads a varint at pos[0] and advances pos[0] past it
+     */
+    private static long readVarint(EphemeralKey key, byte[] buf, int[] pos) throws ServiceException {
+        long value = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos[0] == buf.length || shift > 63) {
+                throw malformed(key, "truncated SSDB value");
+            }
+            b = buf[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
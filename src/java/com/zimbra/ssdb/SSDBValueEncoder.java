@@ -7,6 +7,8 @@ import com.zimbra.cs.ephemeral.ValueEncoder;
  *
  * @author Greg Solovyev
  *
+ * SSDBValueEncoder produces the legacy text form "value|expiration" of a value.
+ * The bytes actually written to SSDB are produced by {@link SSDBValueCodec}.
  */
 public class SSDBValueEncoder extends ValueEncoder {
 
@@ -15,12 +17,14 @@ public class SSDBValueEncoder extends ValueEncoder {
         if(input == null || input.getValue() == null) {
             return null;
         }
-        Long expires = input.getExpiration();
-        String value = input.getValue().toString();
+        return encodeText(input.getValue().toString(), input.getExpiration());
+    }
+
+    static String encodeText(String value, Long expires) {
         if (expires != null && expires > 0L) {
-            return String.format("%s|%s", value, String.valueOf(expires));
+            return value + SSDBKeyEncoder.SEPARATOR + expires;
         } else {
-            return String.format("%s|", value);
+            return value + SSDBKeyEncoder.SEPARATOR;
         }
     }
 }
@@ -0,0 +1,26 @@
+package com.zimbra.ssdb;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBValueFormat selects how {@link SSDBEphemeralStore} encodes the values it writes.
+ * Values in either format are always readable, so nodes can be switched one at a time.
+ *
+ */
+public enum SSDBValueFormat {
+    /** legacy "value|expiration" text */
+    TEXT,
+    /** versioned binary header followed by the raw UTF-8 value, see {@link SSDBValueCodec} */
+    BINARY;
+
+    static SSDBValueFormat fromConfig() {
+        String format = SSDBConfig.getString(SSDBConfig.VALUE_FORMAT, TEXT.name());
+        try {
+            return valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ZimbraLog.extensions.warn("unknown SSDB value format '%s', using %s", format, TEXT);
+            return TEXT;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.zimbra.ssdb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ *
+ * SSDBWriteBehindQueue buffers SSDB mutations and writes them asynchronously in batches.
+ *
+ * Repeated writes to the same encoded key are coalesced, so only the latest value of a key is sent.
+ * The queue is flushed when it holds batchSize keys or every flushIntervalMillis, whichever comes first.
+ * It never holds more than maxPending keys: callers block for up to maxWaitMillis when it is full
+ * and then flush it themselves. Mutations that are queued or being written stay visible through
+ * {@link #lookup(String)} so that this node always reads its own writes.
+ *
+ */
+public class SSDBWriteBehindQueue {
+
+    /**
+     * Writes a batch of mutations to SSDB
+     */
+    public interface Writer {
+        void write(List<Mutation> batch) throws ServiceException;
+    }
+
+    private final Writer writer;
+    private final int maxPending;
+    private final int batchSize;
+    private final long maxWaitMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService executor;
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private Map<String, Mutation> pending = new LinkedHashMap<String, Mutation>();
+    private final Map<String, Mutation> inFlight = new LinkedHashMap<String, Mutation>();
+    private boolean shutdown = false;
+
+    public SSDBWriteBehindQueue(Writer writer, int maxPending, int batchSize, long flushIntervalMillis, long maxWaitMillis) {
+        this.writer = writer;
+        this.maxPending = maxPending;
+        this.batchSize = batchSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SSDBWriteBehind-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a write-behind queue configured from localconfig, or null if write-behind is disabled
+     */
+    static SSDBWriteBehindQueue fromConfig(Writer writer) {
+        if (!SSDBConfig.getBoolean(SSDBConfig.WRITE_BEHIND_ENABLED, false)) {
+            return null;
+        }
+        int maxPending = SSDBConfig.getInt(SSDBConfig.WRITE_BEHIND_MAX_PENDING, 10000);
+        int batchSize = SSDBConfig.getInt(SSDBConfig.WRITE_BEHIND_BATCH_SIZE, 500);
+        long interval = SSDBConfig.getLong(SSDBConfig.WRITE_BEHIND_FLUSH_INTERVAL_MS, 100L);
+        long maxWait = SSDBConfig.getLong(SSDBConfig.WRITE_BEHIND_MAX_WAIT_MS, 1000L);
+        return new SSDBWriteBehindQueue(writer, maxPending, batchSize, interval, maxWait);
+    }
+
+    /**
+     * Queues a mutation, replacing any queued mutation of the same key
+     */
+    public void enqueue(Mutation mutation) throws ServiceException {
+        boolean flushNow = false;
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw ServiceException.FAILURE("SSDB write-behind queue is shut down", null);
+            }
+            if (pending.containsKey(mutation.getKey())) {
+                coalesced.incrementAndGet();
+            } else {
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (pending.size() >= maxPending && waitNanos > 0L) {
+                    scheduleFlush();
+                    try {
+                        waitNanos = notFull.awaitNanos(waitNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                flushNow = pending.size() >= maxPending;
+            }
+            pending.put(mutation.getKey(), mutation);
+            if (!flushNow && pending.size() >= batchSize) {
+                scheduleFlush();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (flushNow) {
+            // the flusher could not keep up within maxWaitMillis, apply back-pressure by writing in the caller's thread
+            flush();
+        }
+    }
+
+    /**
+     * @return the queued or in-flight mutation of the encoded key, or null if there is none
+     */
+    public Mutation lookup(String encodedKey) {
+        lock.lock();
+        try {
+            Mutation mutation = pending.get(encodedKey);
+            return mutation != null ? mutation : inFlight.get(encodedKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Synchronously writes all queued mutations
+     */
+    public void flush() throws ServiceException {
+        flushLock.lock();
+        try {
+            while (true) {
+                List<Mutation> batch = new ArrayList<Mutation>(batchSize);
+                lock.lock();
+                try {
+                    Iterator<Mutation> iter = pending.values().iterator();
+                    while (iter.hasNext() && batch.size() < batchSize) {
+                        Mutation mutation = iter.next();
+                        iter.remove();
+                        inFlight.put(mutation.getKey(), mutation);
+                        batch.add(mutation);
+                    }
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                try {
+                    writer.write(batch);
+                    written.addAndGet(batch.size());
+                } catch (ServiceException | RuntimeException e) {
+                    requeue(batch);
+                    throw e;
+                } finally {
+                    lock.lock();
+                    try {
+                        inFlight.clear();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background flusher and synchronously writes everything that is still queued
+     */
+    public void shutdown() throws ServiceException {
+        lock.lock();
+        try {
+            shutdown = true;
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /** must be called with lock held */
+    private void scheduleFlush() {
+        if (!executor.isShutdown()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushQuietly();
+                }
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (ServiceException e) {
+            ZimbraLog.extensions.warn("failed to flush SSDB write-behind queue, will retry", e);
+        } catch (RuntimeException e) {
+            ZimbraLog.extensions.error("unexpected error flushing SSDB write-behind queue", e);
+        }
+    }
+
+    /**
+     * Puts a failed batch back unless a newer mutation of the same key was queued in the meantime
+     */
+    private void requeue(List<Mutation> batch) {
+        lock.lock();
+        try {
+            Map<String, Mutation> merged = new LinkedHashMap<String, Mutation>();
+            for (Mutation mutation : batch) {
+                merged.put(mutation.getKey(), mutation);
+            }
+            merged.putAll(pending);
+            pending = merged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A pending SET/SETEX (value is not null) or DEL (value is null) of an encoded key
+     */
+    public static class Mutation {
+        private final String key;
+        private final byte[] value;
+        private final int ttlSeconds;
+
+        private Mutation(String key, byte[] value, int ttlSeconds) {
+            this.key = key;
+            this.value = value;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public static Mutation set(String key, byte[] value, int ttlSeconds) {
+            return new Mutation(key, value, ttlSeconds);
+        }
+
+        public static Mutation delete(String key) {
+            return new Mutation(key, null, 0);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the encoded value, or null if this mutation deletes the key
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+        public boolean isDelete() {
+            return value == null;
+        }
+
+        /**
+         * @return the time to live in seconds, or 0 if the key does not expire
+         */
+        public int getTtlSeconds() {
+            return ttlSeconds;
+        }
+    }
+}